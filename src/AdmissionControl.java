@@ -0,0 +1,201 @@
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Decides, before a request is queued, whether the index server takes it:
+ * <ul>
+ *     <li>every client IP has a token bucket; a request costs one token, plus one per
+ *     REGISTER_TOKEN_FILES names it carries, so a huge register pays for its size</li>
+ *     <li>heavy requests (registers, unregister, multi lookup, search, shard moves) and light ones
+ *     (lookup, heartbeat, transfer report) have separate limits on how many may be queued or running at once,
+ *     so a flood of registers cannot hold every worker while lookups wait</li>
+ * </ul>
+ * A request turned away is answered at once with a retry-after hint, without reaching the index.
+ * Status requests (REPLICATION_STATUS, STATS) are always admitted.
+ */
+public class AdmissionControl {
+
+    /** names a request carries per extra token **/
+    public static final int REGISTER_TOKEN_FILES = 1000;
+    /** idle clients are forgotten once this many are tracked **/
+    private static final int MAX_TRACKED_CLIENTS = 10000;
+
+    public enum Rejection {
+        RATE_LIMITED, OVERLOADED, QUEUE_FULL
+    }
+
+    private final int ratePerSecond;
+    private final int burst;
+    private final long retryMillis;
+    private final Semaphore heavyPermits;
+    private final Semaphore lightPermits;
+    private final ConcurrentHashMap<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private final IndexMetrics metrics;
+
+    /**
+     * @param ratePerSecond tokens a client gets per second, 0 turns rate limiting off
+     * @param burst tokens a client may save up
+     * @param heavyConcurrency heavy requests queued or running at once, over all clients
+     * @param lightConcurrency light requests queued or running at once, over all clients
+     * @param retryMillis retry-after hint when the server is overloaded
+     */
+    public AdmissionControl(int ratePerSecond, int burst, int heavyConcurrency, int lightConcurrency, long retryMillis,
+                            IndexMetrics metrics) {
+        this.ratePerSecond = ratePerSecond;
+        this.burst = Math.max(1, burst);
+        this.retryMillis = retryMillis;
+        this.heavyPermits = new Semaphore(heavyConcurrency);
+        this.lightPermits = new Semaphore(lightConcurrency);
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the rejection to send back, null when the request was admitted; an admitted request
+     * must be finished with release()
+     */
+    public IndexResponse admit(IndexRequest request, String clientIp) {
+        RequestTypeEnum requestType = typeOf(request);
+        if (requestType == null || isExempt(requestType)) {
+            return null;
+        }
+        if (ratePerSecond > 0) {
+            long waitMillis = bucketOf(clientIp).take(cost(request), ratePerSecond, burst);
+            if (waitMillis > 0) {
+                return reject(Rejection.RATE_LIMITED, "Rate limit of " + ratePerSecond + " requests per second exceeded by " + clientIp, waitMillis);
+            }
+        }
+        Semaphore permits = isHeavy(requestType) ? heavyPermits : lightPermits;
+        if (!permits.tryAcquire()) {
+            return reject(Rejection.OVERLOADED, "Server busy with " + (permits == heavyPermits ? "heavy" : "light") + " requests", retryMillis);
+        }
+        return null;
+    }
+
+    /**
+     * Give back the concurrency permit of an admitted request once it has been answered.
+     */
+    public void release(IndexRequest request) {
+        RequestTypeEnum requestType = typeOf(request);
+        if (requestType == null || isExempt(requestType)) {
+            return;
+        }
+        (isHeavy(requestType) ? heavyPermits : lightPermits).release();
+    }
+
+    /**
+     * Answer for an admitted request the worker pool had no room for; release() it as well.
+     */
+    public IndexResponse queueFull() {
+        return reject(Rejection.QUEUE_FULL, "Server busy, request queue full", retryMillis);
+    }
+
+    private IndexResponse reject(Rejection rejection, String message, long waitMillis) {
+        metrics.recordRejection(rejection);
+        return IndexResponse.retryLaterResp(message, waitMillis);
+    }
+
+    private static RequestTypeEnum typeOf(IndexRequest request) {
+        Integer code = request.getRequestType();
+        if (code == null) {
+            return null;
+        }
+        for (RequestTypeEnum requestType : RequestTypeEnum.values()) {
+            if (requestType.getCode() == code) {
+                return requestType;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isExempt(RequestTypeEnum requestType) {
+        return requestType == RequestTypeEnum.REPLICATION_STATUS || requestType == RequestTypeEnum.STATS
+                || requestType == RequestTypeEnum.DISCONNECT;
+    }
+
+    static boolean isHeavy(RequestTypeEnum requestType) {
+        switch (requestType) {
+            case LOOKUP:
+            case HEARTBEAT:
+            case REGISTER_BEGIN:
+            case TRANSFER_REPORT:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    private static int cost(IndexRequest request) {
+        long names = 0;
+        if (request.getIndexRegister() != null && request.getIndexRegister().getFiles() != null) {
+            names = request.getIndexRegister().getFiles().size();
+        } else if (request.getIndexSearch() != null) {
+            IndexRequest.IndexSearch indexSearch = request.getIndexSearch();
+            if (indexSearch.getFileNames() != null) {
+                names = indexSearch.getFileNames().size();
+            } else if (indexSearch.getRangeStart() != null && indexSearch.getRangeEnd() != null) {
+                names = Math.max(0, (long) indexSearch.getRangeEnd() - indexSearch.getRangeStart() + 1);
+            }
+        }
+        return 1 + (int) Math.min(Integer.MAX_VALUE - 1, names / REGISTER_TOKEN_FILES);
+    }
+
+    private TokenBucket bucketOf(String clientIp) {
+        TokenBucket bucket = buckets.get(clientIp);
+        if (bucket != null) {
+            return bucket;
+        }
+        if (buckets.size() >= MAX_TRACKED_CLIENTS) {
+            forgetIdleClients();
+        }
+        return buckets.computeIfAbsent(clientIp, key -> new TokenBucket(burst));
+    }
+
+    /**
+     * Drop the buckets that have filled up again, those clients start over with a full bucket anyway.
+     */
+    private void forgetIdleClients() {
+        long now = System.nanoTime();
+        Iterator<Map.Entry<String, TokenBucket>> iterator = buckets.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getValue().isFull(now, ratePerSecond, burst)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static class TokenBucket {
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        TokenBucket(int burst) {
+            this.tokens = burst;
+        }
+
+        /**
+         * Take the tokens of one request. A request costing more than the burst goes through once the
+         * bucket is full and leaves it in debt, so the client waits for the debt to be paid off afterwards.
+         * @return 0 when taken, otherwise how long until there are enough tokens
+         */
+        synchronized long take(int cost, int ratePerSecond, int burst) {
+            refill(System.nanoTime(), ratePerSecond, burst);
+            double needed = Math.min(cost, burst);
+            if (tokens >= needed) {
+                tokens -= cost;
+                return 0;
+            }
+            return Math.max(1, (long) Math.ceil((needed - tokens) * 1000 / ratePerSecond));
+        }
+
+        synchronized boolean isFull(long now, int ratePerSecond, int burst) {
+            refill(now, ratePerSecond, burst);
+            return tokens >= burst;
+        }
+
+        private void refill(long now, int ratePerSecond, int burst) {
+            tokens = Math.min(burst, tokens + (now - lastRefill) * ratePerSecond / 1e9);
+            lastRefill = now;
+        }
+    }
+}
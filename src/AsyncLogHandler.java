@@ -0,0 +1,307 @@
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
+import java.util.logging.Formatter;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+import java.util.logging.StreamHandler;
+
+/**
+ * Log handler that keeps file and console output off the threads that log.
+ * <p>
+ * publish() only checks the rate limit of the record's category (logger and level) and puts the
+ * record in a lock-free ring; one writer thread formats the records, hands them to the real
+ * handlers and flushes once per batch. When the ring is full the record is dropped rather than
+ * making the caller wait. Each category may log ratePerSecond records a second, beyond that only
+ * every sampleEvery-th one. Dropped and suppressed records are counted and reported in the log.
+ */
+public class AsyncLogHandler extends Handler {
+
+    private static final int BATCH_SIZE = 1024;
+    private static final long IDLE_PARK_MILLIS = 50;
+    private static final long DROP_REPORT_INTERVAL_MILLIS = 10000;
+    private static final int LEVEL_SLOTS = 4;
+
+    private final Handler[] targets;
+    private final int ratePerSecond;
+    private final int sampleEvery;
+
+    // bounded multi-producer single-consumer ring: a slot is free for position p when its sequence is p,
+    // filled when it is p+1; producers claim positions on tail, the writer thread alone moves head
+    private final LogRecord[] slots;
+    private final AtomicLongArray slotSequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+
+    private final ConcurrentHashMap<String, RateLimit[]> rateLimits = new ConcurrentHashMap<>();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder suppressed = new LongAdder();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    /**
+     * @param queueSize records the ring holds, rounded up to a power of two
+     * @param ratePerSecond records a category logs a second before sampling starts, 0 for no limit
+     * @param sampleEvery beyond the rate, one record in sampleEvery is kept, 0 keeps none
+     * @param targets the handlers the writer thread publishes to
+     */
+    public AsyncLogHandler(int queueSize, int ratePerSecond, int sampleEvery, Handler... targets) {
+        int capacity = Integer.highestOneBit(Math.max(2, queueSize) - 1) << 1;
+        this.slots = new LogRecord[capacity];
+        this.slotSequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            slotSequences.set(i, i);
+        }
+        this.mask = capacity - 1;
+        this.ratePerSecond = ratePerSecond;
+        this.sampleEvery = sampleEvery;
+        this.targets = targets;
+        setLevel(Level.ALL);
+        this.writer = new Thread(this::writeLoop, "async-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Replace the handlers of a logger by an AsyncLogHandler writing to fileName, and to the handlers
+     * the root logger had (the console) when the logger is the root one or passes its records up.
+     */
+    public static AsyncLogHandler install(String loggerName, String fileName, int queueSize, int ratePerSecond,
+                                          int sampleEvery) throws IOException {
+        Logger logger = Logger.getLogger(loggerName);
+        Logger rootLogger = Logger.getLogger("");
+        Formatter formatter = new SimpleFormatter();
+        StreamHandler fileHandler = new StreamHandler(new BufferedOutputStream(new FileOutputStream(fileName), 64 * 1024), formatter);
+        fileHandler.setLevel(Level.ALL);
+
+        List<Handler> targets = new ArrayList<>();
+        targets.add(fileHandler);
+        if (logger == rootLogger || logger.getUseParentHandlers()) {
+            for (Handler handler : rootLogger.getHandlers()) {
+                rootLogger.removeHandler(handler);
+                targets.add(handler);
+            }
+            logger.setUseParentHandlers(logger == rootLogger);
+        }
+        AsyncLogHandler asyncLogHandler = new AsyncLogHandler(queueSize, ratePerSecond, sampleEvery, targets.toArray(new Handler[0]));
+        logger.addHandler(asyncLogHandler);
+        return asyncLogHandler;
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (closed || !isLoggable(record)) {
+            return;
+        }
+        if (!admit(record)) {
+            suppressed.increment();
+            return;
+        }
+        if (!offer(record)) {
+            dropped.increment();
+        }
+    }
+
+    /** records dropped because the ring was full **/
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /** records left out by the rate limits **/
+    public long getSuppressedCount() {
+        return suppressed.sum();
+    }
+
+    private boolean admit(LogRecord record) {
+        if (ratePerSecond <= 0) {
+            return true;
+        }
+        String loggerName = record.getLoggerName() == null ? "" : record.getLoggerName();
+        RateLimit[] limits = rateLimits.computeIfAbsent(loggerName, k -> new RateLimit[LEVEL_SLOTS]);
+        int slot = levelSlot(record.getLevel());
+        RateLimit rateLimit = limits[slot];
+        if (rateLimit == null) {
+            synchronized (limits) {
+                if (limits[slot] == null) {
+                    limits[slot] = new RateLimit();
+                }
+                rateLimit = limits[slot];
+            }
+        }
+        return rateLimit.admit(record.getMillis(), ratePerSecond, sampleEvery);
+    }
+
+    private static int levelSlot(Level level) {
+        int value = level.intValue();
+        if (value >= Level.SEVERE.intValue()) {
+            return 0;
+        } else if (value >= Level.WARNING.intValue()) {
+            return 1;
+        } else if (value >= Level.INFO.intValue()) {
+            return 2;
+        }
+        return 3;
+    }
+
+    private boolean offer(LogRecord record) {
+        while (true) {
+            long position = tail.get();
+            int index = (int) (position & mask);
+            long difference = slotSequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots[index] = record;
+                    slotSequences.lazySet(index, position + 1);
+                    return true;
+                }
+            } else if (difference < 0) {
+                // the writer has not freed this slot yet, the ring is full
+                return false;
+            }
+        }
+    }
+
+    // writer thread only
+    private LogRecord poll() {
+        int index = (int) (head & mask);
+        if (slotSequences.get(index) != head + 1) {
+            return null;
+        }
+        LogRecord record = slots[index];
+        slots[index] = null;
+        slotSequences.lazySet(index, head + slots.length);
+        head++;
+        return record;
+    }
+
+    private void writeLoop() {
+        long lastReport = System.currentTimeMillis();
+        long reportedDrops = 0;
+        while (true) {
+            boolean stopping = closed;
+            int written = drain();
+            long now = System.currentTimeMillis();
+            if (now - lastReport >= DROP_REPORT_INTERVAL_MILLIS || stopping) {
+                long drops = getDroppedCount() + getSuppressedCount();
+                if (drops > reportedDrops) {
+                    write(new LogRecord(Level.WARNING, "Logging dropped " + getDroppedCount() + " records on a full queue and "
+                            + getSuppressedCount() + " over the rate limits so far"));
+                    flushTargets();
+                    reportedDrops = drops;
+                }
+                lastReport = now;
+            }
+            if (stopping) {
+                return;
+            }
+            if (written == 0) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(IDLE_PARK_MILLIS));
+            }
+        }
+    }
+
+    /**
+     * Publish what is in the ring, flushing after every batch.
+     * @return how many records were written
+     */
+    private int drain() {
+        int written = 0;
+        LogRecord record;
+        do {
+            int batch = 0;
+            while (batch < BATCH_SIZE && (record = poll()) != null) {
+                write(record);
+                batch++;
+            }
+            if (batch > 0) {
+                flushTargets();
+            }
+            written += batch;
+            if (batch < BATCH_SIZE) {
+                return written;
+            }
+        } while (true);
+    }
+
+    private void write(LogRecord record) {
+        // the source is not in the log format, keep the formatter from walking the writer's stack for it
+        record.setSourceClassName(record.getLoggerName());
+        for (Handler target : targets) {
+            try {
+                target.publish(record);
+            } catch (RuntimeException e) {
+                reportError(e.getMessage(), e, ErrorManager.WRITE_FAILURE);
+            }
+        }
+    }
+
+    private void flushTargets() {
+        for (Handler target : targets) {
+            target.flush();
+        }
+    }
+
+    /**
+     * Records are written in batches by the writer thread; this only wakes it.
+     */
+    @Override
+    public void flush() {
+        LockSupport.unpark(writer);
+    }
+
+    /**
+     * Write what is queued, then close the target handlers.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Handler target : targets) {
+            target.close();
+        }
+    }
+
+    /**
+     * Records of one category in the current second. The window is reset without a lock; two threads
+     * crossing a second boundary together may each let a few extra records through, which is fine for logs.
+     */
+    private static class RateLimit {
+        private volatile long second;
+        private final AtomicInteger count = new AtomicInteger();
+
+        boolean admit(long millis, int ratePerSecond, int sampleEvery) {
+            long now = millis / 1000;
+            if (now != second) {
+                second = now;
+                count.set(0);
+            }
+            int n = count.incrementAndGet();
+            if (n <= ratePerSecond) {
+                return true;
+            }
+            return sampleEvery > 0 && (n - ratePerSecond) % sampleEvery == 0;
+        }
+    }
+}
@@ -3,6 +3,10 @@ import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.Properties;
 
+/**
+ * Properties file next to the classes. A -Dkey=value system property overrides the file,
+ * so several servers can start from one config, e.g. index shards on different ports.
+ */
 public class ConfigReader {
     private Properties properties;
 
@@ -21,11 +25,11 @@ public class ConfigReader {
     }
 
     public String getProperty(String key) {
-        return properties.getProperty(key);
+        return System.getProperty(key, properties.getProperty(key));
     }
 
     public int getIntProperty(String key, int defaultValue) {
-        String value = properties.getProperty(key);
+        String value = getProperty(key);
         if (value != null) {
             try {
                 return Integer.parseInt(value);
@@ -37,7 +41,7 @@ public class ConfigReader {
     }
 
     public boolean getBooleanProperty(String key, boolean defaultValue) {
-        String value = properties.getProperty(key);
+        String value = getProperty(key);
         if (value != null) {
             return Boolean.parseBoolean(value);
         }
@@ -6,11 +6,148 @@ public final class ConstantUtils {
 
     public static final int FILE_SERVER_DEFAULT_PORT=10000;
 
-    public static final int FILE_STREAM_PORT = 10001;
+    /** downloads ask over one TCP connection to the file server, false for the UDP GET and a connection back **/
+    public static final boolean FILE_TRANSFER_TCP = true;
+
+    /** keep-alive connections a downloader holds to one file server; each idle one keeps a file server thread **/
+    public static final int PEER_CONNECTIONS_PER_PEER = 16;
+
+    /** idle keep-alive connections are closed after this, well within FILE_REQUEST_TIMEOUT_MILLIS **/
+    public static final long PEER_CONNECTION_IDLE_MILLIS = 10000;
+
+    /** how long a download waits for the holder to answer GET and to connect back **/
+    public static final int FILE_REQUEST_TIMEOUT_MILLIS = 30000;
 
     public static final int FILE_BUFFER_SIZE = 4096;
 
+    /** file servers send with FileChannel.transferTo (sendfile), falling back to the buffer copy where it fails **/
+    public static final boolean FILE_SERVER_ZERO_COPY = true;
+
     public static final int THREAD_POOL_SIZE = 1024;
 
+    public static final int MAX_MULTI_LOOKUP_SIZE = 10000;
+
+    /** files one batch GET may name, longer lists are split into several batches **/
+    public static final int MAX_BATCH_GET_SIZE = 10000;
+
+    /** a file server packs the frames of a batch into a buffer this big, files that fit go in whole **/
+    public static final int BATCH_FRAME_BUFFER_SIZE = 64 * 1024;
+
+    /** batch items up to this size are read into memory and written by the writer threads, larger ones are streamed **/
+    public static final int BATCH_INLINE_FILE_BYTES = 1024 * 1024;
+
+    /** bytes of a batch read but not yet written, the reader waits for the writers beyond this **/
+    public static final int BATCH_WRITE_BUFFER_BYTES = 16 * 1024 * 1024;
+
+    /** threads writing the files of batches to disk, shared by every batch of the process **/
+    public static final int BATCH_WRITE_THREADS = 4;
+
+    /** how long a client waits for the response to one index request before failing it **/
+    public static final long INDEX_REQUEST_TIMEOUT_MILLIS = 60000;
+
+    /** outstanding tagged requests accepted per index connection **/
+    public static final int MAX_PIPELINED_REQUESTS = 256;
+
+    public static final int PIPELINE_THREAD_POOL_SIZE = 16;
+
+    /** files per REGISTER_CHUNK, directories larger than this are registered in chunks **/
+    public static final int REGISTER_CHUNK_SIZE = 10000;
+
+    /** a chunked registration idle for this long is forgotten **/
+    public static final long REGISTER_SESSION_TIMEOUT_MILLIS = 10 * 60 * 1000;
+
+    public static final String SERVER_CONFIG_FILE = "server_config.properties";
+
+    public static final int NIO_IO_THREADS = 2;
+
+    public static final int NIO_COMPUTE_THREADS = 16;
+
+    /** index.wal.fsync=interval: how often the log is forced to disk **/
+    public static final long WAL_SYNC_INTERVAL_MILLIS = 100;
+
+    /** how often a snapshot is written when the log has grown **/
+    public static final long SNAPSHOT_INTERVAL_SECONDS = 300;
+
+    /** index.store=mapped: where the memory-mapped index files live when index.store.dir is not set **/
+    public static final String INDEX_STORE_DIR = "index_store";
+
+    /** how long a peer stays indexed without a register or heartbeat, 0 keeps peers until they unregister **/
+    public static final int PEER_LEASE_SECONDS = 90;
+
+    /** resolution of the lease sweeper, and how many ticks its wheel has **/
+    public static final long LEASE_TICK_MILLIS = 1000;
+    public static final int LEASE_WHEEL_SIZE = 512;
+
+    /** LOOKUP responses kept by the index server, 0 turns the cache off **/
+    public static final int LOOKUP_CACHE_SIZE = 10000;
+
+    /** holders the peer console asks a LOOKUP for **/
+    public static final int LOOKUP_PAGE_SIZE = 20;
+
+    /** how a LOOKUP for the best k holders picks them: none, score or p2c, see HolderRanker **/
+    public static final String LOOKUP_RANKING = "p2c";
+    /** bytes per millisecond assumed for a holder no downloader reported on yet **/
+    public static final double RANKING_DEFAULT_THROUGHPUT = 10000;
+    /** cost factor of a holder in the requester's subnet **/
+    public static final double RANKING_SAME_SUBNET_FACTOR = 0.5;
+    /** downloads smaller than this are left out of a holder's throughput, and not reported at all **/
+    public static final long RANKING_MIN_REPORT_BYTES = 64 * 1024;
+    /** how long a lookup counts against the holder it named first **/
+    public static final long RANKING_ASSIGNED_WINDOW_MILLIS = 2000;
+
+    /** names per SEARCH page, also the default page size **/
+    public static final int MAX_SEARCH_RESULTS = 1000;
+
+    /** candidates a SEARCH request may examine before it returns a short page with a cursor **/
+    public static final int MAX_SEARCH_SCAN = 100000;
+
+    /** shards accept SHARD_IMPORT and SHARD_REMOVE, the rebalancer's requests, only when this is on **/
+    public static final boolean SHARD_ADMIN_ENABLED = false;
+
+    /** primary: port the replicas connect to, and how many mutations it keeps for them to catch up from **/
+    public static final int REPLICATION_PORT = 8070;
+    public static final int REPLICATION_BACKLOG = 100000;
+
+    /** primary: longest pause between two POSITION records of the replication stream **/
+    public static final long REPLICATION_POSITION_INTERVAL_MILLIS = 100;
+
+    /** replica: reads are refused while the replica may be further than this behind the primary **/
+    public static final long REPLICA_MAX_LAG_MILLIS = 2000;
+
+    /** replica: how long a read-your-writes read waits for the write to arrive before it is refused **/
+    public static final long REPLICA_READ_WAIT_MILLIS = 500;
+
+    public static final long REPLICA_RECONNECT_MILLIS = 1000;
+
+    /** message prefix of the reads a replica refuses, the client sends them to the primary instead **/
+    public static final String REPLICA_UNAVAILABLE = "Replica unavailable";
+
+    /** log records queued for the writer thread, further ones are dropped and counted **/
+    public static final int LOG_QUEUE_SIZE = 65536;
+
+    /** records a logger logs per level and second, beyond that one in LOG_SAMPLE_EVERY **/
+    public static final int LOG_RATE_PER_SECOND = 1000;
+    public static final int LOG_SAMPLE_EVERY = 100;
+
+    /** requests (nio, pipelined) or connections (thread mode) waiting for a thread; more are turned away at once **/
+    public static final int ADMISSION_QUEUE_SIZE = 1024;
+
+    /** tokens per second and bucket size of each client IP, 0 turns rate limiting off **/
+    public static final int ADMISSION_RATE_PER_SECOND = 0;
+    public static final int ADMISSION_BURST = 2000;
+
+    /** requests queued or running at once, heavy ones (registers, multi lookups, searches) and light ones (lookups) **/
+    public static final int ADMISSION_HEAVY_CONCURRENCY = 8;
+    public static final int ADMISSION_LIGHT_CONCURRENCY = 1024;
+
+    /** retry-after hint of a request turned away because the server is busy **/
+    public static final long ADMISSION_RETRY_MILLIS = 50;
+
+    /** times a client resends a request it was told to retry later **/
+    public static final int ADMISSION_MAX_RETRIES = 5;
+
+    /** whether register / unregister log every file they touch **/
+    public static final boolean LOG_FILE_LINES = false;
+
 
 }
@@ -1,12 +1,15 @@
 import java.io.*;
 import java.net.*;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class EvaluationAndMeasurement {
 
@@ -21,7 +24,21 @@ public class EvaluationAndMeasurement {
         TYPE_LOG_MAP.put(3,"search_and_download_10_1GB.log");
     }
 
-    private final Lock lock = new ReentrantLock();
+    /** downloads finished and their bytes in the current run, all threads together **/
+    private final AtomicLong downloads = new AtomicLong();
+    private final AtomicLong downloadedBytes = new AtomicLong();
+
+    private boolean binaryProtocol = true;
+    /** index.shards from the config, null when the index is one server **/
+    private String indexShards;
+    /** index.replicas from the config, null when every request goes to index.server.address **/
+    private String indexReplicas;
+    private boolean readYourWrites;
+    private boolean tcpTransfer = ConstantUtils.FILE_TRANSFER_TCP;
+    /** keep-alive connections shared by the threads of a run, null for a connection per download **/
+    private PeerConnectionPool connectionPool;
+    /** batched lookups also download each batch with one batch GET per holder **/
+    private boolean batchGet;
 
     public static void main(String[] args) {
         EvaluationAndMeasurement evaluation = new EvaluationAndMeasurement();
@@ -47,9 +64,23 @@ public class EvaluationAndMeasurement {
             String downloadPath =  config.getProperty("test.download.path");
             String serverAddress = config.getProperty("index.server.address");
             String serverPort = config.getProperty("index.server.port");
+            binaryProtocol = !"object".equalsIgnoreCase(config.getProperty("index.protocol"));
+            String shards = config.getProperty("index.shards");
+            indexShards = shards == null || shards.trim().isEmpty() ? null : shards.trim();
+            String replicas = config.getProperty("index.replicas");
+            indexReplicas = replicas == null || replicas.trim().isEmpty() ? null : replicas.trim();
+            readYourWrites = config.getBooleanProperty("index.read.your.writes", false);
+            String fileTransfer = config.getProperty("test.file.transfer");
+            boolean keepAlive = config.getBooleanProperty("test.file.keep.alive", true);
+            batchGet = config.getBooleanProperty("test.file.batch.get", true);
+            tcpTransfer = fileTransfer == null || fileTransfer.trim().isEmpty() ? ConstantUtils.FILE_TRANSFER_TCP : !"udp".equalsIgnoreCase(fileTransfer.trim());
 
             int kbFileSize = config.getIntProperty("test.1M.1KB.text.file.size",1000000);
             int mbFileSize = config.getIntProperty("test.1K.1MB.text.file.size",1000);
+            // Greater than 1: resolve names with MULTI_LOOKUP over one connection per thread
+            int lookupBatchSize = Math.min(config.getIntProperty("test.lookup.batch.size",1), ConstantUtils.MAX_MULTI_LOOKUP_SIZE);
+            // Greater than 1: the lookup-only workload keeps this many requests in flight on one connection per thread
+            int pipelineDepth = Math.min(config.getIntProperty("test.lookup.pipeline.depth",1), ConstantUtils.MAX_PIPELINED_REQUESTS);
 
             final String finalServerAddress = serverAddress;
             final String finalServerPort = serverPort;
@@ -82,6 +113,10 @@ public class EvaluationAndMeasurement {
                 }
             }
 
+            downloads.set(0);
+            downloadedBytes.set(0);
+            connectionPool = keepAlive && tcpTransfer && type != 0 ? new PeerConnectionPool() : null;
+            long runStartTime = System.currentTimeMillis();
             for (int i = 0; i < NUM_THREADS; i++) {
                 end = start + range - 1;
 
@@ -100,7 +135,10 @@ public class EvaluationAndMeasurement {
                         String logEntry;
                         MeasurementResult measurementResult;
                         String reqFileName;
-                        if(type==0){
+                        if(type==0 && pipelineDepth>1){
+
+                            runPipelinedQueries(finalServerAddress,finalServerPort,targetFile0,pipelineDepth,logWriter);
+                        }else if(type==0){
 
                             for (int j = 0; j < NUM_QUERIES; j++) {
 
@@ -118,6 +156,10 @@ public class EvaluationAndMeasurement {
                                     logWriter.write(logEntry);
                                 }
                             }
+                        }else if((type==1 || type==2) && lookupBatchSize>1){
+
+                            runBatchQueries(finalServerAddress,finalServerPort,type==1 ? targetFile1 : targetFile2,
+                                    threadStart,threadEnd,lookupBatchSize,downloadPath,logWriter);
                         }else if(type==1){
 
                             for (int j = threadStart; j <= threadEnd; j++) {
@@ -182,6 +224,16 @@ public class EvaluationAndMeasurement {
 
             threadPool.shutdown();
             threadPool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            if(type!=0){
+                long runMillis = Math.max(1, System.currentTimeMillis() - runStartTime);
+                System.out.printf("%s: %d downloads, %.1f MB in %.1f s by %d threads, %.1f MB/s%n", logFile, downloads.get(),
+                        downloadedBytes.get() / 1048576.0, runMillis / 1000.0, NUM_THREADS, downloadedBytes.get() / 1048576.0 * 1000 / runMillis);
+                if(connectionPool!=null){
+                    System.out.println(logFile + ": " + connectionPool.getOpened() + " peer connections opened, " + connectionPool.getReused() + " reused");
+                    connectionPool.close();
+                    connectionPool = null;
+                }
+            }
             logWriter.flush();
             logWriter.close();
         } catch (IOException | InterruptedException e) {
@@ -189,21 +241,28 @@ public class EvaluationAndMeasurement {
         }
     }
 
+    /**
+     * The shards of index.shards when it is set, the primary at index.server.address:index.server.port with
+     * its index.replicas when those are set, otherwise that one server.
+     */
+    private IndexService openIndex(String serverAddress, String serverPort) throws IOException {
+        if (indexShards != null) {
+            return new ShardedIndexClient(indexShards, binaryProtocol);
+        }
+        if (indexReplicas != null) {
+            return new ReplicatedIndexClient(serverAddress + ":" + serverPort, indexReplicas, binaryProtocol, readYourWrites);
+        }
+        return new IndexClient(serverAddress, Integer.parseInt(serverPort), binaryProtocol);
+    }
+
     private MeasurementResult performSocketQuery(String serverAddress,String serverPort,String targetFile,int type,String downloadPath)  {
-        Socket peerClientSocket =null;
-        ObjectOutputStream out=null;
-        ObjectInputStream in=null;
+        IndexService indexClient =null;
         MeasurementResult measurementResult = new MeasurementResult();
         measurementResult.setCallLookUpStartTime(System.currentTimeMillis());
         try{
-            peerClientSocket = new Socket(serverAddress, Integer.parseInt(serverPort));
-
-            out = new ObjectOutputStream(peerClientSocket.getOutputStream());
-            out.flush();
-
-            in = new ObjectInputStream(peerClientSocket.getInputStream());
-            IndexResponse indexServerResponse = (IndexResponse) in.readObject();
-            if(!indexServerResponse.isSuc()){
+            try {
+                indexClient = openIndex(serverAddress, serverPort);
+            } catch (IOException e) {
                 System.out.println("Connection failure.Address: "+serverAddress+",Port:"+serverPort);
                 System.exit(0);
             }
@@ -214,9 +273,10 @@ public class EvaluationAndMeasurement {
             indexRequest.setRequestType(RequestTypeEnum.LOOKUP.getCode());
             indexRequest.setIndexSearch(new IndexRequest.IndexSearch());
             indexRequest.getIndexSearch().setFileName(targetFile);
+            // Only the first holder is downloaded from, the rest would only grow the response
+            indexRequest.getIndexSearch().setLimit(1);
 
-            out.writeObject(indexRequest);
-            indexServerResponse = (IndexResponse) in.readObject();
+            IndexResponse indexServerResponse = indexClient.call(indexRequest);
 
             if (indexServerResponse.isSuc()) {
                 // The response result of the index service
@@ -241,23 +301,22 @@ public class EvaluationAndMeasurement {
             measurementResult.setCallLookUpStopTime(System.currentTimeMillis());
 
             measurementResult.setCallLookUpElapsedTime(measurementResult.getCallLookUpStopTime()-measurementResult.getCallLookUpStartTime());
-            indexRequest = new IndexRequest();
-            indexRequest.setRequestType(RequestTypeEnum.DISCONNECT.getCode());
-            out.writeObject(indexRequest);
             System.out.println("peer client lookup exit complete.");
 
-        }catch (IOException | ClassNotFoundException e){
+            //Download file, the connection stays open for the transfer report
+            if(type!=0){
+                if(measurementResult.getLookupItem()==null){
+                    throw new RuntimeException("File not found,fileName:"+targetFile);
+                }
+                this.downloadFile(indexClient,measurementResult,downloadPath);
+            }
+
+        }catch (IOException e){
             e.printStackTrace();
         }finally {
             try {
-                if (out != null){
-                    out.close();
-                }
-                if (in != null){
-                    in.close();
-                }
-                if (peerClientSocket != null){
-                    peerClientSocket.close();
+                if (indexClient != null){
+                    indexClient.close();
                 }
 
             } catch (IOException e) {
@@ -265,38 +324,182 @@ public class EvaluationAndMeasurement {
             }
         }
 
+        return measurementResult;
+
+    }
+
+    private void runPipelinedQueries(String serverAddress,String serverPort,String targetFile,int pipelineDepth,
+                                     BufferedWriter logWriter) throws IOException {
+        try (IndexService indexClient = openIndex(serverAddress, serverPort)) {
+            Semaphore window = new Semaphore(pipelineDepth);
+            for (int j = 0; j < NUM_QUERIES; j++) {
+                window.acquireUninterruptibly();
+                IndexRequest indexRequest = new IndexRequest();
+                indexRequest.setRequestType(RequestTypeEnum.LOOKUP.getCode());
+                indexRequest.setIndexSearch(new IndexRequest.IndexSearch());
+                indexRequest.getIndexSearch().setFileName(targetFile);
+                indexRequest.getIndexSearch().setLimit(1);
+
+                long startTime = System.currentTimeMillis();
+                indexClient.sendAsync(indexRequest).whenComplete((indexServerResponse, e) -> {
+                    window.release();
+                    if (e != null) {
+                        e.printStackTrace();
+                        return;
+                    }
+                    long endTime = System.currentTimeMillis();
+                    String logEntry = String.format("%s,%d,%d,%d%n", targetFile, startTime, endTime, endTime - startTime);
+                    try {
+                        synchronized (logWriter) {
+                            logWriter.write(logEntry);
+                        }
+                    } catch (IOException ex) {
+                        ex.printStackTrace();
+                    }
+                });
+            }
+            // Wait for the tail of the window before the connection is closed
+            window.acquireUninterruptibly(pipelineDepth);
+        }
+    }
 
-        //Download file
-        if(type!=0){
-            if(measurementResult.getLookupItem()==null){
-                throw new RuntimeException("File not found,fileName:"+targetFile);
+    private void runBatchQueries(String serverAddress,String serverPort,String namePattern,int rangeStart,int rangeEnd,
+                                 int batchSize,String downloadPath,BufferedWriter logWriter) throws IOException {
+        try (IndexService indexClient = openIndex(serverAddress, serverPort)) {
+            for (int batchStart = rangeStart; batchStart <= rangeEnd; batchStart += batchSize) {
+                int batchEnd = Math.min(rangeEnd, batchStart + batchSize - 1);
+
+                long startTime = System.currentTimeMillis();
+                IndexRequest indexRequest = new IndexRequest();
+                indexRequest.setRequestType(RequestTypeEnum.MULTI_LOOKUP.getCode());
+                indexRequest.setIndexSearch(new IndexRequest.IndexSearch());
+                indexRequest.getIndexSearch().setNamePattern(namePattern);
+                indexRequest.getIndexSearch().setRangeStart(batchStart);
+                indexRequest.getIndexSearch().setRangeEnd(batchEnd);
+                indexRequest.getIndexSearch().setLimit(1);
+                IndexResponse indexServerResponse = indexClient.call(indexRequest);
+                long endTime = System.currentTimeMillis();
+                if (!indexServerResponse.isSuc()) {
+                    throw new RuntimeException("Multi lookup failed, message:" + indexServerResponse.getMessage());
+                }
+                HashMap<String, HashMap<Integer, IndexResponse.LookupItem>> multiLookupMap = indexServerResponse.getData().getMultiLookupMapping();
+
+                // The round trip is shared by the whole batch, so each file is charged its share of it
+                long elapsedTime = (endTime - startTime) / (batchEnd - batchStart + 1);
+                if (batchGet) {
+                    downloadBatch(indexClient, namePattern, batchStart, batchEnd, multiLookupMap, startTime, endTime, elapsedTime,
+                            downloadPath, logWriter);
+                    continue;
+                }
+                for (int j = batchStart; j <= batchEnd; j++) {
+                    String reqFileName = String.format(namePattern, j);
+                    HashMap<Integer, IndexResponse.LookupItem> lookupMap = multiLookupMap.get(reqFileName);
+                    if (lookupMap == null || lookupMap.isEmpty()) {
+                        throw new RuntimeException("File not found,fileName:" + reqFileName);
+                    }
+                    MeasurementResult measurementResult = new MeasurementResult();
+                    measurementResult.setCallLookUpStartTime(startTime);
+                    measurementResult.setCallLookUpStopTime(endTime);
+                    measurementResult.setCallLookUpElapsedTime(elapsedTime);
+                    measurementResult.setLookupItem(lookupMap.values().iterator().next());
+                    this.downloadFile(indexClient, measurementResult, downloadPath);
+
+                    String logEntry = String.format(
+                            "%s,%d,%d,%d,%d,%d,%d,%d%n",
+                            reqFileName, startTime, endTime, elapsedTime
+                            , measurementResult.getDownloadStartTime(), measurementResult.getDownloadStopTime()
+                            , measurementResult.getDownloadElapsedTime(),elapsedTime + measurementResult.getDownloadElapsedTime()
+                    );
+                    synchronized (logWriter) {
+                        logWriter.write(logEntry);
+                    }
+                }
             }
-            this.downloadFile(measurementResult,downloadPath);
         }
+    }
 
-        return measurementResult;
+    /**
+     * Download the files of one lookup batch with a batch GET to each of their holders, reporting one
+     * transfer per holder. Like the lookup, each file is charged its share of its holder's batch.
+     */
+    private void downloadBatch(IndexService indexClient, String namePattern, int batchStart, int batchEnd,
+                               HashMap<String, HashMap<Integer, IndexResponse.LookupItem>> multiLookupMap, long startTime, long endTime,
+                               long elapsedTime, String downloadPath, BufferedWriter logWriter) throws IOException {
+        Map<String, List<IndexResponse.LookupItem>> holders = new LinkedHashMap<>();
+        for (int j = batchStart; j <= batchEnd; j++) {
+            String reqFileName = String.format(namePattern, j);
+            HashMap<Integer, IndexResponse.LookupItem> lookupMap = multiLookupMap.get(reqFileName);
+            if (lookupMap == null || lookupMap.isEmpty()) {
+                throw new RuntimeException("File not found,fileName:" + reqFileName);
+            }
+            IndexResponse.LookupItem lookupItem = lookupMap.values().iterator().next();
+            holders.computeIfAbsent(lookupItem.getFileServerAddress() + ":" + lookupItem.getFileServerPort(), k -> new ArrayList<>())
+                    .add(lookupItem);
+        }
+        for (List<IndexResponse.LookupItem> lookupItems : holders.values()) {
+            IndexResponse.LookupItem holder = lookupItems.get(0);
+            List<String> fileFullNames = new ArrayList<>();
+            for (IndexResponse.LookupItem lookupItem : lookupItems) {
+                fileFullNames.add(lookupItem.getFileLocalPath() + lookupItem.getFileLocalFileName());
+            }
+            long downloadStartTime = System.currentTimeMillis();
+            FileReceiver.BatchResult batchResult = new FileReceiver(tcpTransfer, connectionPool)
+                    .receiveFiles(fileFullNames, holder.getFileServerAddress(), holder.getFileServerPort(), downloadPath);
+            long downloadStopTime = System.currentTimeMillis();
+            downloads.addAndGet(batchResult.getDownloaded().size());
+            downloadedBytes.addAndGet(batchResult.getBytes());
+            indexClient.reportTransfer(holder, batchResult.getBytes(), downloadStopTime - downloadStartTime);
+            for (String fileFullName : batchResult.getMissing()) {
+                System.err.println("The holder " + holder.getFileServerAddress() + " no longer has " + fileFullName);
+            }
+            for (String fileFullName : batchResult.getFailed()) {
+                System.err.println("Downloading " + fileFullName + " from " + holder.getFileServerAddress() + " failed");
+            }
 
+            long downloadElapsedTime = (downloadStopTime - downloadStartTime) / lookupItems.size();
+            StringBuilder logEntries = new StringBuilder();
+            for (IndexResponse.LookupItem lookupItem : lookupItems) {
+                if (!batchResult.getDownloaded().containsKey(lookupItem.getFileLocalPath() + lookupItem.getFileLocalFileName())) {
+                    continue;
+                }
+                logEntries.append(String.format(
+                        "%s,%d,%d,%d,%d,%d,%d,%d%n",
+                        lookupItem.getFileLocalFileName(), startTime, endTime, elapsedTime
+                        , downloadStartTime, downloadStopTime, downloadElapsedTime, elapsedTime + downloadElapsedTime
+                ));
+            }
+            synchronized (logWriter) {
+                logWriter.write(logEntries.toString());
+            }
+        }
     }
 
-    private void downloadFile(MeasurementResult measurementResult,String downloadPath){
+    /**
+     * Download the file from the holder of the lookup, then report the transfer so the index can rank the holder.
+     */
+    private void downloadFile(IndexService indexClient,MeasurementResult measurementResult,String downloadPath){
 
         String fileHostAddress = measurementResult.getLookupItem().getFileServerAddress();
         int fileHostPort = measurementResult.getLookupItem().getFileServerPort();
         String serverFilePath = measurementResult.getLookupItem().getFileLocalPath();
         String serverFileName = measurementResult.getLookupItem().getFileLocalFileName();
 
-        FileReceiver fileReceiver = new FileReceiver();
-        lock.lock();
+        FileReceiver fileReceiver = new FileReceiver(tcpTransfer, connectionPool);
         try{
             System.out.println("Thread "+Thread.currentThread().getName() +" start p2p and obtain file "+serverFileName);
             measurementResult.setDownloadStartTime(System.currentTimeMillis());
-            fileReceiver.receiveFile(serverFilePath+serverFileName,serverFileName,fileHostAddress,fileHostPort,downloadPath);
+            String downloadFileLocation = fileReceiver.receiveFile(serverFilePath+serverFileName,serverFileName,fileHostAddress,fileHostPort,downloadPath);
             measurementResult.setDownloadStopTime(System.currentTimeMillis());
+            if(downloadFileLocation!=null){
+                long bytes = new File(downloadFileLocation).length();
+                downloads.incrementAndGet();
+                downloadedBytes.addAndGet(bytes);
+                indexClient.reportTransfer(measurementResult.getLookupItem(),bytes,
+                        measurementResult.getDownloadStopTime()-measurementResult.getDownloadStartTime());
+            }
             System.out.println("Thread "+Thread.currentThread().getName() +" Obtain the "+serverFileName+" file. The operation is complete ");
         }catch (Exception e){
             e.printStackTrace();
-        }finally {
-            lock.unlock();
         }
         measurementResult.setDownloadElapsedTime(measurementResult.getDownloadStopTime()-measurementResult.getDownloadStartTime());
 
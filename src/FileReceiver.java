@@ -1,21 +1,321 @@
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class FileReceiver {
 
+    /** numbers the part files of this process, the pid keeps them apart from other processes **/
+    private static final AtomicLong PART_SEQUENCE = new AtomicLong();
+
+    /** write the files of batches to disk while the connection goes on to the next ones **/
+    private static final ExecutorService BATCH_WRITERS = Executors.newFixedThreadPool(ConstantUtils.BATCH_WRITE_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "batch-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** ask over one TCP connection to the file server, false for the UDP GET and a connection back **/
+    private final boolean tcpTransfer;
+    /** keep-alive connections shared by downloads, null for a connection per download **/
+    private final PeerConnectionPool connectionPool;
+
+    public FileReceiver() {
+        this(ConstantUtils.FILE_TRANSFER_TCP);
+    }
+
+    public FileReceiver(boolean tcpTransfer) {
+        this(tcpTransfer, null);
+    }
+
+    public FileReceiver(boolean tcpTransfer, PeerConnectionPool connectionPool) {
+        this.tcpTransfer = tcpTransfer;
+        this.connectionPool = connectionPool;
+    }
+
+    /**
+     * Ask the holder for the file and write it under targetDownloadPath, or the user's download
+     * directory when that is null. Any number of downloads can run at once in one process: each
+     * writes its own part file, moved over the target once complete. A holder that refuses the TCP
+     * connection is asked over UDP instead.
+     */
     public String receiveFile(String fileFullName,String fileName, String ipAddress, int sockPort,String targetDownloadPath) throws IOException {
+        if (tcpTransfer) {
+            try {
+                return receiveFileOverTcp(fileFullName, fileName, ipAddress, sockPort, targetDownloadPath);
+            } catch (ConnectException e) {
+                System.out.println("The server (" + ipAddress + ":" + sockPort + ") does not serve files over TCP, asking over UDP");
+            }
+        }
+        return receiveFileOverUdp(fileFullName, fileName, ipAddress, sockPort, targetDownloadPath);
+    }
+
+    /**
+     * Send "GET name" on a connection to the file server, read "ACCEPT size" and then the bytes; no
+     * datagram, no wait and no connection back.
+     */
+    private String receiveFileOverTcp(String fileFullName, String fileName, String ipAddress, int sockPort,
+                                      String targetDownloadPath) throws IOException {
+        String[] refusal = new String[1];
+        String downloadFileLocation = request(ipAddress, sockPort, "GET " + fileFullName + "\n", (answerStream, command) -> {
+            if (!command.startsWith("ACCEPT ")) {
+                if (command.startsWith("FAILED")) {
+                    // The answer was a single line, the connection is ready for the next GET
+                    refusal[0] = command;
+                    return null;
+                }
+                throw new IOException("Failed to obtain the " + fileName + " file from the server (" + ipAddress + "). command:"+command);
+            }
+            System.out.println("p2p client get ACCEPT ,fileName: "+fileName+",from "+ipAddress);
+            long fileSize = Long.parseLong(command.substring("ACCEPT ".length()).trim());
+            return receiveStream(answerStream, fileSize, fileName, ipAddress, targetDownloadPath);
+        });
+        if (downloadFileLocation == null) {
+            throw new IOException("Failed to obtain the " + fileName + " file from the server (" + ipAddress + "). command:"+refusal[0]);
+        }
+        return downloadFileLocation;
+    }
+
+    /**
+     * Download many files from one holder, each written under targetDownloadPath by its own name.
+     * They come back to back over one connection, up to MAX_BATCH_GET_SIZE a request. A file the
+     * holder does not have is reported in the result and the rest of the batch goes on. Over UDP,
+     * or from a holder without batches, the files are asked for one at a time.
+     */
+    public BatchResult receiveFiles(List<String> fileFullNames, String ipAddress, int sockPort, String targetDownloadPath) throws IOException {
+        BatchResult batchResult = new BatchResult();
+        for (int from = 0; from < fileFullNames.size(); from += ConstantUtils.MAX_BATCH_GET_SIZE) {
+            List<String> names = fileFullNames.subList(from, Math.min(fileFullNames.size(), from + ConstantUtils.MAX_BATCH_GET_SIZE));
+            StringBuilder request = new StringBuilder("MGET ").append(names.size()).append('\n');
+            for (String name : names) {
+                if (name.indexOf('\n') >= 0) {
+                    throw new IllegalArgumentException("A file name cannot contain a line break: " + name);
+                }
+                request.append(name).append('\n');
+            }
+            receiveBatch(request.toString(), names, ipAddress, sockPort, targetDownloadPath, batchResult);
+        }
+        return batchResult;
+    }
+
+    /**
+     * Download the files String.format(fileFullNamePattern, i) for i from rangeStart to rangeEnd, like
+     * receiveFiles but without sending every name.
+     * @throws IllegalArgumentException when the pattern is not one bare %d between literal text, or holds a line break
+     */
+    public BatchResult receiveFileRange(String fileFullNamePattern, int rangeStart, int rangeEnd, String ipAddress, int sockPort,
+                                        String targetDownloadPath) throws IOException {
+        if (!FileUtils.isNamePattern(fileFullNamePattern)) {
+            throw new IllegalArgumentException("A file name pattern is one %d between literal text, without line breaks: " + fileFullNamePattern);
+        }
+        BatchResult batchResult = new BatchResult();
+        for (long from = rangeStart; from <= rangeEnd; from += ConstantUtils.MAX_BATCH_GET_SIZE) {
+            int to = (int) Math.min(rangeEnd, from + ConstantUtils.MAX_BATCH_GET_SIZE - 1);
+            List<String> names = new ArrayList<>();
+            for (int i = (int) from; i <= to; i++) {
+                names.add(String.format(fileFullNamePattern, i));
+            }
+            receiveBatch("MGET_RANGE " + from + " " + to + " " + fileFullNamePattern + "\n", names, ipAddress, sockPort,
+                    targetDownloadPath, batchResult);
+        }
+        return batchResult;
+    }
+
+    private void receiveBatch(String request, List<String> fileFullNames, String ipAddress, int sockPort, String targetDownloadPath,
+                              BatchResult batchResult) throws IOException {
+        if (tcpTransfer) {
+            try {
+                Boolean answered = request(ipAddress, sockPort, request, (answerStream, firstFrame) -> {
+                    if (firstFrame.startsWith("FAILED")) {
+                        return null;
+                    }
+                    receiveFrames(answerStream, firstFrame, new HashSet<>(fileFullNames), ipAddress, targetDownloadPath, batchResult);
+                    return Boolean.TRUE;
+                });
+                if (answered != null) {
+                    return;
+                }
+                System.out.println("The server (" + ipAddress + ":" + sockPort + ") does not serve batches, asking for one file at a time");
+            } catch (ConnectException e) {
+                System.out.println("The server (" + ipAddress + ":" + sockPort + ") does not serve files over TCP, asking over UDP");
+            }
+        }
+        for (String fileFullName : fileFullNames) {
+            String fileName = new File(fileFullName).getName();
+            try {
+                String downloadFileLocation = receiveFile(fileFullName, fileName, ipAddress, sockPort, targetDownloadPath);
+                batchResult.downloaded.put(fileFullName, downloadFileLocation);
+                batchResult.bytes += new File(downloadFileLocation).length();
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+                batchResult.failed.add(fileFullName);
+            }
+        }
+    }
+
+    /**
+     * Take the frames of a batch apart until its END. Small files are read whole and handed to the
+     * writer threads, while the bytes handed over and not yet written stay under BATCH_WRITE_BUFFER_BYTES;
+     * larger ones are written from the connection directly. Every frame must name a file of the request
+     * that no earlier frame named, any other frame fails the batch before its bytes are written.
+     * @param expectedNames the names requested, taken out as their frames arrive
+     */
+    private void receiveFrames(InputStream answerStream, String firstFrame, Set<String> expectedNames, String ipAddress,
+                               String targetDownloadPath, BatchResult batchResult) throws IOException {
+        Semaphore writeBuffer = new Semaphore(ConstantUtils.BATCH_WRITE_BUFFER_BYTES);
+        Map<String, Future<String>> writes = new LinkedHashMap<>();
+        String frame = firstFrame;
+        while (!frame.startsWith("END ")) {
+            if (frame.startsWith("MISSING ")) {
+                String fileFullName = frame.substring("MISSING ".length());
+                checkExpected(expectedNames, fileFullName, ipAddress);
+                batchResult.missing.add(fileFullName);
+            } else if (frame.startsWith("FILE ")) {
+                int nameStart = frame.indexOf(' ', "FILE ".length());
+                if (nameStart < 0) {
+                    throw new IOException("Bad batch frame from the server (" + ipAddress + "): " + frame);
+                }
+                long fileSize = Long.parseLong(frame.substring("FILE ".length(), nameStart));
+                String fileFullName = frame.substring(nameStart + 1);
+                checkExpected(expectedNames, fileFullName, ipAddress);
+                String fileName = new File(fileFullName).getName();
+                File downloadFile = downloadFileOf(fileName, targetDownloadPath);
+                if (fileSize <= ConstantUtils.BATCH_INLINE_FILE_BYTES) {
+                    byte[] content = answerStream.readNBytes((int) fileSize);
+                    if (content.length < fileSize) {
+                        throw new EOFException("The " + fileName + " file from " + ipAddress + " ended after " + content.length + " of " + fileSize + " bytes");
+                    }
+                    acquire(writeBuffer, content.length);
+                    writes.put(fileFullName, BATCH_WRITERS.submit(() -> {
+                        try {
+                            return writeFile(content, downloadFile);
+                        } finally {
+                            writeBuffer.release(content.length);
+                        }
+                    }));
+                } else {
+                    writes.put(fileFullName, CompletableFuture.completedFuture(
+                            writeStream(answerStream, fileSize, fileName, ipAddress, downloadFile, false)));
+                }
+                batchResult.bytes += fileSize;
+            } else {
+                throw new IOException("Bad batch frame from the server (" + ipAddress + "): " + frame);
+            }
+            frame = FileUtils.readLine(answerStream, ConstantUtils.FILE_BUFFER_SIZE * 2);
+            if (frame == null) {
+                throw new EOFException("The server (" + ipAddress + ") closed the connection inside a batch");
+            }
+        }
+        for (Map.Entry<String, Future<String>> write : writes.entrySet()) {
+            try {
+                batchResult.downloaded.put(write.getKey(), write.getValue().get());
+            } catch (ExecutionException e) {
+                System.err.println("Writing " + write.getKey() + " failed: " + e.getCause());
+                batchResult.failed.add(write.getKey());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while writing the batch");
+            }
+        }
+    }
+
+    private static void checkExpected(Set<String> expectedNames, String fileFullName, String ipAddress) throws IOException {
+        if (!expectedNames.remove(fileFullName)) {
+            throw new IOException("The server (" + ipAddress + ") sent " + fileFullName + ", which the batch did not ask for or had already received");
+        }
+    }
+
+    private static void acquire(Semaphore writeBuffer, int bytes) throws InterruptedIOException {
+        try {
+            writeBuffer.acquire(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the batch writers");
+        }
+    }
+
+    /**
+     * Reads the answer to one request; returning normally means it was read to its end.
+     */
+    private interface AnswerReader<T> {
+        T read(InputStream answerStream, String firstLine) throws IOException;
+    }
+
+    /**
+     * Send a request on a connection to the file server and read the answer. A pooled connection that
+     * fails before the first line of the answer may have been closed by the server meanwhile, the
+     * request is sent again once on a new one.
+     */
+    private <T> T request(String ipAddress, int sockPort, String request, AnswerReader<T> answerReader) throws IOException {
+        byte[] requestBytes = request.getBytes(StandardCharsets.UTF_8);
+        for (int attempt = 0; ; attempt++) {
+            PeerConnectionPool.Connection connection = connectionPool != null
+                    ? connectionPool.borrow(ipAddress, sockPort) : PeerConnectionPool.Connection.open(ipAddress, sockPort);
+            boolean reusable = false;
+            try {
+                String firstLine;
+                try {
+                    connection.getOutputStream().write(requestBytes);
+                    connection.getOutputStream().flush();
+                    firstLine = FileUtils.readLine(connection.getInputStream(), ConstantUtils.FILE_BUFFER_SIZE * 2);
+                    if (firstLine == null) {
+                        throw new EOFException("The server (" + ipAddress + ") closed the connection");
+                    }
+                } catch (IOException e) {
+                    if (connection.isReused() && attempt == 0) {
+                        continue;
+                    }
+                    throw e;
+                }
+                T answer = answerReader.read(connection.getInputStream(), firstLine);
+                reusable = true;
+                return answer;
+            } finally {
+                if (connectionPool != null) {
+                    connectionPool.release(connection, reusable);
+                } else {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Send "GET port name" in a datagram and receive the file on a listener of our own. The listener
+     * takes an ephemeral port and is open before the request goes out.
+     */
+    private String receiveFileOverUdp(String fileFullName,String fileName, String ipAddress, int sockPort,String targetDownloadPath) throws IOException {
         DatagramSocket commandSocket = null;
         ServerSocket fileStreamListener = null;
         Socket fileStreamSocket = null;
-        DataInputStream fileInputStream = null;
-        DataOutputStream fileOutputStream = null;
-        File downloadFile;
         try {
+            // Opening port for receiving file stream
+            fileStreamListener = new ServerSocket(0);
+            fileStreamListener.setSoTimeout(ConstantUtils.FILE_REQUEST_TIMEOUT_MILLIS);
+            int fileStreamPort = fileStreamListener.getLocalPort();
+
             // Send command for requesting files
             commandSocket = new DatagramSocket();
-            byte[] outputDataBuffer = ("GET " + ConstantUtils.FILE_STREAM_PORT + " " + fileFullName + " ").getBytes();
+            commandSocket.setSoTimeout(ConstantUtils.FILE_REQUEST_TIMEOUT_MILLIS);
+            byte[] outputDataBuffer = ("GET " + fileStreamPort + " " + fileFullName + " ").getBytes();
             DatagramPacket outputPacket = new DatagramPacket(outputDataBuffer,
                     outputDataBuffer.length, InetAddress.getByName(ipAddress), sockPort);
             commandSocket.send(outputPacket);
@@ -32,66 +332,116 @@ public class FileReceiver {
             }
             System.out.println("p2p client get ACCEPT ,fileName: "+fileName+",from "+inputPacket.getAddress().toString().substring(1));
 
-            if(targetDownloadPath==null){
-                Path downloadPath = FileUtils.getUserDownloadPath();
-                Path filePath = downloadPath.resolve(fileName);
-                downloadFile = filePath.toFile();
-            }else{
-                downloadFile = new File(targetDownloadPath+fileName);
-            }
-            // Opening port for receiving file stream
-            fileStreamListener = new ServerSocket(ConstantUtils.FILE_STREAM_PORT);
             fileStreamSocket = fileStreamListener.accept();
-
-            // Receiving Data Stream
-            fileInputStream = new DataInputStream(new BufferedInputStream(fileStreamSocket.getInputStream()));
-            fileOutputStream = new DataOutputStream(new BufferedOutputStream(new BufferedOutputStream(new FileOutputStream(downloadFile))));
-
             String[] commands = command.split(" ");
             long fileSize = Long.parseLong(commands[1]);
-
-            byte[] fileBuffer = new byte[ConstantUtils.FILE_BUFFER_SIZE];
-            int bytesRead;
-            long totalBytesRead = 0;
-
-            while (totalBytesRead < fileSize) {
-                bytesRead = fileInputStream.read(fileBuffer);
-                if (bytesRead == -1) {
-                    break;
-                }
-                fileOutputStream.write(fileBuffer, 0, bytesRead);
-                totalBytesRead += bytesRead;
-
-                int progress = (int) ((totalBytesRead * 100) / fileSize);
-                displayProgressBar(fileName,progress);
-            }
-            fileOutputStream.flush();
-            System.out.print("\n");
-            return downloadFile.getPath();
+            return receiveStream(new BufferedInputStream(fileStreamSocket.getInputStream()), fileSize, fileName, ipAddress, targetDownloadPath);
         } finally {
             try {
                 if (commandSocket != null) {
                     commandSocket.close();
                 }
-                if (fileInputStream != null) {
-                    fileInputStream.close();
-                }
-                if (fileOutputStream != null) {
-                    fileOutputStream.close();
-                }
                 if (fileStreamSocket != null) {
                     fileStreamSocket.close();
                 }
                 if (fileStreamListener != null) {
                     fileStreamListener.close();
                 }
-
             } catch (IOException ex) {
                 ex.printStackTrace();
             }
         }
     }
 
+    /**
+     * Write the next fileSize bytes of the stream to a part file and move it over the target.
+     * @return the path of the downloaded file
+     */
+    private String receiveStream(InputStream fileInputStream, long fileSize, String fileName, String ipAddress,
+                                 String targetDownloadPath) throws IOException {
+        return writeStream(fileInputStream, fileSize, fileName, ipAddress, downloadFileOf(fileName, targetDownloadPath), true);
+    }
+
+    private static File downloadFileOf(String fileName, String targetDownloadPath) throws IOException {
+        if(targetDownloadPath==null){
+            Path downloadPath = FileUtils.getUserDownloadPath();
+            Path filePath = downloadPath.resolve(fileName);
+            return filePath.toFile();
+        }else{
+            return new File(targetDownloadPath+fileName);
+        }
+    }
+
+    private static File partFileOf(File downloadFile) {
+        return new File(downloadFile.getPath() + ".part" + ProcessHandle.current().pid() + "-" + PART_SEQUENCE.incrementAndGet());
+    }
+
+    private String writeStream(InputStream fileInputStream, long fileSize, String fileName, String ipAddress,
+                               File downloadFile, boolean showProgress) throws IOException {
+        File partFile = partFileOf(downloadFile);
+        boolean complete = false;
+        try {
+            long totalBytesRead = 0;
+            try (OutputStream fileOutputStream = new BufferedOutputStream(new FileOutputStream(partFile))) {
+                byte[] fileBuffer = new byte[ConstantUtils.FILE_BUFFER_SIZE];
+                int bytesRead;
+                int shownProgress = -1;
+
+                while (totalBytesRead < fileSize) {
+                    // Never read past this file, the connection may carry another one after it
+                    bytesRead = fileInputStream.read(fileBuffer, 0, (int) Math.min(fileBuffer.length, fileSize - totalBytesRead));
+                    if (bytesRead == -1) {
+                        break;
+                    }
+                    fileOutputStream.write(fileBuffer, 0, bytesRead);
+                    totalBytesRead += bytesRead;
+
+                    int progress = (int) ((totalBytesRead * 100) / fileSize);
+                    if (showProgress && progress != shownProgress) {
+                        displayProgressBar(fileName,progress);
+                        shownProgress = progress;
+                    }
+                }
+            }
+            if (showProgress) {
+                System.out.print("\n");
+            }
+            if (totalBytesRead < fileSize) {
+                throw new IOException("The " + fileName + " file from " + ipAddress + " ended after " + totalBytesRead + " of " + fileSize + " bytes");
+            }
+            moveIntoPlace(partFile, downloadFile);
+            complete = true;
+            return downloadFile.getPath();
+        } finally {
+            if (!complete) {
+                Files.deleteIfExists(partFile.toPath());
+            }
+        }
+    }
+
+    private static String writeFile(byte[] content, File downloadFile) throws IOException {
+        File partFile = partFileOf(downloadFile);
+        boolean complete = false;
+        try {
+            Files.write(partFile.toPath(), content);
+            moveIntoPlace(partFile, downloadFile);
+            complete = true;
+            return downloadFile.getPath();
+        } finally {
+            if (!complete) {
+                Files.deleteIfExists(partFile.toPath());
+            }
+        }
+    }
+
+    private static void moveIntoPlace(File partFile, File downloadFile) throws IOException {
+        try {
+            Files.move(partFile.toPath(), downloadFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(partFile.toPath(), downloadFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
     private void displayProgressBar(String fileName,int progress) {
         // The progress bar is displayed on the console,
         // and ANSI escape sequences can be used to move the cursor and clear lines
@@ -108,4 +458,39 @@ public class FileReceiver {
 
     }
 
+    /**
+     * What became of the files of a batch, by the name they were asked for.
+     */
+    public static class BatchResult {
+        private final Map<String, String> downloaded = new LinkedHashMap<>();
+        private final List<String> missing = new ArrayList<>();
+        private final List<String> failed = new ArrayList<>();
+        private long bytes;
+
+        /**
+         * @return the path each downloaded file was written to
+         */
+        public Map<String, String> getDownloaded() {
+            return Collections.unmodifiableMap(downloaded);
+        }
+
+        /**
+         * @return the files the holder does not have
+         */
+        public List<String> getMissing() {
+            return Collections.unmodifiableList(missing);
+        }
+
+        /**
+         * @return the files that were sent but could not be written here, or were asked for one at a time and failed
+         */
+        public List<String> getFailed() {
+            return Collections.unmodifiableList(failed);
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+    }
+
 }
@@ -1,22 +1,67 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
+/**
+ * Serves this peer's files two ways, both on the same port number:
+ * <ul>
+ *     <li>TCP: the downloader connects and sends "GET name\n", the answer is "ACCEPT size\n" and the
+ *     bytes, or "FAILED reason\n". The connection stays open for the next GET until the downloader closes it.
+ *     A batch is "MGET count\n" followed by one name a line, or "MGET_RANGE start end pattern\n" for the
+ *     names String.format(pattern, start..end). It is answered one frame a file, "FILE size name\n" and
+ *     the bytes or "MISSING name\n", and then "END sent missing\n".</li>
+ *     <li>UDP: "GET port name " in a datagram, answered with an ACCEPT datagram, after which the file is
+ *     sent over a connection to the downloader's port. Kept for peers that do not speak TCP yet.</li>
+ * </ul>
+ */
 public class FileServer {
     private static Logger LOGGER = Logger.getLogger("peer_server");
     private final DatagramSocket commandSocket;
+    private final ServerSocketChannel streamListener;
     private final ExecutorService workerThreadPool;
+    /** files being sent right now, reported to the index server with every heartbeat **/
+    private final AtomicInteger activeUploads = new AtomicInteger();
+    /** send files with FileChannel.transferTo (sendfile) instead of copying them through a heap buffer **/
+    private final boolean zeroCopy;
+    /** set once transferTo failed where the buffer copy worked, every later file is copied through the buffer **/
+    private static volatile boolean zeroCopyUnsupported;
 
-    public FileServer(int port) throws SocketException {
+    public FileServer(int port) throws IOException {
+        this(port, ConstantUtils.FILE_SERVER_ZERO_COPY);
+    }
+
+    public FileServer(int port, boolean zeroCopy) throws IOException {
+        this.zeroCopy = zeroCopy;
         this.commandSocket = new DatagramSocket(port);
+        try {
+            this.streamListener = ServerSocketChannel.open();
+            this.streamListener.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            commandSocket.close();
+            throw e;
+        }
         this.workerThreadPool = Executors.newFixedThreadPool(ConstantUtils.THREAD_POOL_SIZE);
         LOGGER.info("The file server is started successfully. port: " + port);
     }
 
     public void startFileServer() {
+        Thread streamAcceptor = new Thread(this::acceptStreams, "file-server-tcp");
+        streamAcceptor.setDaemon(true);
+        streamAcceptor.start();
         while(true) {
             try {
                 byte[] inputDataBuffer = new byte[ConstantUtils.FILE_BUFFER_SIZE];
@@ -30,6 +75,226 @@ public class FileServer {
         }
     }
 
+    public int getActiveUploads() {
+        return activeUploads.get();
+    }
+
+    private void acceptStreams() {
+        while (streamListener.isOpen()) {
+            try {
+                SocketChannel socketChannel = streamListener.accept();
+                workerThreadPool.submit(() -> serveStream(socketChannel));
+            } catch (IOException e) {
+                if (streamListener.isOpen()) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Answer the GETs of one connection in turn, until the downloader closes it or stays silent
+     * for FILE_REQUEST_TIMEOUT_MILLIS.
+     */
+    private void serveStream(SocketChannel socketChannel) {
+        String ipAddress = "";
+        try (SocketChannel channel = socketChannel) {
+            Socket socket = channel.socket();
+            ipAddress = socket.getInetAddress().getHostAddress();
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(ConstantUtils.FILE_REQUEST_TIMEOUT_MILLIS);
+            InputStream requestStream = new BufferedInputStream(socket.getInputStream(), ConstantUtils.FILE_BUFFER_SIZE);
+            String request;
+            while ((request = FileUtils.readLine(requestStream, ConstantUtils.FILE_BUFFER_SIZE)) != null) {
+                if (!serveRequest(channel, requestStream, ipAddress, request)) {
+                    break;
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // An idle downloader, the connection is closed
+        } catch (IOException e) {
+            LOGGER.warning("file stream to " + ipAddress + " failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return whether the connection can take another request
+     */
+    private boolean serveRequest(SocketChannel socketChannel, InputStream requestStream, String ipAddress, String request) throws IOException {
+        if (request.startsWith("MGET ") || request.startsWith("MGET_RANGE ")) {
+            List<String> fileNames = batchFileNames(requestStream, request);
+            if (fileNames == null) {
+                writeLine(socketChannel, "FAILED Bad batch, at most " + ConstantUtils.MAX_BATCH_GET_SIZE + " files and a pattern of one %d");
+                return false;
+            }
+            return sendBatch(socketChannel, ipAddress, fileNames);
+        }
+        if (!request.startsWith("GET ")) {
+            writeLine(socketChannel, "FAILED Unknown command");
+            return false;
+        }
+        String fileName = request.substring("GET ".length());
+        if (FileUtils.getFileSizeInBytes(fileName) < 0) {
+            System.err.println("send stream to " + ipAddress + " error,fileName: " + fileName + " ,no such file");
+            writeLine(socketChannel, "FAILED No such file");
+            return true;
+        }
+        try (FileChannel fileChannel = FileChannel.open(new File(fileName).toPath(), StandardOpenOption.READ)) {
+            long fileSize = fileChannel.size();
+            writeLine(socketChannel, "ACCEPT " + fileSize);
+            activeUploads.incrementAndGet();
+            long sent;
+            try {
+                sent = zeroCopy ? transferFile(fileChannel, socketChannel) : copyFile(fileChannel, socketChannel);
+            } finally {
+                activeUploads.decrementAndGet();
+            }
+            if (sent != fileSize) {
+                // The downloader waits for the size announced, the rest of the connection is out of step
+                LOGGER.warning("send stream to " + ipAddress + " cut short, file " + fileName + " changed from " + fileSize + " to " + sent + " bytes");
+                return false;
+            }
+            LOGGER.info("send stream to " + ipAddress + " finished , file " + fileName + " ,fileSize= " + fileSize);
+            return true;
+        } catch (NoSuchFileException | AccessDeniedException e) {
+            System.err.println("send stream to " + ipAddress + " error,fileName: " + fileName + " ,message: " + e.getMessage());
+            writeLine(socketChannel, "FAILED No such file");
+            return true;
+        }
+    }
+
+    /**
+     * @return the names a batch request asks for, null when it is malformed, too big, or its pattern is not
+     * one bare %d between literal text
+     */
+    private static List<String> batchFileNames(InputStream requestStream, String request) throws IOException {
+        List<String> fileNames = new ArrayList<>();
+        try {
+            if (request.startsWith("MGET_RANGE ")) {
+                String[] parts = request.split(" ", 4);
+                int rangeStart = Integer.parseInt(parts[1]);
+                int rangeEnd = Integer.parseInt(parts[2]);
+                if (parts.length < 4 || !FileUtils.isNamePattern(parts[3])
+                        || rangeEnd < rangeStart || (long) rangeEnd - rangeStart >= ConstantUtils.MAX_BATCH_GET_SIZE) {
+                    return null;
+                }
+                for (int i = rangeStart; i <= rangeEnd; i++) {
+                    fileNames.add(String.format(parts[3], i));
+                }
+            } else {
+                int count = Integer.parseInt(request.substring("MGET ".length()).trim());
+                if (count < 0 || count > ConstantUtils.MAX_BATCH_GET_SIZE) {
+                    return null;
+                }
+                for (int i = 0; i < count; i++) {
+                    String fileName = FileUtils.readLine(requestStream, ConstantUtils.FILE_BUFFER_SIZE);
+                    if (fileName == null) {
+                        throw new EOFException("The batch ended after " + i + " of " + count + " names");
+                    }
+                    fileNames.add(fileName);
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return null;
+        }
+        return fileNames;
+    }
+
+    /**
+     * Stream the files back to back. Files that fit go into one buffer with their frame headers, so a
+     * run of small files leaves in a few large writes; bigger ones follow their header with transferTo.
+     * @return whether the connection can take another request
+     */
+    private boolean sendBatch(SocketChannel socketChannel, String ipAddress, List<String> fileNames) throws IOException {
+        ByteBuffer frames = ByteBuffer.allocateDirect(ConstantUtils.BATCH_FRAME_BUFFER_SIZE);
+        int sent = 0;
+        int missing = 0;
+        activeUploads.incrementAndGet();
+        try {
+            for (String fileName : fileNames) {
+                if (FileUtils.getFileSizeInBytes(fileName) < 0) {
+                    putLine(frames, socketChannel, "MISSING " + fileName);
+                    missing++;
+                    continue;
+                }
+                try (FileChannel fileChannel = FileChannel.open(new File(fileName).toPath(), StandardOpenOption.READ)) {
+                    long fileSize = fileChannel.size();
+                    byte[] header = ("FILE " + fileSize + " " + fileName + "\n").getBytes(StandardCharsets.UTF_8);
+                    if (header.length + fileSize <= frames.capacity()) {
+                        if (frames.remaining() < header.length + fileSize) {
+                            flush(frames, socketChannel);
+                        }
+                        int frameStart = frames.position();
+                        frames.put(header);
+                        if (!readFully(fileChannel, frames, (int) fileSize)) {
+                            // Shrank since it was measured, nothing of it has left yet
+                            frames.position(frameStart);
+                            putLine(frames, socketChannel, "MISSING " + fileName);
+                            missing++;
+                            continue;
+                        }
+                    } else {
+                        putLine(frames, socketChannel, "FILE " + fileSize + " " + fileName);
+                        flush(frames, socketChannel);
+                        long fileSent = zeroCopy ? transferFile(fileChannel, socketChannel) : copyFile(fileChannel, socketChannel);
+                        if (fileSent != fileSize) {
+                            LOGGER.warning("batch stream to " + ipAddress + " cut short, file " + fileName + " changed from " + fileSize + " to " + fileSent + " bytes");
+                            return false;
+                        }
+                    }
+                    sent++;
+                } catch (NoSuchFileException | AccessDeniedException e) {
+                    putLine(frames, socketChannel, "MISSING " + fileName);
+                    missing++;
+                }
+            }
+            putLine(frames, socketChannel, "END " + sent + " " + missing);
+            flush(frames, socketChannel);
+        } finally {
+            activeUploads.decrementAndGet();
+        }
+        LOGGER.info("batch stream to " + ipAddress + " finished , " + sent + " files sent, " + missing + " missing");
+        return true;
+    }
+
+    private static boolean readFully(FileChannel fileChannel, ByteBuffer frames, int fileSize) throws IOException {
+        int end = frames.position() + fileSize;
+        frames.limit(end);
+        try {
+            while (frames.position() < end) {
+                if (fileChannel.read(frames) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            frames.limit(frames.capacity());
+        }
+    }
+
+    private static void putLine(ByteBuffer frames, SocketChannel socketChannel, String line) throws IOException {
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        if (frames.remaining() < bytes.length) {
+            flush(frames, socketChannel);
+        }
+        frames.put(bytes);
+    }
+
+    private static void flush(ByteBuffer frames, SocketChannel socketChannel) throws IOException {
+        frames.flip();
+        while (frames.hasRemaining()) {
+            socketChannel.write(frames);
+        }
+        frames.clear();
+    }
+
+    private static void writeLine(SocketChannel socketChannel, String line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            socketChannel.write(buffer);
+        }
+    }
+
     private void accept(DatagramPacket inputPacket) {
         String command = new String(inputPacket.getData());
         String ipAddress = inputPacket.getAddress().toString().substring(1);
@@ -46,8 +311,14 @@ public class FileServer {
                 if (fileSize>=0) {
                     outputDataBuffer = ("ACCEPT "+fileSize+" ").getBytes();
                     sendDatagram(outputDataBuffer, ipAddress, port);
-                    TimeUnit.MILLISECONDS.sleep(200);
-                    sendFileStream(ipAddress, sendStreamPort, fileName);
+                    activeUploads.incrementAndGet();
+                    try {
+                        // Downloaders from before the TCP mode only start listening once they have the ACCEPT
+                        TimeUnit.MILLISECONDS.sleep(200);
+                        sendFileStream(ipAddress, sendStreamPort, fileName, zeroCopy);
+                    } finally {
+                        activeUploads.decrementAndGet();
+                    }
                     LOGGER.info("send stream to "+ipAddress+":"+port+" finished , file "+fileName+" ,fileSize= "+fileSize);
                 } else {
                     System.err.println("send stream to " + ipAddress + ":" + port + "error,fileName: "+fileName+" ,fileSize= "+fileSize);
@@ -71,10 +342,74 @@ public class FileServer {
         }
     }
 
-    private void sendFileStream(String ipAddress, int port, String fileName) {
+    /**
+     * Connect to the downloader and send it the file.
+     * @return the bytes sent, -1 when sending failed
+     */
+    static long sendFileStream(String ipAddress, int port, String fileName, boolean zeroCopy) {
+        if (!zeroCopy) {
+            return copyFileStream(ipAddress, port, fileName);
+        }
+        try (FileChannel fileChannel = FileChannel.open(new File(fileName).toPath(), StandardOpenOption.READ);
+             SocketChannel socketChannel = SocketChannel.open(new InetSocketAddress(ipAddress, port))) {
+            return transferFile(fileChannel, socketChannel);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return -1;
+        }
+    }
+
+    /**
+     * Send the whole file with transferTo, which the JDK maps to sendfile: the bytes go from the page
+     * cache to the socket without passing through user space. Where transferTo fails before it sent
+     * anything, the file goes through a buffer on the same connection instead, and so does every
+     * later file once that worked.
+     */
+    static long transferFile(FileChannel fileChannel, SocketChannel socketChannel) throws IOException {
+        long size = fileChannel.size();
+        long position = 0;
+        if (!zeroCopyUnsupported) {
+            try {
+                while (position < size) {
+                    long sent = fileChannel.transferTo(position, size - position, socketChannel);
+                    if (sent <= 0 && fileChannel.size() <= position) {
+                        // The file shrank while it was being sent
+                        return position;
+                    }
+                    position += sent;
+                }
+                return position;
+            } catch (IOException | UnsupportedOperationException ex) {
+                if (position > 0) {
+                    throw new IOException("transferTo failed after " + position + " bytes", ex);
+                }
+                long sent = copyFile(fileChannel, socketChannel);
+                zeroCopyUnsupported = true;
+                LOGGER.warning("FileChannel.transferTo failed, files are copied through a buffer from now on: " + ex);
+                return sent;
+            }
+        }
+        return copyFile(fileChannel, socketChannel);
+    }
+
+    private static long copyFile(FileChannel fileChannel, SocketChannel socketChannel) throws IOException {
+        ByteBuffer fileBuffer = ByteBuffer.allocate(ConstantUtils.FILE_BUFFER_SIZE);
+        long sent = 0;
+        while (fileChannel.read(fileBuffer, sent) > 0) {
+            fileBuffer.flip();
+            while (fileBuffer.hasRemaining()) {
+                sent += socketChannel.write(fileBuffer);
+            }
+            fileBuffer.clear();
+        }
+        return sent;
+    }
+
+    private static long copyFileStream(String ipAddress, int port, String fileName) {
         Socket clientFileSocket = null;
         DataInputStream fileInputStream = null;
         DataOutputStream fileOutputStream = null;
+        long sent = 0;
 
         try {
             clientFileSocket = new Socket(ipAddress, port);
@@ -85,10 +420,12 @@ public class FileServer {
             int bytesRead;
             while ((bytesRead = fileInputStream.read(fileBuffer)) != -1) {
                 fileOutputStream.write(fileBuffer, 0, bytesRead);
+                sent += bytesRead;
             }
             fileOutputStream.flush();
         } catch (IOException ex) {
             ex.printStackTrace();
+            return -1;
         } finally {
             // Close Socket and DataStream
             try {
@@ -105,6 +442,7 @@ public class FileServer {
                 ex.printStackTrace();
             }
         }
+        return sent;
     }
 
 
@@ -0,0 +1,107 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput and sender CPU of FileServer's two ways of sending a file: the 4 KB buffer copy and
+ * FileChannel.transferTo, for the 1 KB, 1 MB and 1 GB file classes. Every file goes over its own
+ * loopback connection as in a real download, to a receiver that drains and discards it. The files
+ * are created in the directory when missing and read once first, so both ways are served from the page cache.
+ * <p>
+ * Usage: java FileTransferBenchmark [directory] [gb files sent per round]
+ */
+public class FileTransferBenchmark {
+
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        File directory = new File(args.length > 0 ? args[0] : "transfer_bench");
+        int gbFiles = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        // file class, size, files sent per round
+        Object[][] classes = {
+                {"text_kb", 1024L, 2000},
+                {"text_mb", 1024L * 1024, 300},
+                {"binary_gb", 1024L * 1024 * 1024, gbFiles},
+        };
+
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress("127.0.0.1", 0));
+            int port = ((InetSocketAddress) listener.getLocalAddress()).getPort();
+            AtomicLong received = new AtomicLong();
+            Thread receiver = new Thread(() -> drain(listener, received), "transfer-receiver");
+            receiver.setDaemon(true);
+            receiver.start();
+
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            for (Object[] fileClass : classes) {
+                long size = (Long) fileClass[1];
+                int files = (Integer) fileClass[2];
+                File file = new File(directory, fileClass[0] + "_bench.bin");
+                if (file.length() != size) {
+                    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+                        randomAccessFile.setLength(size);
+                    }
+                }
+                FileServer.sendFileStream("127.0.0.1", port, file.getPath(), false);
+
+                double[] mbPerSecond = new double[2];
+                double[] cpuPerMb = new double[2];
+                for (int round = 0; round < ROUNDS; round++) {
+                    for (int way = 0; way < 2; way++) {
+                        boolean zeroCopy = way == 1;
+                        long startBytes = received.get();
+                        long startCpu = threads.getCurrentThreadCpuTime();
+                        long start = System.nanoTime();
+                        for (int i = 0; i < files; i++) {
+                            if (FileServer.sendFileStream("127.0.0.1", port, file.getPath(), zeroCopy) != size) {
+                                throw new IOException("Short send of " + file);
+                            }
+                        }
+                        // Wait for the receiver to drain the tail
+                        while (received.get() - startBytes < size * files) {
+                            Thread.onSpinWait();
+                        }
+                        long nanos = System.nanoTime() - start;
+                        long cpuNanos = threads.getCurrentThreadCpuTime() - startCpu;
+                        // the first round warms the JIT and the page cache up, it is left out
+                        if (round > 0) {
+                            double mb = size * (double) files / (1024 * 1024);
+                            mbPerSecond[way] += mb / (nanos / 1e9) / (ROUNDS - 1);
+                            cpuPerMb[way] += cpuNanos / 1e6 / mb / (ROUNDS - 1);
+                        }
+                    }
+                }
+                System.out.printf("%-9s x %4d: buffer copy %8.1f MB/s %7.3f sender CPU ms/MB, transferTo %8.1f MB/s %7.3f sender CPU ms/MB (%.2fx)%n",
+                        fileClass[0], files, mbPerSecond[0], cpuPerMb[0], mbPerSecond[1], cpuPerMb[1], mbPerSecond[1] / mbPerSecond[0]);
+            }
+        }
+    }
+
+    /**
+     * Accept one connection after another and count what arrives.
+     */
+    private static void drain(ServerSocketChannel listener, AtomicLong received) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+        while (true) {
+            try (SocketChannel channel = listener.accept()) {
+                int read;
+                while ((read = channel.read(buffer)) >= 0) {
+                    received.addAndGet(read);
+                    buffer.clear();
+                }
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+}
@@ -1,12 +1,17 @@
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.regex.Pattern;
 
 public class FileUtils {
     private FileUtils(){}
@@ -14,6 +19,17 @@ public class FileUtils {
     /** mark transfer success **/
     public static final byte[] successData = "success data mark".getBytes();
 
+    /** a literal prefix and suffix, "%%" for a percent sign, around one bare %d; no line breaks **/
+    private static final Pattern NAME_PATTERN = Pattern.compile("(?:[^%\\r\\n]|%%)*%d(?:[^%\\r\\n]|%%)*");
+
+    /**
+     * Whether a file name pattern may be given to String.format with one int. Patterns come from other
+     * peers and clients: a width such as %1000000000d would build a gigabyte name for every number.
+     */
+    public static boolean isNamePattern(String pattern) {
+        return pattern != null && NAME_PATTERN.matcher(pattern).matches();
+    }
+
     public static void main(String[] args) {
         byte[] b = new byte[]{1};
         System.out.println(isEqualsByteArray(successData,b));
@@ -115,6 +131,28 @@ public class FileUtils {
         return file.length();
     }
 
+    /**
+     * Read one "\n" terminated UTF-8 line of the file transfer protocol, without the terminator.
+     * @return null when the stream ends before the line starts
+     */
+    public static String readLine(InputStream inputStream, int maxBytes) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = inputStream.read()) != '\n') {
+            if (b == -1) {
+                if (line.size() == 0) {
+                    return null;
+                }
+                throw new EOFException("The stream ended inside a line");
+            }
+            if (line.size() >= maxBytes) {
+                throw new IOException("Line longer than " + maxBytes + " bytes");
+            }
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
     public static Path getUserDownloadPath() throws IOException {
         // 获取当前用户的 Downloads 目录路径
         String userHome = System.getProperty("user.home");
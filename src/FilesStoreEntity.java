@@ -1,16 +1,45 @@
 import java.io.Serializable;
 import java.util.Date;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Everything the index knows about one peer.
+ * Writers of a peer synchronize on its entity; lookups only read the volatile fields.
+ * Paths and file names are held as ids of the index server's symbol tables.
+ */
 public class FilesStoreEntity implements Serializable {
 
-    private Date addTime;
+    private volatile Date addTime;
     private String peerId;
-    private String fileServerAddress;
-    private Integer fileServerPort;
+    private volatile String fileServerAddress;
+    private volatile Integer fileServerPort;
 
-    private Map<String,List<String>> pathFilesMapping;
+    /**
+     * path id -> ids of the names registered under it, a set so re-registering a directory dedups in O(n)
+     */
+    private Map<Integer,IntHashSet> pathFilesMapping;
+
+    /**
+     * Set by unregister while holding the entity lock; a writer that finds it set must start over
+     */
+    private boolean removed;
+
+    /**
+     * End of the peer's lease in epoch millis, moved forward by every register and heartbeat; 0 when leases are off
+     */
+    private volatile long leaseExpireTime;
+    /**
+     * Load signals for ranking the peer in lookups, kept in memory only: uploads its file server reported
+     * with the last heartbeat, and download throughput in bytes per millisecond reported by downloaders, 0 while unknown
+     */
+    private volatile int activeUploads;
+    private volatile double throughput;
+    /**
+     * Lookups that named the peer first since assignedSince, the downloads it is about to get that no heartbeat counted yet
+     */
+    private final AtomicInteger assignedCount = new AtomicInteger();
+    private volatile long assignedSince;
 
     public Date getAddTime() {
         return addTime;
@@ -44,11 +73,55 @@ public class FilesStoreEntity implements Serializable {
         this.fileServerPort = fileServerPort;
     }
 
-    public Map<String, List<String>> getPathFilesMapping() {
+    public Map<Integer, IntHashSet> getPathFilesMapping() {
         return pathFilesMapping;
     }
 
-    public void setPathFilesMapping(Map<String, List<String>> pathFilesMapping) {
+    public void setPathFilesMapping(Map<Integer, IntHashSet> pathFilesMapping) {
         this.pathFilesMapping = pathFilesMapping;
     }
+
+    public long getLeaseExpireTime() {
+        return leaseExpireTime;
+    }
+
+    public void setLeaseExpireTime(long leaseExpireTime) {
+        this.leaseExpireTime = leaseExpireTime;
+    }
+
+    public int getActiveUploads() {
+        return activeUploads;
+    }
+
+    public void setActiveUploads(int activeUploads) {
+        this.activeUploads = activeUploads;
+    }
+
+    public double getThroughput() {
+        return throughput;
+    }
+
+    public void setThroughput(double throughput) {
+        this.throughput = throughput;
+    }
+
+    public AtomicInteger getAssignedCount() {
+        return assignedCount;
+    }
+
+    public long getAssignedSince() {
+        return assignedSince;
+    }
+
+    public void setAssignedSince(long assignedSince) {
+        this.assignedSince = assignedSince;
+    }
+
+    public boolean isRemoved() {
+        return removed;
+    }
+
+    public void setRemoved(boolean removed) {
+        this.removed = removed;
+    }
 }
@@ -0,0 +1,83 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring that assigns every file name to one index shard.
+ * Each shard ("host:port") is placed on the ring at many virtual nodes, so the names spread evenly
+ * and adding a shard only moves the names that fall into its new ranges, about 1/N of them.
+ * <p>
+ * Peers, the index servers and the rebalancer must all build the ring from the same shard list.
+ */
+public class HashRing {
+
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private final List<String> shards;
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+
+    public HashRing(List<String> shards, int virtualNodes) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("A hash ring needs at least one shard");
+        }
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+        for (String shard : shards) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(shard + "#" + i), shard);
+            }
+        }
+    }
+
+    /**
+     * @param shardList "host:port,host:port,..."
+     */
+    public static HashRing parse(String shardList) {
+        List<String> shards = new ArrayList<>();
+        for (String shard : shardList.split(",")) {
+            if (!shard.trim().isEmpty()) {
+                shards.add(shard.trim());
+            }
+        }
+        return new HashRing(shards, DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * @return the shard that owns the file name
+     */
+    public String shardFor(String fileName) {
+        Map.Entry<Long, String> owner = ring.ceilingEntry(hash(fileName));
+        return owner != null ? owner.getValue() : ring.firstEntry().getValue();
+    }
+
+    public List<String> getShards() {
+        return shards;
+    }
+
+    public static String hostOf(String shard) {
+        return shard.substring(0, shard.lastIndexOf(':'));
+    }
+
+    public static int portOf(String shard) {
+        return Integer.parseInt(shard.substring(shard.lastIndexOf(':') + 1));
+    }
+
+    /**
+     * 64 bit FNV-1a over the UTF-8 bytes with a murmur3 finalizer; fixed, so every JVM builds the same ring.
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
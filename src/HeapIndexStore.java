@@ -0,0 +1,90 @@
+import java.util.function.UnaryOperator;
+
+/**
+ * The index kept on the java heap: symbol tables plus a posting table.
+ * Starts empty on every run; durability comes from the write-ahead log.
+ */
+public class HeapIndexStore implements IndexStore {
+
+    private final SymbolTable fileNames = new SymbolTable();
+    private final SymbolTable filePaths = new SymbolTable();
+    private final SymbolTable peerKeys = new SymbolTable();
+    private final PostingTable postings = new PostingTable();
+
+    @Override
+    public int internName(String name) {
+        return fileNames.intern(name);
+    }
+
+    @Override
+    public int findName(String name) {
+        return fileNames.find(name);
+    }
+
+    @Override
+    public String getName(int nameId) {
+        return fileNames.symbol(nameId);
+    }
+
+    @Override
+    public int nameCount() {
+        return fileNames.size();
+    }
+
+    @Override
+    public int internPath(String path) {
+        return filePaths.intern(path);
+    }
+
+    @Override
+    public String getPath(int pathId) {
+        return filePaths.symbol(pathId);
+    }
+
+    @Override
+    public int internPeer(String peerId, String peerAddress) {
+        return peerKeys.intern(IndexStore.peerKey(peerId, peerAddress));
+    }
+
+    @Override
+    public int findPeer(String peerId, String peerAddress) {
+        return peerKeys.find(IndexStore.peerKey(peerId, peerAddress));
+    }
+
+    @Override
+    public String getPeerId(int peerKeyId) {
+        return IndexStore.peerIdOf(peerKeys.symbol(peerKeyId));
+    }
+
+    @Override
+    public String getPeerAddress(int peerKeyId) {
+        return IndexStore.peerAddressOf(peerKeys.symbol(peerKeyId));
+    }
+
+    @Override
+    public PostingList getPostings(int nameId) {
+        return postings.get(nameId);
+    }
+
+    @Override
+    public PostingList computePostings(int nameId, UnaryOperator<PostingList> remapping) {
+        return postings.compute(nameId, remapping);
+    }
+
+    @Override
+    public long getCheckpointSequence() {
+        return -1;
+    }
+
+    @Override
+    public void checkpoint(long walSequence) {
+    }
+
+    @Override
+    public void clear() {
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,242 @@
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntFunction;
+
+/**
+ * Picks the holders a LOOKUP for the best k hands out, so downloads spread over the peers instead of
+ * all going to the first one registered. A holder's cost is the time a download from it is expected
+ * to take: (uploads it reported + lookups that named it first since + 1) / its download throughput,
+ * halved when it is in the requester's subnet. Lower is better.
+ * <ul>
+ *     <li>SCORE: the k cheapest holders of the whole posting list, ties in random order</li>
+ *     <li>P2C: each of the k picks is the cheaper of two random holders (power of two choices), so a
+ *     lookup costs O(k) whatever the number of holders, and stale signals do not send every download
+ *     to the same peer</li>
+ *     <li>NONE: the first k in posting order</li>
+ * </ul>
+ */
+public class HolderRanker {
+
+    public enum Mode {
+        NONE, SCORE, P2C;
+
+        public static Mode fromConfig(String value) {
+            for (Mode mode : values()) {
+                if (mode.name().equalsIgnoreCase(value == null ? null : value.trim())) {
+                    return mode;
+                }
+            }
+            return P2C;
+        }
+    }
+
+    /** random holders tried per pick before P2C gives up on finding another live one **/
+    private static final int P2C_ATTEMPTS = 8;
+    /** weight of a new throughput report in the running average **/
+    private static final double THROUGHPUT_WEIGHT = 0.3;
+
+    private final Mode mode;
+    private final long assignedWindowMillis;
+
+    /**
+     * @param assignedWindowMillis how long a lookup counts against the holder it named first,
+     * about the time a download takes to show up in the holder's reported uploads
+     */
+    public HolderRanker(Mode mode, long assignedWindowMillis) {
+        this.mode = mode;
+        this.assignedWindowMillis = assignedWindowMillis;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @param holderOf entity of a posting's peer, null while the peer is being unregistered
+     * @return positions in the posting list of at most limit live holders, best first
+     */
+    public int[] rank(PostingList postingList, int limit, String requesterIp, IntFunction<FilesStoreEntity> holderOf) {
+        int size = postingList.size();
+        if (mode == Mode.P2C && (long) limit * 2 < size) {
+            return pickTwoChoices(postingList, limit, requesterIp, holderOf);
+        }
+        return cheapest(postingList, limit, requesterIp, holderOf);
+    }
+
+    /**
+     * Scan every posting from a random start, keeping the limit cheapest in a max-heap.
+     */
+    private int[] cheapest(PostingList postingList, int limit, String requesterIp, IntFunction<FilesStoreEntity> holderOf) {
+        int size = postingList.size();
+        int capacity = Math.min(limit, size);
+        int[] positions = new int[capacity];
+        double[] costs = new double[capacity];
+        int count = 0;
+        long now = System.currentTimeMillis();
+        int start = size == 0 ? 0 : ThreadLocalRandom.current().nextInt(size);
+        for (int n = 0; n < size; n++) {
+            int position = (start + n) % size;
+            FilesStoreEntity holder = holderOf.apply(postingList.getPeerId(position));
+            if (holder == null) {
+                continue;
+            }
+            double cost = mode == Mode.NONE ? position : cost(holder, requesterIp, now);
+            if (count < capacity) {
+                positions[count] = position;
+                costs[count] = cost;
+                siftUp(positions, costs, count++);
+            } else if (cost < costs[0]) {
+                positions[0] = position;
+                costs[0] = cost;
+                siftDown(positions, costs, count);
+            }
+        }
+        // Empty the heap from the back, the dearest first
+        for (int end = count - 1; end > 0; end--) {
+            swap(positions, costs, 0, end);
+            siftDown(positions, costs, end);
+        }
+        return count == capacity ? positions : Arrays.copyOf(positions, count);
+    }
+
+    private int[] pickTwoChoices(PostingList postingList, int limit, String requesterIp, IntFunction<FilesStoreEntity> holderOf) {
+        int size = postingList.size();
+        int[] positions = new int[limit];
+        IntHashSet picked = new IntHashSet();
+        int count = 0;
+        long now = System.currentTimeMillis();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (count < limit) {
+            int best = -1;
+            double bestCost = 0;
+            for (int choice = 0; choice < 2; choice++) {
+                for (int attempt = 0; attempt < P2C_ATTEMPTS; attempt++) {
+                    int position = random.nextInt(size);
+                    if (position == best || picked.contains(position)) {
+                        continue;
+                    }
+                    FilesStoreEntity holder = holderOf.apply(postingList.getPeerId(position));
+                    if (holder == null) {
+                        continue;
+                    }
+                    double cost = cost(holder, requesterIp, now);
+                    if (best < 0 || cost < bestCost) {
+                        best = position;
+                        bestCost = cost;
+                    }
+                    break;
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+            picked.add(best);
+            positions[count++] = best;
+        }
+        return count == limit ? positions : Arrays.copyOf(positions, count);
+    }
+
+    double cost(FilesStoreEntity holder, String requesterIp, long now) {
+        double load = holder.getActiveUploads() + recentlyAssigned(holder, now) + 1;
+        double throughput = holder.getThroughput() > 0 ? holder.getThroughput() : ConstantUtils.RANKING_DEFAULT_THROUGHPUT;
+        double cost = load / throughput;
+        if (requesterIp != null && sameSubnet(requesterIp, holder.getFileServerAddress())) {
+            cost *= ConstantUtils.RANKING_SAME_SUBNET_FACTOR;
+        }
+        return cost;
+    }
+
+    private int recentlyAssigned(FilesStoreEntity holder, long now) {
+        return now - holder.getAssignedSince() > assignedWindowMillis ? 0 : holder.getAssignedCount().get();
+    }
+
+    /**
+     * The lookup named the holder first, its downloader is about to start.
+     */
+    public void assigned(FilesStoreEntity holder) {
+        if (mode == Mode.NONE) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now - holder.getAssignedSince() > assignedWindowMillis) {
+            holder.setAssignedSince(now);
+            holder.getAssignedCount().set(0);
+        }
+        holder.getAssignedCount().incrementAndGet();
+    }
+
+    /**
+     * A heartbeat reported the holder's uploads, the downloads assigned to it so far are in that count.
+     */
+    public static void reportUploads(FilesStoreEntity holder, int activeUploads) {
+        holder.setActiveUploads(Math.max(0, activeUploads));
+        holder.getAssignedCount().set(0);
+    }
+
+    /**
+     * A downloader reported a finished download from the holder. Small files say more about latency
+     * than about bandwidth, they are left out of the average.
+     */
+    public static void reportTransfer(FilesStoreEntity holder, long bytes, long millis) {
+        if (bytes < ConstantUtils.RANKING_MIN_REPORT_BYTES) {
+            return;
+        }
+        double throughput = (double) bytes / Math.max(1, millis);
+        double previous = holder.getThroughput();
+        holder.setThroughput(previous <= 0 ? throughput : previous + THROUGHPUT_WEIGHT * (throughput - previous));
+    }
+
+    /**
+     * Same /24 for IPv4 addresses, the same address otherwise.
+     */
+    static boolean sameSubnet(String address, String other) {
+        if (other == null) {
+            return false;
+        }
+        int prefix = address.lastIndexOf('.');
+        if (prefix < 0 || address.indexOf(':') >= 0) {
+            return address.equals(other);
+        }
+        return other.length() > prefix && address.regionMatches(0, other, 0, prefix + 1);
+    }
+
+    private static void siftUp(int[] positions, double[] costs, int index) {
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (costs[parent] >= costs[index]) {
+                return;
+            }
+            swap(positions, costs, parent, index);
+            index = parent;
+        }
+    }
+
+    private static void siftDown(int[] positions, double[] costs, int size) {
+        int index = 0;
+        while (true) {
+            int largest = index;
+            int left = index * 2 + 1;
+            int right = left + 1;
+            if (left < size && costs[left] > costs[largest]) {
+                largest = left;
+            }
+            if (right < size && costs[right] > costs[largest]) {
+                largest = right;
+            }
+            if (largest == index) {
+                return;
+            }
+            swap(positions, costs, largest, index);
+            index = largest;
+        }
+    }
+
+    private static void swap(int[] positions, double[] costs, int i, int j) {
+        int position = positions[i];
+        positions[i] = positions[j];
+        positions[j] = position;
+        double cost = costs[i];
+        costs[i] = costs[j];
+        costs[j] = cost;
+    }
+}
@@ -0,0 +1,169 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * How evenly each ranking mode spreads downloads over the holders of one file, and what that does to
+ * download times. An in-process index server is asked LOOKUP limit 1 by downloader threads; every
+ * download is simulated as a sleep of its size over the holder's bandwidth, shared by the holder's
+ * uploads at that moment. Holders heartbeat their upload counts, downloaders report their transfers.
+ * <p>
+ * Usage: java HolderRankingBenchmark [holders] [downloaders] [seconds per mode]
+ */
+public class HolderRankingBenchmark {
+
+    private static final long FILE_BYTES = 256 * 1024;
+    /** bandwidth of the holders in bytes per millisecond, holder i gets BANDWIDTHS[i % length] **/
+    private static final double[] BANDWIDTHS = {2000, 4000, 8000, 16000};
+    private static final long HEARTBEAT_MILLIS = 500;
+    private static final String DOWNLOADER_IP = "10.1.0.1";
+
+    public static void main(String[] args) throws Exception {
+        int holders = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int downloaders = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        long roundMillis = (args.length > 2 ? Integer.parseInt(args[2]) : 5) * 1000L;
+
+        Logger rootLogger = Logger.getLogger("");
+        rootLogger.setLevel(Level.OFF);
+        for (Handler handler : rootLogger.getHandlers()) {
+            handler.setLevel(Level.OFF);
+        }
+
+        for (HolderRanker.Mode mode : HolderRanker.Mode.values()) {
+            IndexServer indexServer = new IndexServer();
+            indexServer.setHolderRanker(new HolderRanker(mode, ConstantUtils.RANKING_ASSIGNED_WINDOW_MILLIS));
+            for (int i = 0; i < holders; i++) {
+                IndexRequest register = new IndexRequest();
+                register.setRequestType(RequestTypeEnum.REGISTER.getCode());
+                register.setIndexRegister(new IndexRequest.IndexRegister());
+                register.getIndexRegister().setPeerId("holder" + i);
+                register.getIndexRegister().setFilePath("/files/");
+                register.getIndexRegister().setFiles(new ArrayList<>(List.of("binary_mb_1.bin")));
+                indexServer.handleRequest(register, addressOf(i));
+            }
+            run(indexServer, mode, holders, downloaders, roundMillis);
+        }
+        System.exit(0);
+    }
+
+    private static void run(IndexServer indexServer, HolderRanker.Mode mode, int holders, int downloaders,
+                            long roundMillis) throws InterruptedException {
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicInteger[] uploads = new AtomicInteger[holders];
+        for (int i = 0; i < holders; i++) {
+            uploads[i] = new AtomicInteger();
+        }
+        AtomicLongArray served = new AtomicLongArray(holders);
+        List<long[]> durations = new ArrayList<>();
+
+        Thread heartbeats = new Thread(() -> {
+            while (running.get()) {
+                for (int i = 0; i < holders; i++) {
+                    IndexRequest heartbeat = new IndexRequest();
+                    heartbeat.setRequestType(RequestTypeEnum.HEARTBEAT.getCode());
+                    heartbeat.setIndexRegister(new IndexRequest.IndexRegister());
+                    heartbeat.getIndexRegister().setPeerId("holder" + i);
+                    heartbeat.getIndexRegister().setActiveUploads(uploads[i].get());
+                    indexServer.handleRequest(heartbeat, addressOf(i));
+                }
+                sleep(HEARTBEAT_MILLIS);
+            }
+        });
+        heartbeats.start();
+
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < downloaders; t++) {
+            long[] downloadMillis = new long[1 << 16];
+            durations.add(downloadMillis);
+            Thread worker = new Thread(() -> {
+                int n = 0;
+                while (running.get() && n < downloadMillis.length - 1) {
+                    IndexRequest lookup = new IndexRequest();
+                    lookup.setRequestType(RequestTypeEnum.LOOKUP.getCode());
+                    lookup.setIndexSearch(new IndexRequest.IndexSearch());
+                    lookup.getIndexSearch().setFileName("binary_mb_1.bin");
+                    lookup.getIndexSearch().setLimit(1);
+                    IndexResponse.LookupItem holder = indexServer.handleRequest(lookup, DOWNLOADER_IP)
+                            .getData().getPeerAndIpMapping().values().iterator().next();
+                    int i = Integer.parseInt(holder.getPeerId().substring("holder".length()));
+
+                    long start = System.currentTimeMillis();
+                    int sharing = uploads[i].incrementAndGet();
+                    sleep((long) (FILE_BYTES * sharing / BANDWIDTHS[i % BANDWIDTHS.length]));
+                    uploads[i].decrementAndGet();
+                    long millis = System.currentTimeMillis() - start;
+                    served.incrementAndGet(i);
+                    downloadMillis[++n] = millis;
+                    downloadMillis[0] = n;
+
+                    IndexRequest report = new IndexRequest();
+                    report.setRequestType(RequestTypeEnum.TRANSFER_REPORT.getCode());
+                    report.setIndexRegister(new IndexRequest.IndexRegister());
+                    report.getIndexRegister().setPeerId(holder.getPeerId());
+                    report.getIndexRegister().setPeerAddress(holder.getFileServerAddress());
+                    report.getIndexRegister().setTransferBytes(FILE_BYTES);
+                    report.getIndexRegister().setTransferMillis(millis);
+                    indexServer.handleRequest(report, DOWNLOADER_IP);
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        sleep(roundMillis);
+        running.set(false);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        heartbeats.join();
+
+        int total = 0;
+        for (long[] downloadMillis : durations) {
+            total += (int) downloadMillis[0];
+        }
+        long[] all = new long[total];
+        int k = 0;
+        for (long[] downloadMillis : durations) {
+            for (int n = 1; n <= downloadMillis[0]; n++) {
+                all[k++] = downloadMillis[n];
+            }
+        }
+        Arrays.sort(all);
+        long busiest = 0;
+        int idle = 0;
+        StringBuilder share = new StringBuilder();
+        for (int i = 0; i < holders; i++) {
+            busiest = Math.max(busiest, served.get(i));
+            idle += served.get(i) == 0 ? 1 : 0;
+            share.append(i == 0 ? "" : " ").append(served.get(i));
+        }
+        System.out.printf("%-5s %6d downloads (%.0f/s), busiest holder %.0f%%, %d idle, download ms p50 %d p99 %d max %d%n",
+                mode, total, total * 1000.0 / roundMillis, 100.0 * busiest / Math.max(1, total), idle,
+                percentile(all, 50), percentile(all, 99), total == 0 ? 0 : all[total - 1]);
+        System.out.println("      downloads per holder: " + share);
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(sorted.length * percentile / 100) - 1)];
+    }
+
+    private static String addressOf(int holder) {
+        return "10.0." + (holder / 250) + "." + (holder % 250 + 1);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
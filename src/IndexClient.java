@@ -0,0 +1,252 @@
+import java.io.*;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connection from a peer to the index server.
+ * The binary codec is tried first; when the server does not understand it
+ * the client reconnects and falls back to java serialization.
+ * <p>
+ * Every request is tagged with a request id, so any number of threads can have
+ * requests outstanding on the one socket; a reader thread hands each response
+ * to the future waiting for its id.
+ */
+public class IndexClient implements IndexService {
+
+    private static final int MAX_CHUNKS_IN_FLIGHT = 4;
+
+    private final String serverAddress;
+    private final int serverPort;
+    private final IndexTransport transport;
+    private final AtomicLong nextRequestId = new AtomicLong(1);
+    private final ConcurrentNavigableMap<Long, CompletableFuture<IndexResponse>> pendingRequests = new ConcurrentSkipListMap<>();
+    private volatile IOException failure;
+
+    public IndexClient(String serverAddress, int serverPort) throws IOException {
+        this(serverAddress, serverPort, true);
+    }
+
+    public IndexClient(String serverAddress, int serverPort, boolean binary) throws IOException {
+        this.serverAddress = serverAddress;
+        this.serverPort = serverPort;
+        IndexTransport indexTransport = null;
+        if (binary) {
+            try {
+                indexTransport = open(true);
+            } catch (IOException e) {
+                System.out.println("Binary protocol rejected by " + serverAddress + ":" + serverPort + ", falling back to java serialization.");
+            }
+        }
+        this.transport = indexTransport != null ? indexTransport : open(false);
+
+        Thread readerThread = new Thread(this::readResponses, "index-client-reader");
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    private IndexTransport open(boolean binary) throws IOException {
+        Socket socket = new Socket(serverAddress, serverPort);
+        try {
+            IndexTransport indexTransport = IndexTransport.connect(socket, binary);
+            IndexResponse handshake = indexTransport.readResponse();
+            if (handshake == null || !handshake.isSuc()) {
+                throw new IOException("Connection failure.Address: " + serverAddress + ",Port:" + serverPort);
+            }
+            return indexTransport;
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            socket.close();
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+    }
+
+    /**
+     * Send a request without waiting; the future completes when the matching response arrives.
+     */
+    @Override
+    public CompletableFuture<IndexResponse> sendAsync(IndexRequest request) {
+        CompletableFuture<IndexResponse> future = new CompletableFuture<>();
+        if (failure != null) {
+            future.completeExceptionally(failure);
+            return future;
+        }
+        long requestId = nextRequestId.getAndIncrement();
+        request.setRequestId(requestId);
+        pendingRequests.put(requestId, future);
+        try {
+            transport.writeRequest(request);
+        } catch (IOException e) {
+            pendingRequests.remove(requestId);
+            future.completeExceptionally(e);
+        }
+        if (failure != null && pendingRequests.remove(requestId) != null) {
+            // The reader died while this request was being sent
+            future.completeExceptionally(failure);
+        }
+        return future;
+    }
+
+    /**
+     * Send one request and wait for its response. A request the server turned away with a retry-after
+     * hint is sent again after that pause, up to ConstantUtils.ADMISSION_MAX_RETRIES times.
+     */
+    @Override
+    public IndexResponse call(IndexRequest request) throws IOException {
+        return awaitAdmitted(request, sendAsync(request));
+    }
+
+    /**
+     * Wait for the response of a request sent with sendAsync, sending it again while the server answers "retry later".
+     */
+    private IndexResponse awaitAdmitted(IndexRequest request, CompletableFuture<IndexResponse> future) throws IOException {
+        IndexResponse indexResponse = await(future);
+        for (int retry = 0; retry < ConstantUtils.ADMISSION_MAX_RETRIES && indexResponse.getRetryAfterMillis() != null; retry++) {
+            try {
+                Thread.sleep(indexResponse.getRetryAfterMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to retry a request");
+            }
+            indexResponse = await(sendAsync(request));
+        }
+        return indexResponse;
+    }
+
+    /**
+     * Renew the lease of a peer; fails when the server no longer knows the peer and it has to register again.
+     */
+    @Override
+    public IndexResponse heartbeat(String peerId, Integer activeUploads) throws IOException {
+        IndexRequest indexRequest = new IndexRequest();
+        indexRequest.setRequestType(RequestTypeEnum.HEARTBEAT.getCode());
+        indexRequest.setIndexRegister(new IndexRequest.IndexRegister());
+        indexRequest.getIndexRegister().setPeerId(peerId);
+        indexRequest.getIndexRegister().setActiveUploads(activeUploads);
+        return call(indexRequest);
+    }
+
+    /**
+     * Register a large directory through REGISTER_BEGIN / REGISTER_CHUNK / REGISTER_COMMIT with
+     * ConstantUtils.REGISTER_CHUNK_SIZE names per chunk. A few chunks are kept in flight; the
+     * commit is only sent once every chunk has been applied.
+     * @return the commit response carrying the registered / duplicate counts
+     */
+    @Override
+    public IndexResponse registerInChunks(String peerId, String filePath, List<String> files) throws IOException {
+        IndexRequest indexRequest = new IndexRequest();
+        indexRequest.setRequestType(RequestTypeEnum.REGISTER_BEGIN.getCode());
+        indexRequest.setIndexRegister(new IndexRequest.IndexRegister());
+        indexRequest.getIndexRegister().setPeerId(peerId);
+        indexRequest.getIndexRegister().setFilePath(filePath);
+        IndexResponse indexResponse = call(indexRequest);
+        if (!indexResponse.isSuc()) {
+            return indexResponse;
+        }
+        String sessionId = indexResponse.getData().getSessionId();
+
+        Deque<IndexRequest> sentChunks = new ArrayDeque<>();
+        Deque<CompletableFuture<IndexResponse>> inFlightChunks = new ArrayDeque<>();
+        for (int from = 0; from < files.size(); from += ConstantUtils.REGISTER_CHUNK_SIZE) {
+            if (inFlightChunks.size() == MAX_CHUNKS_IN_FLIGHT) {
+                indexResponse = awaitAdmitted(sentChunks.poll(), inFlightChunks.poll());
+                if (!indexResponse.isSuc()) {
+                    return indexResponse;
+                }
+            }
+            indexRequest = new IndexRequest();
+            indexRequest.setRequestType(RequestTypeEnum.REGISTER_CHUNK.getCode());
+            indexRequest.setIndexRegister(new IndexRequest.IndexRegister());
+            indexRequest.getIndexRegister().setSessionId(sessionId);
+            indexRequest.getIndexRegister().setFiles(new ArrayList<>(files.subList(from, Math.min(files.size(), from + ConstantUtils.REGISTER_CHUNK_SIZE))));
+            sentChunks.add(indexRequest);
+            inFlightChunks.add(sendAsync(indexRequest));
+        }
+        while (!inFlightChunks.isEmpty()) {
+            indexResponse = awaitAdmitted(sentChunks.poll(), inFlightChunks.poll());
+            if (!indexResponse.isSuc()) {
+                return indexResponse;
+            }
+        }
+
+        indexRequest = new IndexRequest();
+        indexRequest.setRequestType(RequestTypeEnum.REGISTER_COMMIT.getCode());
+        indexRequest.setIndexRegister(new IndexRequest.IndexRegister());
+        indexRequest.getIndexRegister().setSessionId(sessionId);
+        return call(indexRequest);
+    }
+
+    /**
+     * Wait at most ConstantUtils.INDEX_REQUEST_TIMEOUT_MILLIS; a response that does not come by then fails the request.
+     */
+    private IndexResponse await(CompletableFuture<IndexResponse> future) throws IOException {
+        try {
+            return future.get(ConstantUtils.INDEX_REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            IOException timeout = new IOException("No response from the index server " + serverAddress + ":" + serverPort
+                    + " within " + ConstantUtils.INDEX_REQUEST_TIMEOUT_MILLIS + " ms");
+            // A response arriving later finds nobody waiting and is dropped
+            pendingRequests.values().remove(future);
+            future.completeExceptionally(timeout);
+            throw timeout;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the index server");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    private void readResponses() {
+        try {
+            while (true) {
+                IndexResponse response = transport.readResponse();
+                CompletableFuture<IndexResponse> future;
+                if (response.getRequestId() == null) {
+                    // A server that predates request ids answers strictly in order
+                    Map.Entry<Long, CompletableFuture<IndexResponse>> oldest = pendingRequests.pollFirstEntry();
+                    future = oldest == null ? null : oldest.getValue();
+                } else {
+                    future = pendingRequests.remove(response.getRequestId());
+                }
+                if (future != null) {
+                    future.complete(response);
+                }
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            failure = e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+        Map.Entry<Long, CompletableFuture<IndexResponse>> entry;
+        while ((entry = pendingRequests.pollFirstEntry()) != null) {
+            entry.getValue().completeExceptionally(failure);
+        }
+    }
+
+    public boolean isBinary() {
+        return transport.isBinary();
+    }
+
+    /**
+     * Tell the server we are leaving and close the socket.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            IndexRequest indexRequest = new IndexRequest();
+            indexRequest.setRequestType(RequestTypeEnum.DISCONNECT.getCode());
+            transport.writeRequest(indexRequest);
+        } finally {
+            transport.close();
+        }
+    }
+}
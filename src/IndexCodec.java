@@ -0,0 +1,360 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary wire format for IndexRequest / IndexResponse.
+ * Every message is sent as one frame: a 4 byte length followed by the payload.
+ * Strings are written as a 4 byte length (-1 for null) plus UTF-8 bytes.
+ * Decoding reads from a byte array: a length or count that the bytes left cannot hold is rejected
+ * before anything is allocated for it.
+ */
+public final class IndexCodec {
+    private IndexCodec(){}
+
+    /** "PA1B", sent by a binary client right after connecting **/
+    public static final int MAGIC = 0x50413142;
+
+    public static final byte VERSION = 12;
+
+    public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    /** smallest encoding of a string (its length) and of a lookup item (4 strings and a null int) **/
+    private static final int MIN_STRING_BYTES = 4;
+    private static final int MIN_LOOKUP_ITEM_BYTES = 4 * MIN_STRING_BYTES + 1;
+
+    public static void writeFrame(DataOutputStream out, byte[] payload) throws IOException {
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.flush();
+    }
+
+    public static byte[] readFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return payload;
+    }
+
+    public static byte[] encodeRequest(IndexRequest request) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(buffer);
+
+        writeNullableLong(out, request.getRequestId());
+        writeNullableInt(out, request.getRequestType());
+
+        IndexRequest.IndexRegister register = request.getIndexRegister();
+        out.writeBoolean(register != null);
+        if (register != null) {
+            writeString(out, register.getPeerId());
+            writeString(out, register.getFilePath());
+            writeStringList(out, register.getFiles());
+            writeString(out, register.getSessionId());
+            writeString(out, register.getPeerAddress());
+            writeNullableInt(out, register.getActiveUploads());
+            writeNullableLong(out, register.getTransferBytes());
+            writeNullableLong(out, register.getTransferMillis());
+        }
+
+        IndexRequest.IndexSearch search = request.getIndexSearch();
+        out.writeBoolean(search != null);
+        if (search != null) {
+            writeString(out, search.getFileName());
+            writeStringList(out, search.getFileNames());
+            writeString(out, search.getNamePattern());
+            writeNullableInt(out, search.getRangeStart());
+            writeNullableInt(out, search.getRangeEnd());
+            writeString(out, search.getQuery());
+            writeNullableInt(out, search.getLimit());
+            writeString(out, search.getCursor());
+            writeNullableLong(out, search.getMinSequence());
+        }
+        out.flush();
+        return buffer.toByteArray();
+    }
+
+    public static IndexRequest decodeRequest(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        IndexRequest request = new IndexRequest();
+
+        request.setRequestId(readNullableLong(in));
+        request.setRequestType(readNullableInt(in));
+
+        if (in.readBoolean()) {
+            IndexRequest.IndexRegister register = new IndexRequest.IndexRegister();
+            register.setPeerId(readString(in));
+            register.setFilePath(readString(in));
+            register.setFiles(readStringList(in));
+            register.setSessionId(readString(in));
+            register.setPeerAddress(readString(in));
+            register.setActiveUploads(readNullableInt(in));
+            register.setTransferBytes(readNullableLong(in));
+            register.setTransferMillis(readNullableLong(in));
+            request.setIndexRegister(register);
+        }
+
+        if (in.readBoolean()) {
+            IndexRequest.IndexSearch search = new IndexRequest.IndexSearch();
+            search.setFileName(readString(in));
+            search.setFileNames(readStringList(in));
+            search.setNamePattern(readString(in));
+            search.setRangeStart(readNullableInt(in));
+            search.setRangeEnd(readNullableInt(in));
+            search.setQuery(readString(in));
+            search.setLimit(readNullableInt(in));
+            search.setCursor(readString(in));
+            search.setMinSequence(readNullableLong(in));
+            request.setIndexSearch(search);
+        }
+        return request;
+    }
+
+    public static byte[] encodeResponse(IndexResponse response) throws IOException {
+        byte[] body = response.getEncodedBody() != null ? response.getEncodedBody() : encodeResponseBody(response);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(9 + body.length);
+        DataOutputStream out = new DataOutputStream(buffer);
+        writeNullableLong(out, response.getRequestId());
+        out.write(body);
+        out.flush();
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Everything of the response after its request id, which is the same for every request a cached response answers.
+     */
+    public static byte[] encodeResponseBody(IndexResponse response) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(buffer);
+
+        out.writeBoolean(response.isSuc());
+        writeString(out, response.getMessage());
+        writeNullableLong(out, response.getRetryAfterMillis());
+
+        IndexResponse.ResultData data = response.getData();
+        out.writeBoolean(data != null);
+        if (data != null) {
+            writeString(out, data.getPeerId());
+            writeStringList(out, data.getFiles());
+            writeNullableInt(out, data.getRegisteredCount());
+            writeNullableInt(out, data.getDuplicateCount());
+            writeString(out, data.getSessionId());
+
+            writeLookupMapping(out, data.getPeerAndIpMapping());
+
+            HashMap<String, HashMap<Integer, IndexResponse.LookupItem>> multiMapping = data.getMultiLookupMapping();
+            if (multiMapping == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(multiMapping.size());
+                for (Map.Entry<String, HashMap<Integer, IndexResponse.LookupItem>> entry : multiMapping.entrySet()) {
+                    writeString(out, entry.getKey());
+                    writeLookupMapping(out, entry.getValue());
+                }
+            }
+            writeString(out, data.getNextCursor());
+            writeNullableLong(out, data.getLeaseMillis());
+            writeNullableLong(out, data.getSequence());
+            writeNullableLong(out, data.getReplicationLagMillis());
+            writeStats(out, data.getStats());
+            writeNullableInt(out, data.getHolderCount());
+        }
+        out.flush();
+        return buffer.toByteArray();
+    }
+
+    public static IndexResponse decodeResponse(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        IndexResponse response = new IndexResponse();
+
+        response.setRequestId(readNullableLong(in));
+        response.setSuc(in.readBoolean());
+        response.setMessage(readString(in));
+        response.setRetryAfterMillis(readNullableLong(in));
+
+        if (in.readBoolean()) {
+            IndexResponse.ResultData data = new IndexResponse.ResultData();
+            data.setPeerId(readString(in));
+            data.setFiles(readStringList(in));
+            data.setRegisteredCount(readNullableInt(in));
+            data.setDuplicateCount(readNullableInt(in));
+            data.setSessionId(readString(in));
+
+            data.setPeerAndIpMapping(readLookupMapping(in));
+
+            int size = in.readInt();
+            if (size >= 0) {
+                // a name and its mapping's size for each file
+                checkCount(in, size, MIN_STRING_BYTES + 4);
+                HashMap<String, HashMap<Integer, IndexResponse.LookupItem>> multiMapping = new HashMap<>(size * 2);
+                for (int i = 0; i < size; i++) {
+                    String fileName = readString(in);
+                    multiMapping.put(fileName, readLookupMapping(in));
+                }
+                data.setMultiLookupMapping(multiMapping);
+            }
+            data.setNextCursor(readString(in));
+            data.setLeaseMillis(readNullableLong(in));
+            data.setSequence(readNullableLong(in));
+            data.setReplicationLagMillis(readNullableLong(in));
+            data.setStats(readStats(in));
+            data.setHolderCount(readNullableInt(in));
+            response.setData(data);
+        }
+        return response;
+    }
+
+    private static void writeLookupMapping(DataOutputStream out, HashMap<Integer, IndexResponse.LookupItem> mapping) throws IOException {
+        if (mapping == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(mapping.size());
+        for (Map.Entry<Integer, IndexResponse.LookupItem> entry : mapping.entrySet()) {
+            out.writeInt(entry.getKey());
+            writeLookupItem(out, entry.getValue());
+        }
+    }
+
+    private static HashMap<Integer, IndexResponse.LookupItem> readLookupMapping(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            return null;
+        }
+        checkCount(in, size, 4 + MIN_LOOKUP_ITEM_BYTES);
+        HashMap<Integer, IndexResponse.LookupItem> mapping = new HashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            int key = in.readInt();
+            mapping.put(key, readLookupItem(in));
+        }
+        return mapping;
+    }
+
+    private static void writeStats(DataOutputStream out, LinkedHashMap<String, Long> stats) throws IOException {
+        if (stats == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(stats.size());
+        for (Map.Entry<String, Long> entry : stats.entrySet()) {
+            writeString(out, entry.getKey());
+            out.writeLong(entry.getValue());
+        }
+    }
+
+    private static LinkedHashMap<String, Long> readStats(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            return null;
+        }
+        checkCount(in, size, MIN_STRING_BYTES + 8);
+        LinkedHashMap<String, Long> stats = new LinkedHashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            String name = readString(in);
+            stats.put(name, in.readLong());
+        }
+        return stats;
+    }
+
+    private static void writeLookupItem(DataOutputStream out, IndexResponse.LookupItem item) throws IOException {
+        writeString(out, item.getPeerId());
+        writeString(out, item.getFileServerAddress());
+        writeNullableInt(out, item.getFileServerPort());
+        writeString(out, item.getFileLocalPath());
+        writeString(out, item.getFileLocalFileName());
+    }
+
+    private static IndexResponse.LookupItem readLookupItem(DataInputStream in) throws IOException {
+        IndexResponse.LookupItem item = new IndexResponse.LookupItem();
+        item.setPeerId(readString(in));
+        item.setFileServerAddress(readString(in));
+        item.setFileServerPort(readNullableInt(in));
+        item.setFileLocalPath(readString(in));
+        item.setFileLocalFileName(readString(in));
+        return item;
+    }
+
+    static void writeNullableInt(DataOutputStream out, Integer value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeInt(value);
+        }
+    }
+
+    static Integer readNullableInt(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readInt() : null;
+    }
+
+    static void writeNullableLong(DataOutputStream out, Long value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeLong(value);
+        }
+    }
+
+    static Long readNullableLong(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readLong() : null;
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.available()) {
+            throw new IOException("String length " + length + " exceeds the " + in.available() + " bytes left");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeStringList(DataOutputStream out, List<String> values) throws IOException {
+        if (values == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(values.size());
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    static ArrayList<String> readStringList(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            return null;
+        }
+        checkCount(in, size, MIN_STRING_BYTES);
+        ArrayList<String> values = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            values.add(readString(in));
+        }
+        return values;
+    }
+
+    /**
+     * Reject a count of elements that the bytes left could not hold even at their smallest.
+     */
+    private static void checkCount(DataInputStream in, int count, int minElementBytes) throws IOException {
+        if (count > in.available() / minElementBytes) {
+            throw new IOException("Count " + count + " exceeds what the " + in.available() + " bytes left can hold");
+        }
+    }
+}
@@ -0,0 +1,116 @@
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Heap footprint of the index: registers a number of peers in-process, each with a large
+ * directory, and reports the retained heap per million registered files.
+ * Consecutive peers share half of their file names, like copies of one data set spread over the network.
+ * With the mapped store it also checkpoints the store and times reopening it.
+ * <p>
+ * Usage: java IndexHeapBenchmark [peers] [filesPerPeer] [heap|mapped] [storeDir]
+ */
+public class IndexHeapBenchmark {
+
+    private static final int CHUNK_SIZE = 100000;
+
+    public static void main(String[] args) throws Exception {
+        int peers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int filesPerPeer = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        boolean mapped = args.length > 2 && "mapped".equalsIgnoreCase(args[2]);
+        String storeDir = args.length > 3 ? args[3] : ConstantUtils.INDEX_STORE_DIR;
+
+        // Keep per-request logging out of the measurement
+        Logger rootLogger = Logger.getLogger("");
+        rootLogger.setLevel(Level.WARNING);
+        for (Handler handler : rootLogger.getHandlers()) {
+            handler.setLevel(Level.WARNING);
+        }
+
+        long baseline = usedHeap();
+        IndexStore indexStore = mapped ? new MappedIndexStore(Paths.get(storeDir)) : new HeapIndexStore();
+        if (indexStore.getCheckpointSequence() >= 0) {
+            indexStore.clear();
+        }
+        IndexServer indexServer = new IndexServer(indexStore);
+        long start = System.nanoTime();
+        for (int peer = 0; peer < peers; peer++) {
+            int first = 1 + peer * (filesPerPeer / 2);
+            for (int from = 0; from < filesPerPeer; from += CHUNK_SIZE) {
+                IndexRequest request = registerRequest("peer-" + peer, "/data/peer" + peer + "/",
+                        first + from, Math.min(CHUNK_SIZE, filesPerPeer - from));
+                IndexResponse response = indexServer.handleRequest(request, "10.0.0." + (peer + 1));
+                if (!response.isSuc()) {
+                    System.err.println("register failed: " + response.getMessage());
+                    return;
+                }
+            }
+        }
+        long registerMillis = (System.nanoTime() - start) / 1000000;
+        long retained = usedHeap() - baseline;
+
+        long registeredFiles = (long) peers * filesPerPeer;
+        long distinctNames = filesPerPeer + (long) (peers - 1) * (filesPerPeer / 2);
+        System.out.println("store: " + (mapped ? "mapped" : "heap") + ", peers: " + peers + ", files per peer: " + filesPerPeer
+                + ", registered files: " + registeredFiles + ", distinct names: " + distinctNames);
+        System.out.printf("register took %d ms, retained heap %.1f MB, %.1f bytes per file, %.1f MB per million files%n",
+                registerMillis, retained / 1048576.0, (double) retained / registeredFiles,
+                retained / 1048576.0 * 1000000 / registeredFiles);
+        // Keep the index reachable until it has been measured
+        System.out.println(indexServer.handleRequest(lookupRequest("text_kb_1.txt"), "127.0.0.1").isSuc() ? "" : "lookup failed");
+
+        if (mapped) {
+            indexStore.checkpoint(0);
+            indexStore.close();
+            start = System.nanoTime();
+            IndexStore reopened = new MappedIndexStore(Paths.get(storeDir));
+            long openMillis = (System.nanoTime() - start) / 1000000;
+            IndexServer restarted = new IndexServer(reopened);
+            restarted.restoreFromStore();
+            long restoreMillis = (System.nanoTime() - start) / 1000000;
+            IndexResponse response = restarted.handleRequest(lookupRequest("text_kb_" + (filesPerPeer / 2 + 1) + ".txt"), "127.0.0.1");
+            System.out.println("reopen: store mapped in " + openMillis + " ms, serving lookups after " + restoreMillis + " ms, lookup "
+                    + (response.isSuc() ? "found " + response.getData().getPeerAndIpMapping().size() + " holders" : "failed"));
+            // a register waits for the background search index rebuild
+            restarted.handleRequest(registerRequest("peer-" + peers, "/data/peer" + peers + "/", 1, 1), "10.0.0.254");
+            System.out.println("search index rebuilt after " + (System.nanoTime() - start) / 1000000 + " ms");
+            reopened.checkpoint(0);
+            reopened.close();
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(100);
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    private static IndexRequest registerRequest(String peerId, String path, int first, int count) {
+        ArrayList<String> files = new ArrayList<>(count);
+        for (int i = first; i < first + count; i++) {
+            files.add(String.format("text_kb_%d.txt", i));
+        }
+        IndexRequest request = new IndexRequest();
+        request.setRequestType(RequestTypeEnum.REGISTER.getCode());
+        request.setIndexRegister(new IndexRequest.IndexRegister());
+        request.getIndexRegister().setPeerId(peerId);
+        request.getIndexRegister().setFilePath(path);
+        request.getIndexRegister().setFiles(files);
+        return request;
+    }
+
+    private static IndexRequest lookupRequest(String fileName) {
+        IndexRequest request = new IndexRequest();
+        request.setRequestType(RequestTypeEnum.LOOKUP.getCode());
+        request.setIndexSearch(new IndexRequest.IndexSearch());
+        request.getIndexSearch().setFileName(fileName);
+        return request;
+    }
+}
@@ -0,0 +1,360 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of the index server, per request type:
+ * <ul>
+ *     <li>service: from dispatch to the response being built</li>
+ *     <li>queue: from the request being read to a thread starting on it, for requests that wait in a pool</li>
+ *     <li>lock: waiting for a peer's entity lock, under REGISTER for every way files are added
+ *     (chunks and shard imports too) and under UNREGISTER</li>
+ *     <li>serialization: encoding the response (nio), encoding and writing it (thread mode)</li>
+ * </ul>
+ * plus LOOKUP hits, misses and cache hits, and requests turned away by admission control. Read through the STATS request or JMX
+ * (IndexServer:type=Requests,name=&lt;request type&gt; and IndexServer:type=Index).
+ */
+public class IndexMetrics {
+
+    private static final Logger LOGGER = Logger.getLogger(IndexMetrics.class.getName());
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+    /** by request type code **/
+    private final RequestMetrics[] requestMetrics;
+    private final LongAdder lookupHits = new LongAdder();
+    private final LongAdder lookupMisses = new LongAdder();
+    private final LongAdder lookupCacheHits = new LongAdder();
+    /** by AdmissionControl.Rejection ordinal **/
+    private final LongAdder[] rejections = new LongAdder[AdmissionControl.Rejection.values().length];
+    private volatile boolean enabled = true;
+    private volatile AsyncLogHandler logHandler;
+
+    public IndexMetrics() {
+        int maxCode = 0;
+        for (RequestTypeEnum requestType : RequestTypeEnum.values()) {
+            maxCode = Math.max(maxCode, requestType.getCode());
+        }
+        for (int i = 0; i < rejections.length; i++) {
+            rejections[i] = new LongAdder();
+        }
+        requestMetrics = new RequestMetrics[maxCode + 1];
+        for (RequestTypeEnum requestType : RequestTypeEnum.values()) {
+            requestMetrics[requestType.getCode()] = new RequestMetrics(requestType);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** off, nothing is recorded; what was recorded stays readable **/
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /** the log handler whose dropped records are reported with the metrics, may be null **/
+    public void setLogHandler(AsyncLogHandler logHandler) {
+        this.logHandler = logHandler;
+    }
+
+    /**
+     * @param queueNanos time the request waited for a thread, negative when it did not wait in a pool
+     */
+    public void recordRequest(Integer requestType, long queueNanos, long serviceNanos, boolean suc) {
+        RequestMetrics metrics = enabled ? metricsOf(requestType) : null;
+        if (metrics == null) {
+            return;
+        }
+        if (!suc) {
+            metrics.failures.increment();
+        }
+        metrics.service.record(serviceNanos);
+        if (queueNanos >= 0) {
+            metrics.queue.record(queueNanos);
+        }
+    }
+
+    public void recordLockWait(RequestTypeEnum requestType, long nanos) {
+        if (enabled) {
+            requestMetrics[requestType.getCode()].lock.record(nanos);
+        }
+    }
+
+    public void recordSerialization(Integer requestType, long nanos) {
+        RequestMetrics metrics = enabled ? metricsOf(requestType) : null;
+        if (metrics != null) {
+            metrics.serialization.record(nanos);
+        }
+    }
+
+    public void lookupHit(boolean cached) {
+        if (enabled) {
+            lookupHits.increment();
+            if (cached) {
+                lookupCacheHits.increment();
+            }
+        }
+    }
+
+    /** counted even when recording is off, rejections are rare and cheap **/
+    public void recordRejection(AdmissionControl.Rejection rejection) {
+        rejections[rejection.ordinal()].increment();
+    }
+
+    public void lookupMiss() {
+        if (enabled) {
+            lookupMisses.increment();
+        }
+    }
+
+    private RequestMetrics metricsOf(Integer requestType) {
+        return requestType == null || requestType < 0 || requestType >= requestMetrics.length ? null : requestMetrics[requestType];
+    }
+
+    /**
+     * Everything recorded so far as name -> value, latencies in nanoseconds; request types never seen are left out.
+     */
+    public LinkedHashMap<String, Long> toMap() {
+        LinkedHashMap<String, Long> stats = new LinkedHashMap<>();
+        stats.put("lookup.hits", lookupHits.sum());
+        stats.put("lookup.misses", lookupMisses.sum());
+        stats.put("lookup.cacheHits", lookupCacheHits.sum());
+        for (AdmissionControl.Rejection rejection : AdmissionControl.Rejection.values()) {
+            stats.put("admission." + rejection.name().toLowerCase(), rejections[rejection.ordinal()].sum());
+        }
+        AsyncLogHandler handler = logHandler;
+        if (handler != null) {
+            stats.put("log.dropped", handler.getDroppedCount());
+            stats.put("log.suppressed", handler.getSuppressedCount());
+        }
+        for (RequestMetrics metrics : requestMetrics) {
+            if (metrics == null) {
+                continue;
+            }
+            LatencyHistogram.Snapshot service = metrics.service.snapshot();
+            LatencyHistogram.Snapshot lock = metrics.lock.snapshot();
+            if (service.getCount() == 0 && lock.getCount() == 0) {
+                continue;
+            }
+            String prefix = metrics.requestType.name();
+            stats.put(prefix + ".count", service.getCount());
+            stats.put(prefix + ".failures", metrics.failures.sum());
+            putHistogram(stats, prefix + ".service", service);
+            putHistogram(stats, prefix + ".queue", metrics.queue.snapshot());
+            putHistogram(stats, prefix + ".lock", lock);
+            putHistogram(stats, prefix + ".serialization", metrics.serialization.snapshot());
+        }
+        return stats;
+    }
+
+    private static void putHistogram(Map<String, Long> stats, String prefix, LatencyHistogram.Snapshot snapshot) {
+        if (snapshot.getCount() == 0) {
+            return;
+        }
+        stats.put(prefix + ".count", snapshot.getCount());
+        stats.put(prefix + ".mean", snapshot.getMeanNanos());
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            stats.put(prefix + "." + PERCENTILE_NAMES[i], snapshot.getValueAtPercentile(PERCENTILES[i]));
+        }
+        stats.put(prefix + ".max", snapshot.getMaxNanos());
+    }
+
+    /**
+     * Register the MXBeans on the platform MBean server, next to the JVM's own.
+     */
+    public void registerMBeans() {
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            mBeanServer.registerMBean(new IndexView(), new ObjectName("IndexServer:type=Index"));
+            for (RequestMetrics metrics : requestMetrics) {
+                if (metrics != null) {
+                    mBeanServer.registerMBean(metrics, new ObjectName("IndexServer:type=Requests,name=" + metrics.requestType.name()));
+                }
+            }
+        } catch (JMException e) {
+            LOGGER.warning("Couldn't register the index MBeans,msg:" + e.getMessage());
+        }
+    }
+
+    public interface IndexMXBean {
+        long getLookupHits();
+
+        long getLookupMisses();
+
+        long getLookupCacheHits();
+
+        long getLogRecordsDropped();
+
+        long getLogRecordsSuppressed();
+
+        /** requests turned away by admission control, for any reason **/
+        long getRejectedRequests();
+
+        boolean isEnabled();
+
+        void setEnabled(boolean enabled);
+    }
+
+    public interface RequestMetricsMXBean {
+        long getCount();
+
+        long getFailures();
+
+        double getMeanMicros();
+
+        double getP50Micros();
+
+        double getP99Micros();
+
+        double getP999Micros();
+
+        double getMaxMicros();
+
+        double getQueueWaitP99Micros();
+
+        double getLockWaitP99Micros();
+
+        double getSerializationP99Micros();
+    }
+
+    private class IndexView implements IndexMXBean {
+        @Override
+        public long getLookupHits() {
+            return lookupHits.sum();
+        }
+
+        @Override
+        public long getLookupMisses() {
+            return lookupMisses.sum();
+        }
+
+        @Override
+        public long getLookupCacheHits() {
+            return lookupCacheHits.sum();
+        }
+
+        @Override
+        public long getLogRecordsDropped() {
+            AsyncLogHandler handler = logHandler;
+            return handler == null ? 0 : handler.getDroppedCount();
+        }
+
+        @Override
+        public long getLogRecordsSuppressed() {
+            AsyncLogHandler handler = logHandler;
+            return handler == null ? 0 : handler.getSuppressedCount();
+        }
+
+        @Override
+        public long getRejectedRequests() {
+            long rejected = 0;
+            for (LongAdder rejection : rejections) {
+                rejected += rejection.sum();
+            }
+            return rejected;
+        }
+
+        @Override
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        @Override
+        public void setEnabled(boolean enabled) {
+            IndexMetrics.this.setEnabled(enabled);
+        }
+    }
+
+    private static class RequestMetrics implements RequestMetricsMXBean {
+        private final RequestTypeEnum requestType;
+        /** requests are counted by the service histogram **/
+        private final LongAdder failures = new LongAdder();
+        private final LatencyHistogram service = new LatencyHistogram();
+        private final LatencyHistogram queue = new LatencyHistogram();
+        private final LatencyHistogram lock = new LatencyHistogram();
+        private final LatencyHistogram serialization = new LatencyHistogram();
+
+        RequestMetrics(RequestTypeEnum requestType) {
+            this.requestType = requestType;
+        }
+
+        @Override
+        public long getCount() {
+            return service.snapshot().getCount();
+        }
+
+        @Override
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        @Override
+        public double getMeanMicros() {
+            return service.snapshot().getMeanNanos() / 1000.0;
+        }
+
+        @Override
+        public double getP50Micros() {
+            return service.snapshot().getValueAtPercentile(50) / 1000.0;
+        }
+
+        @Override
+        public double getP99Micros() {
+            return service.snapshot().getValueAtPercentile(99) / 1000.0;
+        }
+
+        @Override
+        public double getP999Micros() {
+            return service.snapshot().getValueAtPercentile(99.9) / 1000.0;
+        }
+
+        @Override
+        public double getMaxMicros() {
+            return service.snapshot().getMaxNanos() / 1000.0;
+        }
+
+        @Override
+        public double getQueueWaitP99Micros() {
+            return queue.snapshot().getValueAtPercentile(99) / 1000.0;
+        }
+
+        @Override
+        public double getLockWaitP99Micros() {
+            return lock.snapshot().getValueAtPercentile(99) / 1000.0;
+        }
+
+        @Override
+        public double getSerializationP99Micros() {
+            return serialization.snapshot().getValueAtPercentile(99) / 1000.0;
+        }
+    }
+
+    /**
+     * Print the STATS of a running index server.
+     * <p>
+     * Usage: java IndexMetrics [host:port]
+     */
+    public static void main(String[] args) throws IOException {
+        String server = args.length > 0 ? args[0] : ConstantUtils.DEFAULT_INDEX_SERVER_HOST + ":" + ConstantUtils.INDEX_SERVER_PORT;
+        try (IndexClient indexClient = new IndexClient(HashRing.hostOf(server), HashRing.portOf(server))) {
+            IndexRequest indexRequest = new IndexRequest();
+            indexRequest.setRequestType(RequestTypeEnum.STATS.getCode());
+            IndexResponse indexResponse = indexClient.call(indexRequest);
+            if (!indexResponse.isSuc()) {
+                System.out.println("STATS failed, message:" + indexResponse.getMessage());
+                return;
+            }
+            for (Map.Entry<String, Long> entry : indexResponse.getData().getStats().entrySet()) {
+                System.out.println(entry.getKey() + " = " + entry.getValue());
+            }
+        }
+    }
+}
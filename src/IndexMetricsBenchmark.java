@@ -0,0 +1,119 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cost of the built-in metrics: nanoseconds per histogram record, then in-process lookup
+ * throughput with metrics off and on, alternating so JIT warm-up and noise hit both alike.
+ * <p>
+ * Usage: java IndexMetricsBenchmark [threads] [seconds per round]
+ */
+public class IndexMetricsBenchmark {
+
+    private static final int PRELOAD_FILES = 10000;
+    private static final int RECORDS_PER_THREAD = 10000000;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        long roundMillis = (args.length > 1 ? Integer.parseInt(args[1]) : 3) * 1000L;
+
+        // Keep per-request logging out of the measurement, misses log at SEVERE
+        Logger rootLogger = Logger.getLogger("");
+        rootLogger.setLevel(Level.OFF);
+        for (Handler handler : rootLogger.getHandlers()) {
+            handler.setLevel(Level.OFF);
+        }
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        long start = System.nanoTime();
+        runThreads(threads, () -> {
+            for (int i = 0; i < RECORDS_PER_THREAD; i++) {
+                histogram.record(i & 0xFFFFF);
+            }
+        });
+        System.out.printf("histogram record: %.1f ns per value, %d threads%n",
+                (System.nanoTime() - start) / ((double) RECORDS_PER_THREAD * threads), threads);
+
+        IndexServer indexServer = new IndexServer();
+        ArrayList<String> files = new ArrayList<>();
+        for (int i = 0; i < PRELOAD_FILES; i++) {
+            files.add("text_kb_" + i + ".txt");
+        }
+        IndexRequest register = new IndexRequest();
+        register.setRequestType(RequestTypeEnum.REGISTER.getCode());
+        register.setIndexRegister(new IndexRequest.IndexRegister());
+        register.getIndexRegister().setPeerId("bench");
+        register.getIndexRegister().setFilePath("/bench/");
+        register.getIndexRegister().setFiles(files);
+        indexServer.handleRequest(register, "127.0.0.1");
+
+        long[] off = new long[ROUNDS];
+        long[] on = new long[ROUNDS];
+        for (int round = 0; round < ROUNDS; round++) {
+            indexServer.getMetrics().setEnabled(false);
+            off[round] = lookupsPerSecond(indexServer, threads, roundMillis);
+            indexServer.getMetrics().setEnabled(true);
+            on[round] = lookupsPerSecond(indexServer, threads, roundMillis);
+            System.out.printf("round %d: metrics off %d lookups/s, on %d lookups/s%n", round + 1, off[round], on[round]);
+        }
+        // the first round warms the JIT up, it is left out
+        long offTotal = 0;
+        long onTotal = 0;
+        for (int round = 1; round < ROUNDS; round++) {
+            offTotal += off[round];
+            onTotal += on[round];
+        }
+        System.out.printf("metrics overhead: %.1f%% of in-process lookup throughput, %.0f ns per lookup%n",
+                100.0 * (offTotal - onTotal) / offTotal, 1e9 * (ROUNDS - 1) * (1.0 / onTotal - 1.0 / offTotal));
+        System.out.println(indexServer.getMetrics().toMap());
+        System.exit(0);
+    }
+
+    /**
+     * Half the lookups hit (every other one served by the lookup cache), half miss.
+     */
+    private static long lookupsPerSecond(IndexServer indexServer, int threads, long millis) throws InterruptedException {
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong lookups = new AtomicLong();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                long n = 0;
+                while (running.get()) {
+                    IndexRequest lookup = new IndexRequest();
+                    lookup.setRequestType(RequestTypeEnum.LOOKUP.getCode());
+                    lookup.setIndexSearch(new IndexRequest.IndexSearch());
+                    lookup.getIndexSearch().setFileName((n % 2 == 0 ? "text_kb_" : "missing_") + (n % PRELOAD_FILES) + ".txt");
+                    indexServer.handleRequest(lookup, "127.0.0.1");
+                    n++;
+                }
+                lookups.addAndGet(n);
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        Thread.sleep(millis);
+        running.set(false);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return lookups.get() * 1000 / millis;
+    }
+
+    private static void runThreads(int threads, Runnable task) throws InterruptedException {
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(task);
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+}
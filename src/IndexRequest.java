@@ -4,10 +4,19 @@ import java.util.ArrayList;
 public class IndexRequest implements Serializable {
     /**
      * Request type
-     * 1: register, 2: unregister, 3: lookup, 4: exit
+     * 1: register, 2: unregister, 3: lookup, 4: exit, 5: multi lookup,
+     * 6/7/8: chunked register begin/chunk/commit, 9: search, 10: heartbeat,
+     * 11/12/13: shard export/import/remove, used by ShardRebalancer, 14: replication status, 15: stats,
+     * 16: transfer report
      */
     private Integer requestType;
 
+    /**
+     * Chosen by the client, echoed in the matching IndexResponse so several requests
+     * can be outstanding on one connection. Null means the old one-at-a-time behaviour.
+     */
+    private Long requestId;
+
     private IndexRegister indexRegister;
 
     private IndexSearch indexSearch;
@@ -20,6 +29,14 @@ public class IndexRequest implements Serializable {
         this.requestType = requestType;
     }
 
+    public Long getRequestId() {
+        return requestId;
+    }
+
+    public void setRequestId(Long requestId) {
+        this.requestId = requestId;
+    }
+
     public IndexRegister getIndexRegister() {
         return indexRegister;
     }
@@ -40,6 +57,24 @@ public class IndexRequest implements Serializable {
         private String peerId;
         private String filePath;
         private ArrayList<String> files;
+        /**
+         * chunked register use, returned by REGISTER_BEGIN and sent with every chunk and the commit
+         */
+        private String sessionId;
+        /**
+         * shard import use: address of the peer holding the files, the request comes from the rebalancer;
+         * transfer report use: address of the peer that served the download
+         */
+        private String peerAddress;
+        /**
+         * heartbeat use: downloads the peer's file server is sending right now, null when not reported
+         */
+        private Integer activeUploads;
+        /**
+         * transfer report use: size and duration of a download from the peer
+         */
+        private Long transferBytes;
+        private Long transferMillis;
 
         public String getPeerId() {
             return peerId;
@@ -64,10 +99,81 @@ public class IndexRequest implements Serializable {
         public void setFilePath(String filePath) {
             this.filePath = filePath;
         }
+
+        public String getSessionId() {
+            return sessionId;
+        }
+
+        public void setSessionId(String sessionId) {
+            this.sessionId = sessionId;
+        }
+
+        public String getPeerAddress() {
+            return peerAddress;
+        }
+
+        public void setPeerAddress(String peerAddress) {
+            this.peerAddress = peerAddress;
+        }
+
+        public Integer getActiveUploads() {
+            return activeUploads;
+        }
+
+        public void setActiveUploads(Integer activeUploads) {
+            this.activeUploads = activeUploads;
+        }
+
+        public Long getTransferBytes() {
+            return transferBytes;
+        }
+
+        public void setTransferBytes(Long transferBytes) {
+            this.transferBytes = transferBytes;
+        }
+
+        public Long getTransferMillis() {
+            return transferMillis;
+        }
+
+        public void setTransferMillis(Long transferMillis) {
+            this.transferMillis = transferMillis;
+        }
     }
 
     public static class IndexSearch implements Serializable{
         private String fileName;
+        /**
+         * multi lookup use: explicit list of names
+         */
+        private ArrayList<String> fileNames;
+        /**
+         * multi lookup use: name format such as text_kb_%d.txt, expanded over [rangeStart, rangeEnd]
+         */
+        private String namePattern;
+        private Integer rangeStart;
+        private Integer rangeEnd;
+        /**
+         * search use: glob over file names, '*' for any run of characters and '?' for one character
+         */
+        private String query;
+        /**
+         * search use: page size, at most ConstantUtils.MAX_SEARCH_RESULTS;
+         * lookup use: at most this many holders, multi lookup use: at most this many holders per name;
+         * null for all of them
+         */
+        private Integer limit;
+        /**
+         * search use: nextCursor of the previous page, null for the first page;
+         * lookup use: null asks for the best limit holders as the server ranks them, a cursor ("0" for
+         * the first page) pages through all holders in posting order instead
+         */
+        private String cursor;
+        /**
+         * read use on a replica: only answer once the primary's mutations up to this sequence are applied,
+         * the sequence a previous write returned; null for any state within the replica's lag bound
+         */
+        private Long minSequence;
 
         public String getFileName() {
             return fileName;
@@ -76,6 +182,70 @@ public class IndexRequest implements Serializable {
         public void setFileName(String fileName) {
             this.fileName = fileName;
         }
+
+        public ArrayList<String> getFileNames() {
+            return fileNames;
+        }
+
+        public void setFileNames(ArrayList<String> fileNames) {
+            this.fileNames = fileNames;
+        }
+
+        public String getNamePattern() {
+            return namePattern;
+        }
+
+        public void setNamePattern(String namePattern) {
+            this.namePattern = namePattern;
+        }
+
+        public Integer getRangeStart() {
+            return rangeStart;
+        }
+
+        public void setRangeStart(Integer rangeStart) {
+            this.rangeStart = rangeStart;
+        }
+
+        public Integer getRangeEnd() {
+            return rangeEnd;
+        }
+
+        public void setRangeEnd(Integer rangeEnd) {
+            this.rangeEnd = rangeEnd;
+        }
+
+        public String getQuery() {
+            return query;
+        }
+
+        public void setQuery(String query) {
+            this.query = query;
+        }
+
+        public Integer getLimit() {
+            return limit;
+        }
+
+        public void setLimit(Integer limit) {
+            this.limit = limit;
+        }
+
+        public String getCursor() {
+            return cursor;
+        }
+
+        public void setCursor(String cursor) {
+            this.cursor = cursor;
+        }
+
+        public Long getMinSequence() {
+            return minSequence;
+        }
+
+        public void setMinSequence(Long minSequence) {
+            this.minSequence = minSequence;
+        }
     }
 
 
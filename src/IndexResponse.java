@@ -1,11 +1,62 @@
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 
 public class IndexResponse implements Serializable {
     private boolean suc;
     private String message;
     private ResultData data;
+    /**
+     * Copied from IndexRequest.requestId
+     */
+    private Long requestId;
+    /**
+     * Set when the server turned the request away before handling it (overloaded or rate limited):
+     * how long to wait before sending it again
+     */
+    private Long retryAfterMillis;
+    /**
+     * IndexCodec encoding of everything but the request id, kept with cached responses so they are encoded once
+     */
+    private transient byte[] encodedBody;
+
+    public Long getRequestId() {
+        return requestId;
+    }
+
+    public void setRequestId(Long requestId) {
+        this.requestId = requestId;
+    }
+
+    public Long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    public void setRetryAfterMillis(Long retryAfterMillis) {
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public byte[] getEncodedBody() {
+        return encodedBody;
+    }
+
+    public void setEncodedBody(byte[] encodedBody) {
+        this.encodedBody = encodedBody;
+    }
+
+    /**
+     * A response sharing the data and encoding of this one, to answer another request with a cached response.
+     */
+    public IndexResponse copy() {
+        IndexResponse response = new IndexResponse();
+        response.setSuc(suc);
+        response.setMessage(message);
+        response.setData(data);
+        response.setEncodedBody(encodedBody);
+        return response;
+    }
+
     public boolean isSuc() {
         return suc;
     }
@@ -37,13 +88,54 @@ public class IndexResponse implements Serializable {
          */
         private String peerId;
         /**
-         * register use
+         * search use: the matching names of this page, in index order
          */
         private ArrayList<String> files;
+        /**
+         * register use: names newly added to the index; shard remove use: postings dropped
+         */
+        private Integer registeredCount;
+        /**
+         * register use: names the peer had already registered under the same path
+         */
+        private Integer duplicateCount;
+        /**
+         * chunked register use
+         */
+        private String sessionId;
         /**
          * lookup use
          */
         private HashMap<Integer,LookupItem> peerAndIpMapping;
+        /**
+         * multi lookup use, file name -> holders; names that were not found are absent
+         */
+        private HashMap<String,HashMap<Integer,LookupItem>> multiLookupMapping;
+        /**
+         * search and lookup use: cursor of the next page, null on the last page
+         */
+        private String nextCursor;
+        /**
+         * register and heartbeat use: how long the peer stays indexed without a heartbeat, null when leases are off
+         */
+        private Long leaseMillis;
+        /**
+         * write use: sequence of the primary that covers the write, for read-your-writes on replicas;
+         * replication status use: the last sequence published (primary) or applied (replica)
+         */
+        private Long sequence;
+        /**
+         * replication status use, replica only: how far it may be behind the primary, -1 while it has no complete copy
+         */
+        private Long replicationLagMillis;
+        /**
+         * stats use: counters and latencies (nanoseconds) of the server by name, e.g. LOOKUP.service.p99
+         */
+        private LinkedHashMap<String,Long> stats;
+        /**
+         * lookup use: how many postings the file has, the holders of every page together
+         */
+        private Integer holderCount;
 
         public String getPeerId() {
             return peerId;
@@ -53,6 +145,54 @@ public class IndexResponse implements Serializable {
             this.peerId = peerId;
         }
 
+        public String getNextCursor() {
+            return nextCursor;
+        }
+
+        public void setNextCursor(String nextCursor) {
+            this.nextCursor = nextCursor;
+        }
+
+        public Long getLeaseMillis() {
+            return leaseMillis;
+        }
+
+        public void setLeaseMillis(Long leaseMillis) {
+            this.leaseMillis = leaseMillis;
+        }
+
+        public Long getSequence() {
+            return sequence;
+        }
+
+        public void setSequence(Long sequence) {
+            this.sequence = sequence;
+        }
+
+        public Long getReplicationLagMillis() {
+            return replicationLagMillis;
+        }
+
+        public void setReplicationLagMillis(Long replicationLagMillis) {
+            this.replicationLagMillis = replicationLagMillis;
+        }
+
+        public LinkedHashMap<String, Long> getStats() {
+            return stats;
+        }
+
+        public void setStats(LinkedHashMap<String, Long> stats) {
+            this.stats = stats;
+        }
+
+        public Integer getHolderCount() {
+            return holderCount;
+        }
+
+        public void setHolderCount(Integer holderCount) {
+            this.holderCount = holderCount;
+        }
+
         public ArrayList<String> getFiles() {
             return files;
         }
@@ -61,6 +201,30 @@ public class IndexResponse implements Serializable {
             this.files = files;
         }
 
+        public Integer getRegisteredCount() {
+            return registeredCount;
+        }
+
+        public void setRegisteredCount(Integer registeredCount) {
+            this.registeredCount = registeredCount;
+        }
+
+        public Integer getDuplicateCount() {
+            return duplicateCount;
+        }
+
+        public void setDuplicateCount(Integer duplicateCount) {
+            this.duplicateCount = duplicateCount;
+        }
+
+        public String getSessionId() {
+            return sessionId;
+        }
+
+        public void setSessionId(String sessionId) {
+            this.sessionId = sessionId;
+        }
+
         public HashMap<Integer, LookupItem> getPeerAndIpMapping() {
             return peerAndIpMapping;
         }
@@ -68,6 +232,14 @@ public class IndexResponse implements Serializable {
         public void setPeerAndIpMapping(HashMap<Integer, LookupItem> peerAndIpMapping) {
             this.peerAndIpMapping = peerAndIpMapping;
         }
+
+        public HashMap<String, HashMap<Integer, LookupItem>> getMultiLookupMapping() {
+            return multiLookupMapping;
+        }
+
+        public void setMultiLookupMapping(HashMap<String, HashMap<Integer, LookupItem>> multiLookupMapping) {
+            this.multiLookupMapping = multiLookupMapping;
+        }
     }
 
     public static class LookupItem implements Serializable{
@@ -124,6 +296,12 @@ public class IndexResponse implements Serializable {
         return indexResponse;
     }
 
+    public static IndexResponse retryLaterResp(String message, long retryAfterMillis){
+        IndexResponse indexResponse = failedResp(message);
+        indexResponse.setRetryAfterMillis(retryAfterMillis);
+        return indexResponse;
+    }
+
     public static IndexResponse sucResp(ResultData data){
         IndexResponse indexResponse = new IndexResponse();
         indexResponse.setSuc(true);
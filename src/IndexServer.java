@@ -1,13 +1,18 @@
 import java.io.*;
 import java.net.*;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.FileHandler;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
@@ -15,20 +20,163 @@ import java.util.logging.SimpleFormatter;
 public class IndexServer {
 
     private static Logger LOGGER = Logger.getLogger(IndexServer.class.getName());
-    private final ConcurrentMap<String,FilesStoreEntity> indexFilesStore = new ConcurrentHashMap<>();
-    private final ConcurrentMap<String, Set<String>> searchFilesMapping = new ConcurrentHashMap<>();
-    private final ReadWriteLock rwLock = new ReentrantReadWriteLock();
-    private final Lock rLock = rwLock.readLock();
-    private final Lock wLock = rwLock.writeLock();
+    /** peer key id -> peer **/
+    private final ConcurrentMap<Integer,FilesStoreEntity> indexFilesStore = new ConcurrentHashMap<>();
+    /**
+     * name, path and peer dictionaries plus the inverted index: file name id -> (peer key id, path id) postings.
+     * Every name, path and peer key is stored once; the index structures only hold their ids
+     **/
+    private final IndexStore indexStore;
+    /** prefix and trigram indexes over the file names for SEARCH **/
+    private final NameSearchIndex nameSearchIndex;
+    /** LOOKUP responses of popular names, invalidated per name by register and unregister **/
+    private final LookupCache lookupCache;
 
     private static final String PEER_KEY_FORMAT = "peer_key_Id:%s_ip:%s";
 
-    private static void configureLogging() {
+    /** postings of a LOOKUP page its cursor carries, the next page resumes after the latest one still registered **/
+    private static final int CURSOR_POSTINGS = 4;
+
+    /** open chunked registrations, by session id **/
+    private final ConcurrentMap<String, RegisterSession> registerSessions = new ConcurrentHashMap<>();
+
+    /** durable log of register / unregister, null when the index is kept in memory only **/
+    private IndexWal indexWal;
+
+    /** primary: streams every mutation to the replicas, null when no replica is served **/
+    private volatile ReplicationSource replicationSource;
+    /** replica: applies the primary's stream, this server is read-only when set **/
+    private volatile ReplicationFollower replicationFollower;
+
+    /** peers that neither register nor heartbeat for this long are dropped, 0 when leases are off **/
+    private volatile long leaseMillis;
+    private volatile LeaseWheel<FilesStoreEntity> leaseWheel;
+
+    /** one log line per file dropped with its peer, off by default: an unregister would log every file it held **/
+    private volatile boolean logFileLines = ConstantUtils.LOG_FILE_LINES;
+
+    /** client IPs allowed SHARD_IMPORT and SHARD_REMOVE, empty for any; null refuses them, as by default **/
+    private volatile Set<String> shardAdminAddresses;
+
+    /** counters and latency histograms, read with STATS or over JMX **/
+    private final IndexMetrics metrics = new IndexMetrics();
+
+    /** turns requests away before they are queued, null admits everything **/
+    private AdmissionControl admissionControl;
+    /** requests (nio, pipelined) and connections (thread mode) waiting for a thread, more are refused at once **/
+    private int workQueueSize = ConstantUtils.ADMISSION_QUEUE_SIZE;
+
+    /** picks the holders of a LOOKUP for the best k **/
+    private HolderRanker holderRanker = new HolderRanker(HolderRanker.Mode.fromConfig(ConstantUtils.LOOKUP_RANKING),
+            ConstantUtils.RANKING_ASSIGNED_WINDOW_MILLIS);
+
+    /** runs pipelined (tagged) requests of thread-per-connection clients **/
+    private ExecutorService requestThreadPool;
+
+    public IndexServer() {
+        this(new HeapIndexStore());
+    }
+
+    public IndexServer(IndexStore indexStore) {
+        this(indexStore, ConstantUtils.LOOKUP_CACHE_SIZE);
+    }
+
+    public IndexServer(IndexStore indexStore, int lookupCacheSize) {
+        this.indexStore = indexStore;
+        this.nameSearchIndex = new NameSearchIndex(indexStore);
+        this.lookupCache = new LookupCache(lookupCacheSize);
+    }
+
+    public void setLogFileLines(boolean logFileLines) {
+        this.logFileLines = logFileLines;
+    }
+
+    public IndexMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Accept SHARD_IMPORT and SHARD_REMOVE, which register files under any peer and drop any name, from
+     * the rebalancer; refused unless this was called.
+     * @param addresses client IPs the rebalancer connects from, empty for any
+     */
+    public void enableShardAdmin(Set<String> addresses) {
+        this.shardAdminAddresses = addresses;
+    }
+
+    /**
+     * How lookups for the best k holders rank them; set before the server starts.
+     */
+    public void setHolderRanker(HolderRanker holderRanker) {
+        this.holderRanker = holderRanker;
+    }
+
+    /**
+     * Rate limits per client and concurrency limits per kind of request; set before the server starts.
+     */
+    public void enableAdmissionControl(AdmissionControl admissionControl, int workQueueSize) {
+        this.admissionControl = admissionControl;
+        this.workQueueSize = workQueueSize;
+    }
+
+    public int getWorkQueueSize() {
+        return workQueueSize;
+    }
+
+    /**
+     * Pool of a fixed number of threads whose queue holds at most the work queue size, execute() throws
+     * RejectedExecutionException beyond that.
+     */
+    ExecutorService newBoundedPool(int threads) {
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(workQueueSize));
+    }
+
+    /**
+     * @return the answer for a request admission control turned away, null when it was admitted;
+     * an admitted request must be finished with release()
+     */
+    IndexResponse admit(IndexRequest peerRequest, String clientIp) {
+        IndexResponse rejected = admissionControl==null ? null : admissionControl.admit(peerRequest,clientIp);
+        if(rejected!=null){
+            rejected.setRequestId(peerRequest.getRequestId());
+        }
+        return rejected;
+    }
+
+    void release(IndexRequest peerRequest) {
+        if(admissionControl!=null){
+            admissionControl.release(peerRequest);
+        }
+    }
+
+    /**
+     * @return the answer for an admitted request the work queue had no room for, it is released already
+     */
+    IndexResponse queueFull(IndexRequest peerRequest) {
+        this.release(peerRequest);
+        IndexResponse rejected = admissionControl!=null ? admissionControl.queueFull()
+                : IndexResponse.retryLaterResp("Server busy, request queue full", ConstantUtils.ADMISSION_RETRY_MILLIS);
+        rejected.setRequestId(peerRequest.getRequestId());
+        return rejected;
+    }
+
+    /**
+     * @return the asynchronous handler, null when records are written on the logging thread
+     */
+    private static AsyncLogHandler configureLogging(ConfigReader config) {
         try {
             // Set the log output format
             System.setProperty("java.util.logging.SimpleFormatter.format",
                     "[%1$tF %1$tT] [%4$-7s] %5$s %n");
 
+            if (config.getBooleanProperty("index.log.async", true)) {
+                // Queue the records for a writer thread, lookups no longer wait on the log file and the console
+                return AsyncLogHandler.install("", "index_server.log",
+                        config.getIntProperty("index.log.queue.size", ConstantUtils.LOG_QUEUE_SIZE),
+                        config.getIntProperty("index.log.rate.per.second", ConstantUtils.LOG_RATE_PER_SECOND),
+                        config.getIntProperty("index.log.sample.every", ConstantUtils.LOG_SAMPLE_EVERY));
+            }
+
             // Create a log handler and output logs to a specified file
             FileHandler fileHandler = new FileHandler("index_server.log");
 
@@ -42,23 +190,421 @@ public class IndexServer {
         } catch (IOException e) {
             e.printStackTrace();
         }
+        return null;
     }
 
     public static void main(String[] args) throws IOException {
-        configureLogging();
-        new IndexServer().startServer(ConstantUtils.INDEX_SERVER_PORT);
+        ConfigReader config = new ConfigReader(ConstantUtils.SERVER_CONFIG_FILE);
+        AsyncLogHandler logHandler = configureLogging(config);
+        // The first argument (thread|nio) overrides index.server.mode
+        String mode = args.length > 0 ? args[0] : config.getProperty("index.server.mode");
+        int port = config.getIntProperty("index.server.port", ConstantUtils.INDEX_SERVER_PORT);
+
+        IndexStore indexStore = openIndexStore(config);
+        IndexServer indexServer = new IndexServer(indexStore, config.getIntProperty("index.lookup.cache.size", ConstantUtils.LOOKUP_CACHE_SIZE));
+        indexServer.setLogFileLines(config.getBooleanProperty("index.log.per.file", ConstantUtils.LOG_FILE_LINES));
+        indexServer.setHolderRanker(new HolderRanker(HolderRanker.Mode.fromConfig(config.getProperty("index.lookup.ranking")),
+                ConstantUtils.RANKING_ASSIGNED_WINDOW_MILLIS));
+        indexServer.metrics.setLogHandler(logHandler);
+        indexServer.metrics.setEnabled(config.getBooleanProperty("index.metrics.enabled", true));
+        if(indexServer.metrics.isEnabled()){
+            indexServer.metrics.registerMBeans();
+        }
+        indexServer.enableAdmissionControl(new AdmissionControl(
+                        config.getIntProperty("index.admission.rate.per.second", ConstantUtils.ADMISSION_RATE_PER_SECOND),
+                        config.getIntProperty("index.admission.burst", ConstantUtils.ADMISSION_BURST),
+                        config.getIntProperty("index.admission.heavy.concurrency", ConstantUtils.ADMISSION_HEAVY_CONCURRENCY),
+                        config.getIntProperty("index.admission.light.concurrency", ConstantUtils.ADMISSION_LIGHT_CONCURRENCY),
+                        config.getIntProperty("index.admission.retry.millis", (int) ConstantUtils.ADMISSION_RETRY_MILLIS),
+                        indexServer.metrics),
+                config.getIntProperty("index.admission.queue.size", ConstantUtils.ADMISSION_QUEUE_SIZE));
+        String role = config.getProperty("index.replication.role");
+        String walDir = config.getProperty("index.wal.dir");
+        IndexWal indexWal = null;
+        if ("replica".equalsIgnoreCase(role == null ? null : role.trim())) {
+            // A replica holds what the primary sends it, its own log and leases would only diverge from that
+            String primary = config.getProperty("index.replication.primary");
+            indexServer.startReplica(HashRing.hostOf(primary.trim()), HashRing.portOf(primary.trim()),
+                    config.getIntProperty("index.replica.max.lag.millis", (int) ConstantUtils.REPLICA_MAX_LAG_MILLIS));
+        } else if (walDir != null && !walDir.trim().isEmpty()) {
+            indexWal = new IndexWal(walDir.trim(), IndexWal.SyncPolicy.fromConfig(config.getProperty("index.wal.fsync")));
+            indexServer.enablePersistence(indexWal,
+                    config.getIntProperty("index.wal.fsync.interval.millis", (int) ConstantUtils.WAL_SYNC_INTERVAL_MILLIS),
+                    config.getIntProperty("index.snapshot.interval.seconds", (int) ConstantUtils.SNAPSHOT_INTERVAL_SECONDS));
+        }else{
+            indexServer.restoreFromStore();
+        }
+        if ("primary".equalsIgnoreCase(role == null ? null : role.trim())) {
+            indexServer.enableReplication(config.getIntProperty("index.replication.port", ConstantUtils.REPLICATION_PORT),
+                    config.getIntProperty("index.replication.backlog", ConstantUtils.REPLICATION_BACKLOG));
+        }
+        if (config.getBooleanProperty("index.shard.admin.enabled", ConstantUtils.SHARD_ADMIN_ENABLED)) {
+            Set<String> adminAddresses = new HashSet<>();
+            String addresses = config.getProperty("index.shard.admin.addresses");
+            for (String address : addresses == null ? new String[0] : addresses.split(",")) {
+                if (!address.trim().isEmpty()) {
+                    adminAddresses.add(address.trim());
+                }
+            }
+            indexServer.enableShardAdmin(adminAddresses);
+        }
+        if (indexServer.replicationFollower == null) {
+            indexServer.enableLeases(config.getIntProperty("index.peer.lease.seconds", ConstantUtils.PEER_LEASE_SECONDS)*1000L);
+        }
+        IndexWal shutdownWal = indexWal;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> indexServer.shutdown(shutdownWal), "index-shutdown"));
+        if ("nio".equalsIgnoreCase(mode)) {
+            int ioThreads = config.getIntProperty("index.server.nio.io.threads", ConstantUtils.NIO_IO_THREADS);
+            int computeThreads = config.getIntProperty("index.server.nio.compute.threads", ConstantUtils.NIO_COMPUTE_THREADS);
+            new NioIndexServer(indexServer, ioThreads, computeThreads).startServer(port);
+        } else {
+            indexServer.startServer(port);
+        }
+    }
+
+    /**
+     * index.store=heap (default) keeps the index on the java heap, index.store=mapped in memory-mapped files under index.store.dir.
+     */
+    private static IndexStore openIndexStore(ConfigReader config) throws IOException {
+        String store = config.getProperty("index.store");
+        if("mapped".equalsIgnoreCase(store==null ? null : store.trim())){
+            String storeDir = config.getProperty("index.store.dir");
+            return new MappedIndexStore(Paths.get(storeDir==null || storeDir.trim().isEmpty() ? ConstantUtils.INDEX_STORE_DIR : storeDir.trim()));
+        }
+        return new HeapIndexStore();
+    }
+
+    /**
+     * Rebuild the index from the snapshot and log, then log every mutation from now on.
+     * A store reopened from a checkpoint only needs the records logged after it.
+     * Must be called before the server accepts connections.
+     */
+    public void enablePersistence(IndexWal indexWal, long syncIntervalMillis, long snapshotIntervalSeconds) throws IOException {
+        long storeSequence = indexStore.getCheckpointSequence();
+        if(storeSequence>=0 && storeSequence<indexWal.getStoredSnapshotSequence()){
+            LOGGER.warning("The index store is at sequence "+storeSequence+", older than the snapshot, rebuilding it from the log");
+            indexStore.clear();
+            storeSequence = -1;
+        }
+        this.rebuildPeers();
+        indexWal.recover(this::applyRecord,storeSequence);
+        this.indexNamesInBackground();
+        this.indexWal = indexWal;
+        indexWal.start(this::dumpState,syncIntervalMillis,snapshotIntervalSeconds);
+    }
+
+    /**
+     * Replay one logged mutation, from the write-ahead log or the primary's replication stream.
+     */
+    private void applyRecord(IndexWal.Record record) throws IOException {
+        if(record.getType()==IndexWal.UNREGISTER){
+            this.removePeer(record.getPeerId(),record.getPeerAddress());
+        }else if(record.getType()==IndexWal.REMOVE_FILES){
+            int peerKeyId = indexStore.findPeer(record.getPeerId(),record.getPeerAddress());
+            if(peerKeyId>=0){
+                this.removeFiles(peerKeyId,indexStore.internPath(record.getFilePath()),record.getFiles());
+            }
+        }else{
+            this.registerFiles(record.getPeerId(),record.getPeerAddress(),record.getFilePath(),record.getFiles());
+        }
+    }
+
+    /**
+     * Serve replicas: from now on every mutation is numbered and streamed to them.
+     * Must be called before the server accepts connections.
+     */
+    public void enableReplication(int port, int backlogSize) throws IOException {
+        ReplicationSource source = new ReplicationSource(this::dumpState,indexWal==null ? 0 : indexWal.getLastSequence(),backlogSize);
+        source.start(port);
+        this.replicationSource = source;
+    }
+
+    /**
+     * Run as a read-only replica of the primary at primaryHost:primaryPort. The index starts empty
+     * and is filled from the primary's stream; reads are refused until the replica has a copy.
+     * @param maxLagMillis reads are refused while the replica may be more than this behind the primary
+     */
+    public void startReplica(String primaryHost, int primaryPort, long maxLagMillis) throws IOException {
+        indexStore.clear();
+        ReplicationFollower follower = new ReplicationFollower(primaryHost,primaryPort,maxLagMillis,new ReplicationFollower.Target() {
+            @Override
+            public void reset() throws IOException {
+                for(FilesStoreEntity filesStoreEntity:indexFilesStore.values()){
+                    removePeer(filesStoreEntity.getPeerId(),filesStoreEntity.getFileServerAddress());
+                }
+            }
+
+            @Override
+            public void apply(IndexWal.Record record) throws IOException {
+                applyRecord(record);
+            }
+
+            @Override
+            public void caughtUp() {
+                nameSearchIndex.indexNewNamesLater();
+            }
+        });
+        this.replicationFollower = follower;
+        follower.start();
+    }
+
+    /**
+     * Log one mutation and hand it to the replicas; the caller holds the lock of the peer it changed.
+     * @return its sequence, 0 when the mutation is neither logged nor replicated
+     */
+    private long logMutation(byte type, String peerId, String peerAddress, String filePath, List<String> files) throws IOException {
+        ReplicationSource source = replicationSource;
+        if(source!=null){
+            return source.publish(type,peerId,peerAddress,filePath,files,indexWal);
+        }
+        return indexWal==null ? 0 : indexWal.append(type,peerId,peerAddress,filePath,files);
+    }
+
+    private boolean isMutationLogged() {
+        return indexWal!=null || replicationSource!=null;
+    }
+
+    /**
+     * Wait until a logged mutation is durable, called once the peer lock is released.
+     */
+    private void awaitDurable(long sequence) throws IOException {
+        if(sequence>0 && indexWal!=null){
+            indexWal.awaitDurable(sequence);
+        }
+    }
+
+    /**
+     * Drop peers whose lease lapsed. Every indexed peer, including the ones recovered at start,
+     * gets a full lease from now to send its first heartbeat.
+     * @param leaseMillis 0 keeps peers until they unregister
+     */
+    public void enableLeases(long leaseMillis) {
+        if(leaseMillis<=0){
+            return;
+        }
+        LeaseWheel<FilesStoreEntity> wheel = new LeaseWheel<>(ConstantUtils.LEASE_WHEEL_SIZE,ConstantUtils.LEASE_TICK_MILLIS,
+                entity -> entity.isRemoved() ? -1 : entity.getLeaseExpireTime(),this::expirePeer);
+        this.leaseMillis = leaseMillis;
+        this.leaseWheel = wheel;
+        long deadline = System.currentTimeMillis()+leaseMillis;
+        for(FilesStoreEntity filesStoreEntity:indexFilesStore.values()){
+            filesStoreEntity.setLeaseExpireTime(deadline);
+            wheel.schedule(filesStoreEntity,deadline);
+        }
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "lease-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(() -> {
+            try{
+                int expired = wheel.sweep(System.currentTimeMillis());
+                if(expired>0){
+                    LOGGER.info("Lease sweep dropped "+expired+" peers, "+indexFilesStore.size()+" left");
+                }
+            }catch (RuntimeException e){
+                LOGGER.severe("lease sweep error,msg:"+e.getMessage());
+            }
+        },ConstantUtils.LEASE_TICK_MILLIS,ConstantUtils.LEASE_TICK_MILLIS,TimeUnit.MILLISECONDS);
+        LOGGER.info("Peer leases of "+leaseMillis+" ms enabled for "+indexFilesStore.size()+" peers");
+    }
+
+    /**
+     * A new peer entity, put on the lease wheel when leases are on.
+     */
+    private FilesStoreEntity newLeasedEntity(String peerId) {
+        FilesStoreEntity filesStoreEntity = newFilesStoreEntity(peerId);
+        LeaseWheel<FilesStoreEntity> wheel = leaseWheel;
+        if(wheel!=null){
+            long deadline = System.currentTimeMillis()+leaseMillis;
+            filesStoreEntity.setLeaseExpireTime(deadline);
+            wheel.schedule(filesStoreEntity,deadline);
+        }
+        return filesStoreEntity;
+    }
+
+    /**
+     * Called by the lease sweeper. Only this peer's lock is taken, so registers and lookups of other peers go on.
+     * @return false when the peer renewed its lease meanwhile
+     */
+    private boolean expirePeer(FilesStoreEntity filesStoreEntity) {
+        long walSequence = 0;
+        try{
+            synchronized (filesStoreEntity){
+                if(filesStoreEntity.isRemoved()){
+                    return true;
+                }
+                if(filesStoreEntity.getLeaseExpireTime()>System.currentTimeMillis()){
+                    return false;
+                }
+                String peerAddress = filesStoreEntity.getFileServerAddress();
+                LOGGER.info("The lease of peer (ID:"+filesStoreEntity.getPeerId()+", IP:"+peerAddress+") lapsed, dropping its files");
+                walSequence = this.dropPeer(filesStoreEntity,indexStore.findPeer(filesStoreEntity.getPeerId(),peerAddress),
+                        filesStoreEntity.getPeerId(),peerAddress);
+            }
+            this.awaitDurable(walSequence);
+        }catch (IOException e){
+            LOGGER.severe("expire peer error,error:"+e.getMessage());
+        }
+        return true;
+    }
+
+    /**
+     * Renew the lease of a registered peer.
+     * @param activeUploads uploads the peer's file server reported, null when it did not report
+     */
+    private IndexResponse heartbeat(String peerId, String peerAddress, Integer activeUploads) {
+        int peerKeyId = indexStore.findPeer(peerId,peerAddress);
+        FilesStoreEntity filesStoreEntity = peerKeyId<0 ? null : indexFilesStore.get(peerKeyId);
+        if(filesStoreEntity!=null){
+            synchronized (filesStoreEntity){
+                if(!filesStoreEntity.isRemoved()){
+                    this.renewLease(filesStoreEntity);
+                    if(activeUploads!=null){
+                        HolderRanker.reportUploads(filesStoreEntity,activeUploads);
+                    }
+                    IndexResponse.ResultData resultData = new IndexResponse.ResultData();
+                    resultData.setPeerId(peerId);
+                    resultData.setLeaseMillis(leaseMillis>0 ? leaseMillis : null);
+                    return IndexResponse.sucResp(resultData);
+                }
+            }
+        }
+        return this.failedResult("Unknown peer, register again. peerId:"+peerId+", IP:"+peerAddress);
+    }
+
+    /**
+     * A downloader's report of a download it finished, for ranking the peer that served it.
+     * Unknown peers are ignored, the report only steers later lookups.
+     */
+    private IndexResponse transferReport(IndexRequest.IndexRegister transferReport) {
+        int peerKeyId = indexStore.findPeer(transferReport.getPeerId(),transferReport.getPeerAddress());
+        FilesStoreEntity filesStoreEntity = peerKeyId<0 ? null : indexFilesStore.get(peerKeyId);
+        if(filesStoreEntity!=null){
+            HolderRanker.reportTransfer(filesStoreEntity,transferReport.getTransferBytes(),transferReport.getTransferMillis());
+        }
+        return IndexResponse.sucResp("Transfer report received");
+    }
+
+    private void renewLease(FilesStoreEntity filesStoreEntity) {
+        long lease = leaseMillis;
+        if(lease>0){
+            filesStoreEntity.setLeaseExpireTime(System.currentTimeMillis()+lease);
+        }
+    }
+
+    /**
+     * Serve what the store kept over a restart, for a server without a write-ahead log.
+     */
+    public void restoreFromStore() {
+        this.rebuildPeers();
+        this.indexNamesInBackground();
+    }
+
+    /**
+     * Rebuild the peers' registration sets from the postings of a store that kept its content over a restart.
+     */
+    private void rebuildPeers() {
+        if(indexStore.getCheckpointSequence()<0){
+            return;
+        }
+        long start = System.currentTimeMillis();
+        Date date = new Date();
+        int nameCount = indexStore.nameCount();
+        for(int nameId=0;nameId<nameCount;nameId++){
+            PostingList postingList = indexStore.getPostings(nameId);
+            if(postingList==null){
+                continue;
+            }
+            for(int i=0;i<postingList.size();i++){
+                int peerKeyId = postingList.getPeerId(i);
+                FilesStoreEntity filesStoreEntity = indexFilesStore.computeIfAbsent(peerKeyId, key -> {
+                    FilesStoreEntity entity = newFilesStoreEntity(indexStore.getPeerId(key));
+                    entity.setAddTime(date);
+                    entity.setFileServerAddress(indexStore.getPeerAddress(key));
+                    entity.setFileServerPort(ConstantUtils.FILE_SERVER_DEFAULT_PORT);
+                    return entity;
+                });
+                filesStoreEntity.getPathFilesMapping().computeIfAbsent(postingList.getPathId(i), key -> new IntHashSet()).add(nameId);
+            }
+        }
+        LOGGER.info("Index restored from the store: "+nameCount+" names, "+indexFilesStore.size()+" peers in "+(System.currentTimeMillis()-start)+" ms");
+    }
+
+    /**
+     * Index the names for SEARCH on a background thread after a start, so lookups are served meanwhile.
+     * SEARCH may miss names until it is done, and names registered meanwhile until the indexer thread reaches them.
+     */
+    private void indexNamesInBackground() {
+        Thread thread = new Thread(() -> {
+            long start = System.currentTimeMillis();
+            nameSearchIndex.indexNewNames();
+            LOGGER.info("Search index rebuilt over "+indexStore.nameCount()+" names in "+(System.currentTimeMillis()-start)+" ms");
+        }, "name-search-index");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Flush the log and checkpoint the store, so a mapped store opens with its content on the next start.
+     */
+    void shutdown(IndexWal indexWal) {
+        try{
+            long walSequence = 0;
+            if(indexWal!=null){
+                indexWal.close();
+                walSequence = indexWal.getLastSequence();
+            }
+            indexStore.checkpoint(walSequence);
+            indexStore.close();
+        }catch (IOException e){
+            LOGGER.severe("index shutdown error,msg:"+e.getMessage());
+        }
+    }
+
+    /**
+     * Write every (peer, path) of the index as one REGISTER record. Each peer is copied under its lock,
+     * so the snapshot holds a state the peer really was in.
+     */
+    private void dumpState(IndexWal.RecordSink sink) throws IOException {
+        for(FilesStoreEntity filesStoreEntity:indexFilesStore.values()){
+            Map<Integer,int[]> pathFiles = new HashMap<>();
+            synchronized (filesStoreEntity){
+                if(filesStoreEntity.isRemoved()){
+                    continue;
+                }
+                for(Map.Entry<Integer,IntHashSet> entry: filesStoreEntity.getPathFilesMapping().entrySet()){
+                    pathFiles.put(entry.getKey(),entry.getValue().toArray());
+                }
+            }
+            for(Map.Entry<Integer,int[]> entry: pathFiles.entrySet()){
+                List<String> files = new ArrayList<>(entry.getValue().length);
+                for(int nameId:entry.getValue()){
+                    files.add(indexStore.getName(nameId));
+                }
+                sink.accept(new IndexWal.Record(IndexWal.REGISTER,0,filesStoreEntity.getPeerId(),
+                        filesStoreEntity.getFileServerAddress(),indexStore.getPath(entry.getKey()),files));
+            }
+        }
     }
 
     public void startServer(int port) throws IOException {
         ServerSocket serverSocket = new ServerSocket(port);
-        ExecutorService workerThreadPool = Executors.newFixedThreadPool(ConstantUtils.THREAD_POOL_SIZE);
+        ExecutorService workerThreadPool = this.newBoundedPool(ConstantUtils.THREAD_POOL_SIZE);
+        requestThreadPool = this.newBoundedPool(ConstantUtils.PIPELINE_THREAD_POOL_SIZE);
 
-        LOGGER.info("The index service is started successfully. port: "+ConstantUtils.INDEX_SERVER_PORT);
+        LOGGER.info("The index service is started successfully. port: "+port);
         while(true) {
             try {
                 Socket clientSocket = serverSocket.accept();
                 // 将客户端连接交给工作线程池处理
-                workerThreadPool.submit(() -> handleClient(clientSocket));
+                try{
+                    workerThreadPool.execute(() -> handleClient(clientSocket));
+                }catch (RejectedExecutionException e){
+                    // Every worker busy and the queue full, a refused connect costs the client less than a long wait
+                    LOGGER.warning("Connection from "+clientSocket.getInetAddress().getHostAddress()+" refused, too many connections");
+                    clientSocket.close();
+                }
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -66,74 +612,74 @@ public class IndexServer {
     }
 
     private void handleClient(Socket clientSocket)  {
+        Semaphore inFlight = new Semaphore(ConstantUtils.MAX_PIPELINED_REQUESTS);
         try {
 
-            ObjectInputStream inputStream = new ObjectInputStream(clientSocket.getInputStream());
-            ObjectOutputStream outputStream = new ObjectOutputStream(clientSocket.getOutputStream());
+            IndexTransport transport = IndexTransport.accept(clientSocket);
 
             String clientIp = clientSocket.getInetAddress().getHostAddress();
 
-            this.writeSucResult(IndexResponse.sucResp("Connection established successfully"),outputStream);
+            this.writeSucResult(IndexResponse.sucResp("Connection established successfully"),transport);
 
             while(true){
-                IndexRequest peerRequest = (IndexRequest) inputStream.readObject();
+                IndexRequest peerRequest = transport.readRequest();
 
                 if(peerRequest==null){
-                    this.writeResult(false,null,"The request object is empty",outputStream);
+                    this.writeResult(false,null,"The request object is empty",transport);
                     return ;
                 }
 
-                IndexResponse indexResponse;
-                switch (RequestTypeEnum.getEnumByCode(peerRequest.getRequestType())){
-                    case REGISTER:
-                        IndexRequest.IndexRegister indexRegister =  peerRequest.getIndexRegister();
-                        if(indexRegister==null || indexRegister.getPeerId()==null
-                                || "".equals(indexRegister.getPeerId()) || indexRegister.getFiles()==null
-                                || indexRegister.getFiles().size()<1 || indexRegister.getFilePath()==null
-                                || "".equals(indexRegister.getFilePath())){
-
-                            this.writeFailedResult("The request IndexRegister is invalid",outputStream);
-                            return ;
-                        }
-
-                        indexResponse = register( indexRegister ,clientIp);
-                        this.writeSucResult(indexResponse,outputStream);
+                if(peerRequest.getRequestType()!=null
+                        && RequestTypeEnum.getEnumByCode(peerRequest.getRequestType())==RequestTypeEnum.DISCONNECT){
+                    LOGGER.info("The client has requested that the connection be closed");
+                    return ;
+                }
 
-                        break;
-                    case UNREGISTER:
-                        IndexRequest.IndexRegister unRegister =  peerRequest.getIndexRegister();
-                        if(unRegister==null || unRegister.getPeerId()==null || "".equals(unRegister.getPeerId())  ){
-                            this.writeFailedResult("The request IndexRegister is invalid",outputStream);
-                            return ;
-                        }
+                IndexResponse rejected = this.admit(peerRequest,clientIp);
+                if(rejected!=null){
+                    this.writeSucResult(rejected,transport);
+                    continue;
+                }
 
-                        indexResponse = unRegister(unRegister.getPeerId(),clientIp);
+                if(peerRequest.getRequestId()==null){
+                    try{
+                        this.respond(peerRequest,clientIp,-1,transport);
+                    }finally {
+                        this.release(peerRequest);
+                    }
+                    continue;
+                }
 
-                        this.writeSucResult(indexResponse,outputStream);
-                        break;
-                    case LOOKUP:
-                        IndexRequest.IndexSearch indexSearch =  peerRequest.getIndexSearch();
-                        if(indexSearch==null || indexSearch.getFileName()==null){
-                            this.writeFailedResult("The request IndexSearch is invalid",outputStream);
-                            return ;
+                // Tagged requests may be answered out of order, run them on the request pool
+                inFlight.acquire();
+                long queuedAt = System.nanoTime();
+                try{
+                    requestThreadPool.execute(() -> {
+                        try{
+                            this.respond(peerRequest,clientIp,queuedAt,transport);
+                        }catch (IOException e){
+                            LOGGER.info("server write response error,msg:"+e.getMessage());
+                        }catch (RuntimeException e){
+                            LOGGER.warning("server write response error,msg:"+e);
+                            this.respondFailed(peerRequest,e,transport);
+                        }finally {
+                            this.release(peerRequest);
+                            inFlight.release();
                         }
-                        indexResponse = lookup(indexSearch.getFileName());
-
-                        this.writeSucResult(indexResponse,outputStream);
-                        break;
-                    case DISCONNECT:
-
-                        LOGGER.info("The client has requested that the connection be closed");
-                        return ;
-                    default:
-                        this.writeFailedResult("Unrecognized request type,requestType:"+peerRequest.getRequestType(),outputStream);
-                        break;
+                    });
+                }catch (RejectedExecutionException e){
+                    inFlight.release();
+                    this.writeSucResult(this.queueFull(peerRequest),transport);
                 }
             }
         } catch (IOException | ClassNotFoundException e) {
             LOGGER.info("server handleClient error,msg:"+e.getMessage());
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }finally {
+            // Let the pipelined requests of this connection finish before the socket goes away
+            inFlight.acquireUninterruptibly(ConstantUtils.MAX_PIPELINED_REQUESTS);
             if(clientSocket!=null && clientSocket.isConnected()){
                 try{
                     clientSocket.close();
@@ -145,181 +691,899 @@ public class IndexServer {
         }
     }
 
-    private void writeSucResult(IndexResponse indexResponse,ObjectOutputStream out) throws IOException {
-        this.writeResult(true,indexResponse,null,out);
+    /**
+     * Handle a request of a thread-per-connection client and write its response.
+     * @param queuedAt System.nanoTime() when the request was queued for the pool, -1 when it runs on the reading thread
+     */
+    private void respond(IndexRequest peerRequest, String clientIp, long queuedAt, IndexTransport transport) throws IOException {
+        IndexResponse indexResponse = this.handleRequest(peerRequest,clientIp,queuedAt);
+        if(!metrics.isEnabled()){
+            this.writeSucResult(indexResponse,transport);
+            return;
+        }
+        long start = System.nanoTime();
+        this.writeSucResult(indexResponse,transport);
+        metrics.recordSerialization(peerRequest.getRequestType(),System.nanoTime()-start);
+    }
+
+    private void respondFailed(IndexRequest peerRequest, RuntimeException e, IndexTransport transport) {
+        try{
+            this.writeSucResult(this.failedResponse(peerRequest,e),transport);
+        }catch (IOException | RuntimeException writeError){
+            LOGGER.info("server write response error,msg:"+writeError.getMessage());
+        }
+    }
+
+    /**
+     * Execute one request and build its response, independent of the wire format it arrived in.
+     */
+    IndexResponse handleRequest(IndexRequest peerRequest, String clientIp) {
+        return this.handleRequest(peerRequest,clientIp,-1);
+    }
+
+    /**
+     * @param queuedAt System.nanoTime() when the request was queued for a thread, -1 when it did not wait in a pool
+     */
+    IndexResponse handleRequest(IndexRequest peerRequest, String clientIp, long queuedAt) {
+        if(!metrics.isEnabled()){
+            return this.dispatchTagged(peerRequest, clientIp);
+        }
+        long start = System.nanoTime();
+        IndexResponse indexResponse = this.dispatchTagged(peerRequest, clientIp);
+        metrics.recordRequest(peerRequest.getRequestType(), queuedAt<0 ? -1 : start-queuedAt, System.nanoTime()-start, indexResponse.isSuc());
+        return indexResponse;
+    }
+
+    /**
+     * Dispatch and tag the response with the request id. A handler that throws still gets the client
+     * a failed response, a pipelined client would otherwise wait for it forever.
+     */
+    private IndexResponse dispatchTagged(IndexRequest peerRequest, String clientIp) {
+        IndexResponse indexResponse;
+        try{
+            indexResponse = this.dispatch(peerRequest, clientIp);
+        }catch (RuntimeException e){
+            LOGGER.warning("Request type "+peerRequest.getRequestType()+" from "+clientIp+" failed: "+e);
+            indexResponse = this.failedResponse(peerRequest, e);
+        }
+        indexResponse.setRequestId(peerRequest.getRequestId());
+        return indexResponse;
+    }
+
+    /**
+     * The failed response of a request whose handling or encoding threw, tagged with its request id.
+     */
+    IndexResponse failedResponse(IndexRequest peerRequest, RuntimeException e) {
+        IndexResponse failed = IndexResponse.failedResp("The server failed to handle the request: "+e);
+        failed.setRequestId(peerRequest.getRequestId());
+        return failed;
     }
-    private void writeFailedResult(String message,ObjectOutputStream out) throws IOException {
-        this.writeResult(false,null,message,out);
+
+    private IndexResponse dispatch(IndexRequest peerRequest, String clientIp) {
+        ReplicationFollower follower = replicationFollower;
+        if(follower!=null){
+            IndexResponse refused = this.checkReplicaRead(follower,peerRequest);
+            if(refused!=null){
+                return refused;
+            }
+        }
+        switch (RequestTypeEnum.getEnumByCode(peerRequest.getRequestType())){
+            case REGISTER:
+                IndexRequest.IndexRegister indexRegister =  peerRequest.getIndexRegister();
+                if(indexRegister==null || indexRegister.getPeerId()==null
+                        || "".equals(indexRegister.getPeerId()) || indexRegister.getFiles()==null
+                        || indexRegister.getFiles().size()<1 || indexRegister.getFilePath()==null
+                        || "".equals(indexRegister.getFilePath())){
+
+                    return this.failedResult("The request IndexRegister is invalid");
+                }
+
+                return register( indexRegister ,clientIp);
+            case UNREGISTER:
+                IndexRequest.IndexRegister unRegister =  peerRequest.getIndexRegister();
+                if(unRegister==null || unRegister.getPeerId()==null || "".equals(unRegister.getPeerId())  ){
+                    return this.failedResult("The request IndexRegister is invalid");
+                }
+
+                return unRegister(unRegister.getPeerId(),clientIp);
+            case REGISTER_BEGIN:
+                IndexRequest.IndexRegister registerBegin =  peerRequest.getIndexRegister();
+                if(registerBegin==null || registerBegin.getPeerId()==null || "".equals(registerBegin.getPeerId())
+                        || registerBegin.getFilePath()==null || "".equals(registerBegin.getFilePath())){
+                    return this.failedResult("The request IndexRegister is invalid");
+                }
+                return registerBegin(registerBegin,clientIp);
+            case REGISTER_CHUNK:
+                IndexRequest.IndexRegister registerChunk =  peerRequest.getIndexRegister();
+                if(registerChunk==null || registerChunk.getSessionId()==null || registerChunk.getFiles()==null){
+                    return this.failedResult("The request IndexRegister is invalid");
+                }
+                return registerChunk(registerChunk,clientIp);
+            case REGISTER_COMMIT:
+                IndexRequest.IndexRegister registerCommit =  peerRequest.getIndexRegister();
+                if(registerCommit==null || registerCommit.getSessionId()==null){
+                    return this.failedResult("The request IndexRegister is invalid");
+                }
+                return registerCommit(registerCommit,clientIp);
+            case LOOKUP:
+                IndexRequest.IndexSearch indexSearch =  peerRequest.getIndexSearch();
+                if(indexSearch==null || indexSearch.getFileName()==null
+                        || (indexSearch.getLimit()!=null && indexSearch.getLimit()<1)){
+                    return this.failedResult("The request IndexSearch is invalid");
+                }
+                if(indexSearch.getLimit()==null && indexSearch.getCursor()==null){
+                    return lookup(indexSearch.getFileName());
+                }
+                return lookupPage(indexSearch,clientIp);
+            case MULTI_LOOKUP:
+                IndexRequest.IndexSearch multiSearch =  peerRequest.getIndexSearch();
+                if(multiSearch!=null && multiSearch.getLimit()!=null && multiSearch.getLimit()<1){
+                    return this.failedResult("The request IndexSearch is invalid");
+                }
+                List<String> fileNames = multiSearch==null ? null : expandFileNames(multiSearch);
+                if(fileNames==null){
+                    return this.failedResult("The request IndexSearch is invalid, it needs a name list or a name pattern with one bare %d over a range, at most "+ConstantUtils.MAX_MULTI_LOOKUP_SIZE+" names per multi lookup");
+                }
+                return multiLookup(fileNames,multiSearch.getLimit()==null ? Integer.MAX_VALUE : multiSearch.getLimit(),clientIp);
+            case HEARTBEAT:
+                IndexRequest.IndexRegister heartbeat =  peerRequest.getIndexRegister();
+                if(heartbeat==null || heartbeat.getPeerId()==null || "".equals(heartbeat.getPeerId())){
+                    return this.failedResult("The request IndexRegister is invalid");
+                }
+                return heartbeat(heartbeat.getPeerId(),clientIp,heartbeat.getActiveUploads());
+            case TRANSFER_REPORT:
+                IndexRequest.IndexRegister transferReport =  peerRequest.getIndexRegister();
+                if(transferReport==null || transferReport.getPeerId()==null || transferReport.getPeerAddress()==null
+                        || transferReport.getTransferBytes()==null || transferReport.getTransferMillis()==null){
+                    return this.failedResult("The request IndexRegister is invalid");
+                }
+                return transferReport(transferReport);
+            case SEARCH:
+                IndexRequest.IndexSearch patternSearch =  peerRequest.getIndexSearch();
+                if(patternSearch==null || patternSearch.getQuery()==null || "".equals(patternSearch.getQuery())
+                        || (patternSearch.getLimit()!=null && patternSearch.getLimit()<1)){
+                    return this.failedResult("The request IndexSearch is invalid");
+                }
+                return search(patternSearch);
+            case SHARD_EXPORT:
+                IndexRequest.IndexSearch exportSearch =  peerRequest.getIndexSearch();
+                if(exportSearch==null || (exportSearch.getLimit()!=null && exportSearch.getLimit()<1)){
+                    return this.failedResult("The request IndexSearch is invalid");
+                }
+                return shardExport(exportSearch);
+            case SHARD_IMPORT:
+                if(!this.isShardAdmin(clientIp)){
+                    return this.failedResult("SHARD_IMPORT is refused from "+clientIp+", see index.shard.admin.enabled and index.shard.admin.addresses");
+                }
+                IndexRequest.IndexRegister shardImport =  peerRequest.getIndexRegister();
+                if(shardImport==null || shardImport.getPeerId()==null || "".equals(shardImport.getPeerId())
+                        || shardImport.getPeerAddress()==null || shardImport.getFiles()==null
+                        || shardImport.getFilePath()==null || "".equals(shardImport.getFilePath())){
+                    return this.failedResult("The request IndexRegister is invalid");
+                }
+                return shardImport(shardImport);
+            case SHARD_REMOVE:
+                if(!this.isShardAdmin(clientIp)){
+                    return this.failedResult("SHARD_REMOVE is refused from "+clientIp+", see index.shard.admin.enabled and index.shard.admin.addresses");
+                }
+                IndexRequest.IndexSearch shardRemove =  peerRequest.getIndexSearch();
+                if(shardRemove==null || shardRemove.getFileNames()==null
+                        || shardRemove.getFileNames().size()>ConstantUtils.MAX_MULTI_LOOKUP_SIZE){
+                    return this.failedResult("The request IndexSearch is invalid, at most "+ConstantUtils.MAX_MULTI_LOOKUP_SIZE+" names per shard remove");
+                }
+                return shardRemove(shardRemove.getFileNames());
+            case REPLICATION_STATUS:
+                return replicationStatus();
+            case STATS:
+                IndexResponse.ResultData statsData = new IndexResponse.ResultData();
+                statsData.setStats(metrics.toMap());
+                return IndexResponse.sucResp(statsData);
+            default:
+                return this.failedResult("Unrecognized request type,requestType:"+peerRequest.getRequestType());
+        }
     }
-    private void writeResult(boolean suc,IndexResponse indexResponse,String message,ObjectOutputStream out) throws IOException {
+
+    /**
+     * A replica only answers reads, and only while it is within its lag bound and, for read-your-writes,
+     * holds the write the client names.
+     * @return the refusal, null when the request may go ahead
+     */
+    private IndexResponse checkReplicaRead(ReplicationFollower follower, IndexRequest peerRequest) {
+        switch (RequestTypeEnum.getEnumByCode(peerRequest.getRequestType())){
+            case LOOKUP:
+            case MULTI_LOOKUP:
+            case SEARCH:
+            case SHARD_EXPORT:
+                Long minSequence = peerRequest.getIndexSearch()==null ? null : peerRequest.getIndexSearch().getMinSequence();
+                try{
+                    if(!follower.awaitReadable(minSequence,ConstantUtils.REPLICA_READ_WAIT_MILLIS)){
+                        return this.failedResult(ConstantUtils.REPLICA_UNAVAILABLE+", applied sequence "+follower.getAppliedSequence()
+                                +(minSequence==null ? "" : " of "+minSequence)+", lag "+follower.getLagMillis()+" ms");
+                    }
+                }catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    return this.failedResult(ConstantUtils.REPLICA_UNAVAILABLE+", interrupted");
+                }
+                return null;
+            case REPLICATION_STATUS:
+            case STATS:
+            case DISCONNECT:
+                return null;
+            default:
+                return this.failedResult("Read-only replica, send writes to the primary");
+        }
+    }
+
+    /**
+     * Sequence and lag of this server's replication role, for monitoring and for clients choosing a replica.
+     */
+    private IndexResponse replicationStatus() {
+        IndexResponse.ResultData resultData = new IndexResponse.ResultData();
+        ReplicationFollower follower = replicationFollower;
+        ReplicationSource source = replicationSource;
+        if(follower!=null){
+            resultData.setSequence(follower.getAppliedSequence());
+            resultData.setReplicationLagMillis(follower.getLagMillis());
+        }else if(source!=null){
+            resultData.setSequence(source.getLastSequence());
+        }
+        return IndexResponse.sucResp(resultData);
+    }
+
+    /**
+     * @return the primary's sequence after a write returned, it covers the write; null when not replicating
+     */
+    private Long writeSequence() {
+        ReplicationSource source = replicationSource;
+        return source==null ? null : source.getLastSequence();
+    }
+
+    private IndexResponse failedResult(String message){
+        LOGGER.info(message);
+        return IndexResponse.failedResp(message);
+    }
+
+    private void writeSucResult(IndexResponse indexResponse,IndexTransport transport) throws IOException {
+        this.writeResult(true,indexResponse,null,transport);
+    }
+    private void writeResult(boolean suc,IndexResponse indexResponse,String message,IndexTransport transport) throws IOException {
         if(suc){
-            out.writeObject(indexResponse);
+            transport.writeResponse(indexResponse);
         }else{
             LOGGER.info(message);
-            out.writeObject(IndexResponse.failedResp(message));
+            transport.writeResponse(IndexResponse.failedResp(message));
         }
     }
 
     private IndexResponse register(IndexRequest.IndexRegister indexRegister, String peerAddress) {
         LOGGER.info("Register path: "+indexRegister.getFilePath()+",files.size: "+ indexRegister.getFiles().size()+" from Peer(" + peerAddress+" ), peerId:"+indexRegister.getPeerId());
 
-        String peerKeyStr = String.format(PEER_KEY_FORMAT,indexRegister.getPeerId(), peerAddress);
-        List<String> fileList;
-        FilesStoreEntity filesStoreEntity;
-        Date date = new Date();
-        Set<String> peerKeyList;
-        wLock.lock();
+        int registeredCount;
         try{
-            if(indexFilesStore.containsKey(peerKeyStr)){
-                filesStoreEntity = indexFilesStore.get(peerKeyStr);
-                filesStoreEntity.setAddTime(date);
-                filesStoreEntity.setFileServerAddress(peerAddress);
-                filesStoreEntity.setFileServerPort(ConstantUtils.FILE_SERVER_DEFAULT_PORT);
-                if(filesStoreEntity.getPathFilesMapping().containsKey(indexRegister.getFilePath())){
-                    fileList = filesStoreEntity.getPathFilesMapping().get(indexRegister.getFilePath());
-                    List<String> needAddList = new ArrayList<>();
-                    boolean addFlag = true;
-                    for(String addFileName:indexRegister.getFiles()){
-                        for(String fileName:fileList){
-                            if(fileName.equals(addFileName)){
-                                addFlag = false;
-                                break;
-                            }
-                        }
-                        if(addFlag){
-                            needAddList.add(addFileName);
-                        }
+            registeredCount = this.registerFiles(indexRegister.getPeerId(),peerAddress,indexRegister.getFilePath(),indexRegister.getFiles());
+            nameSearchIndex.indexNewNamesLater();
+        }catch (Exception e){
+            LOGGER.info("save files to indexFilesStore error,error:"+e.getMessage());
+            return IndexResponse.failedResp("save files to indexFilesStore error,error:"+e.getMessage());
+        }
 
-                        addFlag = true;
-                    }
-                    fileList.addAll(needAddList);
-                }else{
-                    fileList = new ArrayList<>(indexRegister.getFiles());
-                    filesStoreEntity.getPathFilesMapping().put(indexRegister.getFilePath(),fileList);
-                }
+        LOGGER.info("The peer (ID:"+indexRegister.getPeerId()+", IP:"+peerAddress+") sent "+indexRegister.getFiles().size()+" files to the server, "+registeredCount+" new. ");
 
+        return this.registerSummary(indexRegister.getPeerId(),null,registeredCount,indexRegister.getFiles().size()-registeredCount);
+    }
 
-            }else{
-                fileList = new ArrayList<>(indexRegister.getFiles());
-                filesStoreEntity = new FilesStoreEntity();
+    /**
+     * Add the files of one directory of a peer. Names already registered under that path are skipped.
+     * Only the new names are logged, and the caller is answered once the log is as durable as its policy promises.
+     * @return the number of names newly added
+     */
+    private int registerFiles(String peerId, String peerAddress, String filePath, List<String> files) throws IOException {
+        final int peerKeyId = indexStore.internPeer(peerId, peerAddress);
+        final int pathId = indexStore.internPath(filePath);
+        Date date = new Date();
+        int registeredCount = 0;
+        long walSequence = 0;
+        while(true){
+            FilesStoreEntity filesStoreEntity = indexFilesStore.computeIfAbsent(peerKeyId, key -> newLeasedEntity(peerId));
+            // Writers of one peer are serialized on its entity, different peers register in parallel
+            long lockStart = System.nanoTime();
+            synchronized (filesStoreEntity){
+                metrics.recordLockWait(RequestTypeEnum.REGISTER,System.nanoTime()-lockStart);
+                if(filesStoreEntity.isRemoved()){
+                    // Unregistered while we were waiting for the lock, start over with a fresh entity
+                    continue;
+                }
                 filesStoreEntity.setAddTime(date);
+                this.renewLease(filesStoreEntity);
                 filesStoreEntity.setFileServerAddress(peerAddress);
                 filesStoreEntity.setFileServerPort(ConstantUtils.FILE_SERVER_DEFAULT_PORT);
-                filesStoreEntity.setPeerId(indexRegister.getPeerId());
-                filesStoreEntity.setPathFilesMapping(new HashMap<>());
-                filesStoreEntity.getPathFilesMapping().put(indexRegister.getFilePath(),fileList);
-                indexFilesStore.put(peerKeyStr,filesStoreEntity);
-            }
-
-            if(fileList.size() > 0){
-                for(String file:fileList){
-                    if(searchFilesMapping.containsKey(file)){
-                        peerKeyList = searchFilesMapping.get(file);
-                        peerKeyList.add(peerKeyStr);
-                    }else{
-                        peerKeyList = new HashSet<>();
-                        peerKeyList.add(peerKeyStr);
-                        searchFilesMapping.put(file,peerKeyList);
+
+                IntHashSet fileSet = filesStoreEntity.getPathFilesMapping().computeIfAbsent(pathId, key -> new IntHashSet());
+                List<String> addedFiles = this.isMutationLogged() ? new ArrayList<>() : null;
+                for(String file:files){
+                    // Only names that are new for this (peer, path) need a posting.
+                    // compute() swaps a single slot, so writers of different names never contend
+                    int nameId = indexStore.internName(file);
+                    if(fileSet.add(nameId)){
+                        indexStore.computePostings(nameId, postingList ->
+                                (postingList==null ? PostingList.EMPTY : postingList).with(peerKeyId,pathId));
+                        lookupCache.invalidate(file);
+                        registeredCount++;
+                        if(addedFiles!=null){
+                            addedFiles.add(file);
+                        }
                     }
                 }
-
+                if(addedFiles!=null && !addedFiles.isEmpty()){
+                    // Logged under the peer lock, so the log keeps this peer's order of mutations
+                    walSequence = this.logMutation(IndexWal.REGISTER,peerId,peerAddress,filePath,addedFiles);
+                }
             }
+            break;
+        }
+        this.awaitDurable(walSequence);
+        return registeredCount;
+    }
+
+    private IndexResponse registerBegin(IndexRequest.IndexRegister indexRegister, String peerAddress) {
+        this.expireRegisterSessions();
+
+        String sessionId = UUID.randomUUID().toString();
+        registerSessions.put(sessionId, new RegisterSession(indexRegister.getPeerId(),peerAddress,indexRegister.getFilePath()));
+        LOGGER.info("Register session "+sessionId+" opened for path: "+indexRegister.getFilePath()+" from Peer(" + peerAddress+" ), peerId:"+indexRegister.getPeerId());
+
+        return this.registerSummary(indexRegister.getPeerId(),sessionId,0,0);
+    }
 
+    private IndexResponse registerChunk(IndexRequest.IndexRegister indexRegister, String peerAddress) {
+        RegisterSession session = registerSessions.get(indexRegister.getSessionId());
+        if(session==null || !session.peerAddress.equals(peerAddress)){
+            return this.failedResult("Unknown register session, sessionId:"+indexRegister.getSessionId());
+        }
+        session.lastActiveTime = System.currentTimeMillis();
+
+        int registeredCount;
+        try{
+            registeredCount = this.registerFiles(session.peerId,peerAddress,session.filePath,indexRegister.getFiles());
+            nameSearchIndex.indexNewNamesLater();
         }catch (Exception e){
             LOGGER.info("save files to indexFilesStore error,error:"+e.getMessage());
             return IndexResponse.failedResp("save files to indexFilesStore error,error:"+e.getMessage());
-        }finally {
-            wLock.unlock();
         }
+        int duplicateCount = indexRegister.getFiles().size()-registeredCount;
+        session.registeredCount.addAndGet(registeredCount);
+        session.duplicateCount.addAndGet(duplicateCount);
+
+        return this.registerSummary(session.peerId,indexRegister.getSessionId(),registeredCount,duplicateCount);
+    }
+
+    private IndexResponse registerCommit(IndexRequest.IndexRegister indexRegister, String peerAddress) {
+        RegisterSession session = registerSessions.get(indexRegister.getSessionId());
+        if(session==null || !session.peerAddress.equals(peerAddress)){
+            return this.failedResult("Unknown register session, sessionId:"+indexRegister.getSessionId());
+        }
+        registerSessions.remove(indexRegister.getSessionId());
+
+        LOGGER.info("The peer (ID:"+session.peerId+", IP:"+peerAddress+") registered path "+session.filePath+" in chunks, "
+                +session.registeredCount.get()+" new, "+session.duplicateCount.get()+" already known. ");
+        return this.registerSummary(session.peerId,indexRegister.getSessionId(),session.registeredCount.get(),session.duplicateCount.get());
+    }
 
-        LOGGER.info("The peer (ID:"+indexRegister.getPeerId()+", IP:"+peerAddress+") sent "+indexRegister.getFiles().size()+" files to the server. ");
+    /**
+     * Drop sessions whose peer went away without committing; the files they carried stay registered.
+     */
+    private void expireRegisterSessions() {
+        long expireBefore = System.currentTimeMillis()-ConstantUtils.REGISTER_SESSION_TIMEOUT_MILLIS;
+        registerSessions.values().removeIf(session -> session.lastActiveTime<expireBefore);
+    }
 
+    private IndexResponse registerSummary(String peerId, String sessionId, int registeredCount, int duplicateCount) {
         IndexResponse.ResultData resultData = new IndexResponse.ResultData();
-        resultData.setPeerId(indexRegister.getPeerId());
-        resultData.setFiles((ArrayList<String>) fileList);
+        resultData.setPeerId(peerId);
+        resultData.setSessionId(sessionId);
+        resultData.setRegisteredCount(registeredCount);
+        resultData.setDuplicateCount(duplicateCount);
+        resultData.setLeaseMillis(leaseMillis>0 ? leaseMillis : null);
+        resultData.setSequence(this.writeSequence());
         return IndexResponse.sucResp(resultData);
+    }
 
+    private FilesStoreEntity newFilesStoreEntity(String peerId) {
+        FilesStoreEntity filesStoreEntity = new FilesStoreEntity();
+        filesStoreEntity.setPeerId(peerId);
+        filesStoreEntity.setPathFilesMapping(new HashMap<>());
+        return filesStoreEntity;
     }
 
     private IndexResponse unRegister(String peerId, String peerAddress) {
-
-        String peerKey = String.format(PEER_KEY_FORMAT,peerId, peerAddress);
-        List<String> fileList;
-        wLock.lock();
         try{
-            FilesStoreEntity filesStoreEntity = indexFilesStore.remove(peerKey);
-            LOGGER.info("indexFilesStore remove peerKey:"+ peerKey);
-            if(filesStoreEntity!=null){
-                for(Map.Entry<String,List<String>> entry: filesStoreEntity.getPathFilesMapping().entrySet()){
-                    fileList = entry.getValue();
-                    if(fileList!=null && fileList.size()>0){
-                        for(String file:fileList){
-                            searchFilesMapping.remove(file);
-                            LOGGER.info("searchFilesMapping remove item. path: "+entry.getKey()+" ,fileKey: "+ file);
-                        }
-                    }
+            this.removePeer(peerId,peerAddress);
+        }catch (Exception e){
+            LOGGER.severe("save files to indexFilesStore error,error:"+e.getMessage());
+            return IndexResponse.failedResp("save files to indexFilesStore error,error:"+e.getMessage());
+        }
+        IndexResponse.ResultData resultData = new IndexResponse.ResultData();
+        resultData.setPeerId(peerId);
+        resultData.setSequence(this.writeSequence());
+        return IndexResponse.sucResp(resultData);
+    }
+    /**
+     * Drop every posting of the peer. The entity leaves the store only once its postings are gone,
+     * so a register racing with this waits for the entity lock and then starts over with a fresh entity.
+     */
+    private void removePeer(String peerId, String peerAddress) throws IOException {
+        int peerKeyId = indexStore.findPeer(peerId, peerAddress);
+        long walSequence = 0;
+        while(peerKeyId>=0){
+            FilesStoreEntity filesStoreEntity = indexFilesStore.get(peerKeyId);
+            if(filesStoreEntity==null){
+                break;
+            }
+            long lockStart = System.nanoTime();
+            synchronized (filesStoreEntity){
+                metrics.recordLockWait(RequestTypeEnum.UNREGISTER,System.nanoTime()-lockStart);
+                if(filesStoreEntity.isRemoved()){
+                    continue;
+                }
+                walSequence = this.dropPeer(filesStoreEntity,peerKeyId,peerId,peerAddress);
+            }
+            break;
+        }
+        this.awaitDurable(walSequence);
+    }
+
+    /**
+     * Remove the postings of a peer and the peer itself; the caller holds the entity lock.
+     * @return the sequence of the logged unregister, 0 without a log
+     */
+    private long dropPeer(FilesStoreEntity filesStoreEntity, int peerKeyId, String peerId, String peerAddress) throws IOException {
+        for(Map.Entry<Integer,IntHashSet> entry: filesStoreEntity.getPathFilesMapping().entrySet()){
+            String path = indexStore.getPath(entry.getKey());
+            for(int nameId:entry.getValue().toArray()){
+                // Other peers may still hold the file, only this peer's postings go away
+                indexStore.computePostings(nameId, postingList -> {
+                    PostingList rest = postingList==null ? null : postingList.withoutPeer(peerKeyId);
+                    return rest==null || rest.isEmpty() ? null : rest;
+                });
+                String fileName = indexStore.getName(nameId);
+                lookupCache.invalidate(fileName);
+                if(logFileLines){
+                    LOGGER.info("searchFilesMapping remove item. path: "+path+" ,fileKey: "+ fileName);
                 }
+            }
+        }
+        filesStoreEntity.setRemoved(true);
+        indexFilesStore.remove(peerKeyId,filesStoreEntity);
+        LOGGER.info("indexFilesStore remove peerKey:"+ String.format(PEER_KEY_FORMAT,peerId, peerAddress));
+        return this.logMutation(IndexWal.UNREGISTER,peerId,peerAddress,null,null);
+    }
+
+    /**
+     * One page of every indexed name with its holders, in name id order, for the rebalancer to copy
+     * the names a new shard owns. The cursor is the last name id of the previous page.
+     */
+    private IndexResponse shardExport(IndexRequest.IndexSearch indexSearch) {
+        int limit = indexSearch.getLimit()==null ? ConstantUtils.MAX_SEARCH_RESULTS : Math.min(indexSearch.getLimit(),ConstantUtils.MAX_SEARCH_RESULTS);
+        int nameId;
+        try{
+            nameId = indexSearch.getCursor()==null ? 0 : Integer.parseInt(indexSearch.getCursor())+1;
+        }catch (NumberFormatException e){
+            return this.failedResult("The request IndexSearch is invalid, unknown cursor");
+        }
+        LOGGER.info("shard export from name id "+nameId);
 
+        IndexResponse.ResultData resultData = new IndexResponse.ResultData();
+        resultData.setFiles(new ArrayList<>(limit));
+        resultData.setMultiLookupMapping(new HashMap<>(limit*2));
+        int nameCount = indexStore.nameCount();
+        for(;nameId<nameCount && resultData.getFiles().size()<limit;nameId++){
+            if(indexStore.getPostings(nameId)==null){
+                continue;
+            }
+            String fileName = indexStore.getName(nameId);
+            HashMap<Integer,IndexResponse.LookupItem> peerAndIpMapping = this.collectLookupItems(fileName);
+            if(peerAndIpMapping!=null){
+                resultData.getFiles().add(fileName);
+                resultData.getMultiLookupMapping().put(fileName,peerAndIpMapping);
             }
+        }
+        resultData.setNextCursor(nameId<nameCount ? Integer.toString(nameId-1) : null);
+        return IndexResponse.sucResp(resultData);
+    }
+
+    private boolean isShardAdmin(String clientIp) {
+        Set<String> addresses = shardAdminAddresses;
+        return addresses!=null && (addresses.isEmpty() || addresses.contains(clientIp));
+    }
+
+    /**
+     * Register files on behalf of the peer at indexRegister.peerAddress, sent by the rebalancer
+     * when the names moved to this shard.
+     */
+    private IndexResponse shardImport(IndexRequest.IndexRegister indexRegister) {
+        int registeredCount;
+        try{
+            registeredCount = this.registerFiles(indexRegister.getPeerId(),indexRegister.getPeerAddress(),indexRegister.getFilePath(),indexRegister.getFiles());
+            nameSearchIndex.indexNewNamesLater();
+        }catch (Exception e){
+            LOGGER.info("save files to indexFilesStore error,error:"+e.getMessage());
+            return IndexResponse.failedResp("save files to indexFilesStore error,error:"+e.getMessage());
+        }
+        LOGGER.info("Imported "+registeredCount+" of "+indexRegister.getFiles().size()+" files of peer (ID:"+indexRegister.getPeerId()+", IP:"+indexRegister.getPeerAddress()+")");
+        return this.registerSummary(indexRegister.getPeerId(),null,registeredCount,indexRegister.getFiles().size()-registeredCount);
+    }
+
+    /**
+     * Drop every posting of the names, which another shard owns now.
+     */
+    private IndexResponse shardRemove(List<String> fileNames) {
+        // peer key id -> path id -> names
+        Map<Integer,Map<Integer,List<String>>> holders = new HashMap<>();
+        for(String fileName:fileNames){
+            int nameId = indexStore.findName(fileName);
+            PostingList postingList = nameId<0 ? null : indexStore.getPostings(nameId);
+            if(postingList==null){
+                continue;
+            }
+            for(int i=0;i<postingList.size();i++){
+                holders.computeIfAbsent(postingList.getPeerId(i), key -> new HashMap<>())
+                        .computeIfAbsent(postingList.getPathId(i), key -> new ArrayList<>()).add(fileName);
+            }
+        }
+        int removedCount = 0;
+        long walSequence = 0;
+        try{
+            for(Map.Entry<Integer,Map<Integer,List<String>>> peer:holders.entrySet()){
+                for(Map.Entry<Integer,List<String>> path:peer.getValue().entrySet()){
+                    removedCount += path.getValue().size();
+                    walSequence = Math.max(walSequence,this.removeFiles(peer.getKey(),path.getKey(),path.getValue()));
+                }
+            }
+            this.awaitDurable(walSequence);
         }catch (Exception e){
             LOGGER.severe("save files to indexFilesStore error,error:"+e.getMessage());
             return IndexResponse.failedResp("save files to indexFilesStore error,error:"+e.getMessage());
-        }finally {
-            wLock.unlock();
         }
+        LOGGER.info("shard remove of "+fileNames.size()+" names, "+removedCount+" postings dropped");
         IndexResponse.ResultData resultData = new IndexResponse.ResultData();
-        resultData.setPeerId(peerId);
+        resultData.setRegisteredCount(removedCount);
         return IndexResponse.sucResp(resultData);
     }
+
+    /**
+     * Remove some files of one (peer, path) under the peer lock, logged like a register.
+     * @return the sequence of the logged removal, 0 when nothing was removed or there is no log
+     */
+    private long removeFiles(int peerKeyId, int pathId, List<String> files) throws IOException {
+        FilesStoreEntity filesStoreEntity = indexFilesStore.get(peerKeyId);
+        if(filesStoreEntity==null){
+            return 0;
+        }
+        synchronized (filesStoreEntity){
+            IntHashSet fileSet = filesStoreEntity.getPathFilesMapping().get(pathId);
+            if(filesStoreEntity.isRemoved() || fileSet==null){
+                return 0;
+            }
+            List<String> removedFiles = new ArrayList<>();
+            for(String file:files){
+                int nameId = indexStore.findName(file);
+                if(nameId>=0 && fileSet.remove(nameId)){
+                    indexStore.computePostings(nameId, postingList -> {
+                        PostingList rest = postingList==null ? null : postingList.without(peerKeyId,pathId);
+                        return rest==null || rest.isEmpty() ? null : rest;
+                    });
+                    lookupCache.invalidate(file);
+                    removedFiles.add(file);
+                }
+            }
+            if(fileSet.size()==0){
+                filesStoreEntity.getPathFilesMapping().remove(pathId);
+            }
+            if(!removedFiles.isEmpty()){
+                return this.logMutation(IndexWal.REMOVE_FILES,filesStoreEntity.getPeerId(),indexStore.getPeerAddress(peerKeyId),
+                        indexStore.getPath(pathId),removedFiles);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Holders of one file. Found files are answered from the lookup cache until their postings change.
+     */
     private IndexResponse lookup(String fileName) {
+        IndexResponse cached = lookupCache.get(fileName);
+        if(cached!=null){
+            LOGGER.fine("lookup file "+fileName+" (cached)");
+            metrics.lookupHit(true);
+            return cached.copy();
+        }
         LOGGER.info("lookup file "+fileName);
 
-        rLock.lock();
         try{
-            Set<String> peerKeySet = this.searchFilesMapping.get(fileName);
-            if(peerKeySet==null || peerKeySet.size()<1){
+            long cacheVersion = lookupCache.version(fileName);
+            HashMap<Integer,IndexResponse.LookupItem> peerAndIpMapping = this.collectLookupItems(fileName);
+            if(peerAndIpMapping==null){
                 LOGGER.severe("No file found, name:"+fileName);
+                metrics.lookupMiss();
                 return IndexResponse.failedResp("No file found, name:"+fileName);
             }
+            metrics.lookupHit(false);
             IndexResponse.ResultData resultData = new IndexResponse.ResultData();
-            resultData.setPeerAndIpMapping(new HashMap<>());
-            int num=1;
-            String fileLocalPath = null;
-            for(String peerKey:peerKeySet){
-                FilesStoreEntity filesStoreEntity = this.indexFilesStore.get(peerKey);
-                if(filesStoreEntity==null){
-                    LOGGER.severe("Not found filesStoreEntity, name:"+fileName+" ,peerKey:"+peerKey);
-                    continue;
+            resultData.setPeerAndIpMapping(peerAndIpMapping);
+            resultData.setHolderCount(peerAndIpMapping.size());
+            IndexResponse indexResponse = IndexResponse.sucResp(resultData);
+            lookupCache.put(fileName,cacheVersion,indexResponse);
+            return indexResponse.copy();
+        }catch (Exception e){
+            LOGGER.severe("call lookup error,error:"+e.getMessage());
+            return IndexResponse.failedResp("call lookup error,error:"+e.getMessage());
+        }
+    }
+
+    /**
+     * At most limit holders of one file: without a cursor the best ones as the holder ranker picks them,
+     * with a cursor the next ones in posting order. Only the postings of the page are turned into
+     * LookupItems, so the response of a file held by thousands of peers is as small as the page.
+     * <p>
+     * The cursor is "0" for the first page, then "position,posting,...": where the next page starts and the
+     * last CURSOR_POSTINGS postings sent. Postings keep their order, new ones are appended, so the next page
+     * resumes right after the latest of them still registered, wherever registers and unregisters moved it,
+     * and no holder is skipped. Only when all of them left meanwhile does the page fall back to
+     * the position, earlier by the gap they left; if holders before them left as well, as many may be skipped.
+     */
+    private IndexResponse lookupPage(IndexRequest.IndexSearch indexSearch, String clientIp) {
+        String fileName = indexSearch.getFileName();
+        int limit = indexSearch.getLimit()==null ? Integer.MAX_VALUE : indexSearch.getLimit();
+        int position;
+        long[] sentPostings = null;
+        String cursor = indexSearch.getCursor();
+        try{
+            String[] parts = cursor==null ? new String[]{"0"} : cursor.split(",");
+            position = Integer.parseInt(parts[0]);
+            if(parts.length>1){
+                sentPostings = new long[parts.length-1];
+                for(int i=1;i<parts.length;i++){
+                    sentPostings[i-1] = Long.parseLong(parts[i]);
                 }
+            }
+        }catch (NumberFormatException e){
+            position = -1;
+        }
+        if(position<0 || (sentPostings!=null && sentPostings.length>CURSOR_POSTINGS)){
+            return this.failedResult("The request IndexSearch is invalid, bad cursor "+cursor);
+        }
+        LOGGER.info("lookup file "+fileName+", limit: "+indexSearch.getLimit()+", cursor: "+cursor);
 
-                for(Map.Entry<String,List<String>> entry:filesStoreEntity.getPathFilesMapping().entrySet()){
-                    for(String value : entry.getValue()){
-                        if(value.equals(fileName)){
-                            fileLocalPath = entry.getKey();
-                            break;
-                        }
-                    }
-                    if(fileLocalPath!=null){
-                        break;
-                    }
+        PostingList postingList = this.postingsOf(fileName);
+        if(postingList==null){
+            LOGGER.severe("No file found, name:"+fileName);
+            metrics.lookupMiss();
+            return IndexResponse.failedResp("No file found, name:"+fileName);
+        }
+        metrics.lookupHit(false);
+        int size = postingList.size();
+        IndexResponse.ResultData resultData = new IndexResponse.ResultData();
+        resultData.setHolderCount(size);
+        if(cursor==null && holderRanker.getMode()!=HolderRanker.Mode.NONE){
+            resultData.setPeerAndIpMapping(this.rankedLookupItems(fileName,postingList,limit,clientIp));
+            return IndexResponse.sucResp(resultData);
+        }
+        int offset = sentPostings==null ? position : this.resumeAfter(postingList,position,sentPostings);
+        HashMap<Integer,IndexResponse.LookupItem> peerAndIpMapping = new HashMap<>(Math.min(limit,Math.max(0,size-offset))*2);
+        int next = offset;
+        while(next<size && peerAndIpMapping.size()<limit){
+            IndexResponse.LookupItem lookupItem = this.lookupItemOf(fileName,postingList,next);
+            next++;
+            if(lookupItem!=null){
+                // Numbered by position, the client orders a page by these numbers
+                peerAndIpMapping.put(next,lookupItem);
+            }
+        }
+        resultData.setPeerAndIpMapping(peerAndIpMapping);
+        if(next<size){
+            StringBuilder nextCursor = new StringBuilder().append(next);
+            for(int i=Math.max(offset,next-CURSOR_POSTINGS);i<next;i++){
+                nextCursor.append(',').append(postingList.getPosting(i));
+            }
+            resultData.setNextCursor(nextCursor.toString());
+        }
+        return IndexResponse.sucResp(resultData);
+    }
+
+    /**
+     * @param sentPostings the last postings of the previous page, in posting order
+     * @return the index after the latest of them still in the list, position less their count when none is
+     */
+    private int resumeAfter(PostingList postingList, int position, long[] sentPostings) {
+        int size = postingList.size();
+        long lastPosting = sentPostings[sentPostings.length-1];
+        if(position>0 && position<=size && postingList.getPosting(position-1)==lastPosting){
+            return position;
+        }
+        // Unregisters only move them towards the front, and the first found scanning back is the latest sent
+        for(int i=Math.min(position,size)-1;i>=0;i--){
+            long posting = postingList.getPosting(i);
+            for(long sentPosting : sentPostings){
+                if(posting==sentPosting){
+                    return i+1;
                 }
+            }
+        }
+        return Math.max(0,Math.min(position-sentPostings.length,size));
+    }
+
+    /**
+     * Resolve many names in one request, each against its current posting list snapshot.
+     * Names that are not registered are left out of the result.
+     * @param limit holders per name, the best ones as the holder ranker picks them when it is not Integer.MAX_VALUE
+     */
+    private IndexResponse multiLookup(List<String> fileNames, int limit, String clientIp) {
+        LOGGER.info("multi lookup "+fileNames.size()+" files");
 
-                IndexResponse.LookupItem lookupItem = new IndexResponse.LookupItem();
-                lookupItem.setPeerId(filesStoreEntity.getPeerId());
-                lookupItem.setFileServerAddress(filesStoreEntity.getFileServerAddress());
-                lookupItem.setFileServerPort(filesStoreEntity.getFileServerPort());
-                lookupItem.setFileLocalPath(fileLocalPath);
-                lookupItem.setFileLocalFileName(fileName);
-                resultData.getPeerAndIpMapping().put(num,lookupItem);
+        IndexResponse.ResultData resultData = new IndexResponse.ResultData();
+        resultData.setMultiLookupMapping(new HashMap<>(fileNames.size()*2));
+        try{
+            for(String fileName:fileNames){
+                HashMap<Integer,IndexResponse.LookupItem> peerAndIpMapping;
+                if(limit==Integer.MAX_VALUE || holderRanker.getMode()==HolderRanker.Mode.NONE){
+                    peerAndIpMapping = this.collectLookupItems(fileName,limit);
+                }else{
+                    PostingList postingList = this.postingsOf(fileName);
+                    peerAndIpMapping = postingList==null ? null : this.rankedLookupItems(fileName,postingList,limit,clientIp);
+                }
+                if(peerAndIpMapping!=null){
+                    resultData.getMultiLookupMapping().put(fileName,peerAndIpMapping);
+                }
+            }
+        }catch (Exception e){
+            LOGGER.severe("call multi lookup error,error:"+e.getMessage());
+            return IndexResponse.failedResp("call multi lookup error,error:"+e.getMessage());
+        }
+        return IndexResponse.sucResp(resultData);
+    }
+
+    /**
+     * One page of the names matching a glob, with their holders. Names registered a moment ago may be
+     * missing until the name search indexer has reached them.
+     */
+    private IndexResponse search(IndexRequest.IndexSearch indexSearch) {
+        LOGGER.info("search "+indexSearch.getQuery()+", cursor: "+indexSearch.getCursor());
+
+        int limit = indexSearch.getLimit()==null ? ConstantUtils.MAX_SEARCH_RESULTS : Math.min(indexSearch.getLimit(),ConstantUtils.MAX_SEARCH_RESULTS);
+        NameSearchIndex.Page page;
+        try{
+            page = nameSearchIndex.search(indexSearch.getQuery(),indexSearch.getCursor(),limit,ConstantUtils.MAX_SEARCH_SCAN,
+                    nameId -> nameId>=0 && indexStore.getPostings(nameId)!=null);
+        }catch (IllegalArgumentException e){
+            return this.failedResult("The request IndexSearch is invalid, "+e.getMessage());
+        }
+
+        IndexResponse.ResultData resultData = new IndexResponse.ResultData();
+        resultData.setFiles(new ArrayList<>(page.getNames().size()));
+        resultData.setMultiLookupMapping(new HashMap<>(page.getNames().size()*2));
+        for(String fileName:page.getNames()){
+            HashMap<Integer,IndexResponse.LookupItem> peerAndIpMapping = this.collectLookupItems(fileName);
+            if(peerAndIpMapping!=null){
+                resultData.getFiles().add(fileName);
+                resultData.getMultiLookupMapping().put(fileName,peerAndIpMapping);
+            }
+        }
+        resultData.setNextCursor(page.getNextCursor());
+        return IndexResponse.sucResp(resultData);
+    }
+
+    /**
+     * Expand the names of a multi lookup request, either the explicit list or the pattern over its numeric range.
+     * @return null when the request is invalid, its pattern is not one bare %d between literal text, or it is larger than MAX_MULTI_LOOKUP_SIZE
+     */
+    private List<String> expandFileNames(IndexRequest.IndexSearch indexSearch) {
+        if(indexSearch.getFileNames()!=null){
+            return indexSearch.getFileNames().size()>ConstantUtils.MAX_MULTI_LOOKUP_SIZE ? null : indexSearch.getFileNames();
+        }
+        if(!FileUtils.isNamePattern(indexSearch.getNamePattern()) || indexSearch.getRangeStart()==null || indexSearch.getRangeEnd()==null){
+            return null;
+        }
+        long size = (long) indexSearch.getRangeEnd() - indexSearch.getRangeStart() + 1;
+        if(size<1 || size>ConstantUtils.MAX_MULTI_LOOKUP_SIZE){
+            return null;
+        }
+        List<String> fileNames = new ArrayList<>((int) size);
+        for(int i=indexSearch.getRangeStart();i<=indexSearch.getRangeEnd();i++){
+            fileNames.add(String.format(indexSearch.getNamePattern(),i));
+        }
+        return fileNames;
+    }
+
+    /**
+     * Build the holder list of one file from its immutable posting list, without locking.
+     * @return null when no peer holds the file
+     */
+    private HashMap<Integer,IndexResponse.LookupItem> collectLookupItems(String fileName) {
+        return collectLookupItems(fileName,Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param limit holders to take at most, the first ones of the posting list
+     */
+    private HashMap<Integer,IndexResponse.LookupItem> collectLookupItems(String fileName, int limit) {
+        PostingList postingList = this.postingsOf(fileName);
+        if(postingList==null){
+            return null;
+        }
+        HashMap<Integer,IndexResponse.LookupItem> peerAndIpMapping = new HashMap<>(Math.min(limit,postingList.size())*2);
+        int num=1;
+        for(int i=0;i<postingList.size() && num<=limit;i++){
+            IndexResponse.LookupItem lookupItem = this.lookupItemOf(fileName,postingList,i);
+            if(lookupItem!=null){
+                peerAndIpMapping.put(num,lookupItem);
                 num++;
             }
+        }
+        return peerAndIpMapping;
+    }
 
-            return IndexResponse.sucResp(resultData);
-        }catch (Exception e){
-            LOGGER.severe("call lookup error,error:"+e.getMessage());
-            return IndexResponse.failedResp("call lookup error,error:"+e.getMessage());
-        }finally {
-            rLock.unlock();
+    /**
+     * The best limit holders as the holder ranker picks them, numbered from 1 in rank order.
+     * The first one is counted against its peer, its downloader is about to start.
+     */
+    private HashMap<Integer,IndexResponse.LookupItem> rankedLookupItems(String fileName, PostingList postingList, int limit, String clientIp) {
+        int[] positions = holderRanker.rank(postingList,limit,clientIp,indexFilesStore::get);
+        HashMap<Integer,IndexResponse.LookupItem> peerAndIpMapping = new HashMap<>(positions.length*2);
+        for(int position:positions){
+            IndexResponse.LookupItem lookupItem = this.lookupItemOf(fileName,postingList,position);
+            if(lookupItem!=null){
+                peerAndIpMapping.put(peerAndIpMapping.size()+1,lookupItem);
+            }
+        }
+        FilesStoreEntity first = positions.length==0 ? null : indexFilesStore.get(postingList.getPeerId(positions[0]));
+        if(first!=null){
+            holderRanker.assigned(first);
+        }
+        return peerAndIpMapping;
+    }
+
+    /**
+     * @return the current posting list snapshot of the file, null when no peer holds it
+     */
+    private PostingList postingsOf(String fileName) {
+        int nameId = this.indexStore.findName(fileName);
+        PostingList postingList = nameId<0 ? null : this.indexStore.getPostings(nameId);
+        return postingList==null || postingList.isEmpty() ? null : postingList;
+    }
+
+    /**
+     * @return the holder at that position of the posting list, null when its peer is being unregistered
+     */
+    private IndexResponse.LookupItem lookupItemOf(String fileName, PostingList postingList, int index) {
+        FilesStoreEntity filesStoreEntity = this.indexFilesStore.get(postingList.getPeerId(index));
+        if(filesStoreEntity==null){
+            // The peer is being unregistered and its postings are not gone yet
+            return null;
+        }
+        IndexResponse.LookupItem lookupItem = new IndexResponse.LookupItem();
+        lookupItem.setPeerId(filesStoreEntity.getPeerId());
+        lookupItem.setFileServerAddress(filesStoreEntity.getFileServerAddress());
+        lookupItem.setFileServerPort(filesStoreEntity.getFileServerPort());
+        lookupItem.setFileLocalPath(this.indexStore.getPath(postingList.getPathId(index)));
+        lookupItem.setFileLocalFileName(fileName);
+        return lookupItem;
+    }
+
+    /**
+     * State of one chunked registration between REGISTER_BEGIN and REGISTER_COMMIT.
+     */
+    private static class RegisterSession {
+        private final String peerId;
+        private final String peerAddress;
+        private final String filePath;
+        private final AtomicInteger registeredCount = new AtomicInteger();
+        private final AtomicInteger duplicateCount = new AtomicInteger();
+        private volatile long lastActiveTime = System.currentTimeMillis();
+
+        RegisterSession(String peerId, String peerAddress, String filePath) {
+            this.peerId = peerId;
+            this.peerAddress = peerAddress;
+            this.filePath = filePath;
         }
     }
 }
@@ -0,0 +1,68 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * What a peer needs from the index: one IndexServer through IndexClient,
+ * or a namespace sharded over several of them through ShardedIndexClient.
+ */
+public interface IndexService extends Closeable {
+
+    /**
+     * Send a request without waiting; the future completes when its response arrives.
+     */
+    CompletableFuture<IndexResponse> sendAsync(IndexRequest request);
+
+    /**
+     * Send one request and wait for its response.
+     */
+    IndexResponse call(IndexRequest request) throws IOException;
+
+    /**
+     * Renew the lease of a peer; fails when the index no longer knows the peer and it has to register again.
+     */
+    default IndexResponse heartbeat(String peerId) throws IOException {
+        return heartbeat(peerId, null);
+    }
+
+    /**
+     * Renew the lease of a peer and report the downloads its file server is sending, which the index
+     * uses to rank the peer in lookups.
+     * @param activeUploads null when not reported
+     */
+    IndexResponse heartbeat(String peerId, Integer activeUploads) throws IOException;
+
+    /**
+     * Tell the index how a download from a holder went, without waiting for the answer. Downloads under
+     * ConstantUtils.RANKING_MIN_REPORT_BYTES are not sent, the index would leave them out anyway.
+     * @return the answer, null at once for a download too small to report
+     */
+    default CompletableFuture<IndexResponse> reportTransfer(IndexResponse.LookupItem holder, long bytes, long millis) {
+        if (bytes < ConstantUtils.RANKING_MIN_REPORT_BYTES) {
+            return CompletableFuture.completedFuture(null);
+        }
+        IndexRequest indexRequest = new IndexRequest();
+        indexRequest.setRequestType(RequestTypeEnum.TRANSFER_REPORT.getCode());
+        indexRequest.setIndexRegister(new IndexRequest.IndexRegister());
+        indexRequest.getIndexRegister().setPeerId(holder.getPeerId());
+        indexRequest.getIndexRegister().setPeerAddress(holder.getFileServerAddress());
+        indexRequest.getIndexRegister().setTransferBytes(bytes);
+        indexRequest.getIndexRegister().setTransferMillis(millis);
+        return sendAsync(indexRequest);
+    }
+
+    /**
+     * Register a large directory in bounded chunks.
+     * @return the response carrying the registered / duplicate counts
+     */
+    IndexResponse registerInChunks(String peerId, String filePath, List<String> files) throws IOException;
+
+    /**
+     * The holders of a file, read pageSize at a time with LOOKUP limit/cursor as the iterator is consumed.
+     * @throws IOException when the lookup fails, also when no peer holds the file
+     */
+    default LookupHolderIterator lookupHolders(String fileName, int pageSize) throws IOException {
+        return new LookupHolderIterator(this, fileName, pageSize);
+    }
+}
@@ -0,0 +1,87 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.function.UnaryOperator;
+
+/**
+ * Storage engine of the index server: the dictionaries that turn file names, paths and
+ * peers into dense int ids, and the posting list of every file name.
+ * The per-peer registration sets (FilesStoreEntity) stay with the server; a store that
+ * survives a restart lets the server rebuild them from the postings.
+ * <p>
+ * Lookups must not lock: find / get methods may run concurrently with writers.
+ */
+public interface IndexStore extends Closeable {
+
+    /**
+     * @return the id of the name, handing out the next id on first use
+     */
+    int internName(String name) throws IOException;
+
+    /**
+     * @return the id of the name, or -1 when it was never interned
+     */
+    int findName(String name);
+
+    String getName(int nameId);
+
+    int nameCount();
+
+    int internPath(String path) throws IOException;
+
+    String getPath(int pathId);
+
+    int internPeer(String peerId, String peerAddress) throws IOException;
+
+    /**
+     * @return the id of the peer, or -1 when it never registered
+     */
+    int findPeer(String peerId, String peerAddress);
+
+    String getPeerId(int peerKeyId);
+
+    String getPeerAddress(int peerKeyId);
+
+    /**
+     * @return the postings of the name, or null when no peer holds it
+     */
+    PostingList getPostings(int nameId);
+
+    /**
+     * Replace the postings of the name with the function's result, like ConcurrentMap.compute.
+     * The function gets null for an absent name and returns null to clear it; it may run more than once.
+     * @return the new postings
+     */
+    PostingList computePostings(int nameId, UnaryOperator<PostingList> remapping) throws IOException;
+
+    /**
+     * WAL sequence the store content reflects when it was reopened after a clean shutdown,
+     * -1 when it started empty.
+     */
+    long getCheckpointSequence();
+
+    /**
+     * Make the content durable and record that it reflects the log up to walSequence.
+     * Called once at shutdown, after the last mutation.
+     */
+    void checkpoint(long walSequence) throws IOException;
+
+    /**
+     * Forget everything, for when the store is older than what the log can replay.
+     */
+    void clear() throws IOException;
+
+    /**
+     * Dictionary key of a peer; a peer address never holds a NUL character.
+     */
+    static String peerKey(String peerId, String peerAddress) {
+        return peerId + '\0' + peerAddress;
+    }
+
+    static String peerIdOf(String peerKey) {
+        return peerKey.substring(0, peerKey.lastIndexOf('\0'));
+    }
+
+    static String peerAddressOf(String peerKey) {
+        return peerKey.substring(peerKey.lastIndexOf('\0') + 1);
+    }
+}
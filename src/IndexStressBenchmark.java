@@ -0,0 +1,143 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stress check for the index concurrency: lookup latency percentiles on an idle
+ * index and again while one peer bulk-registers a large directory.
+ * Runs the IndexServer in-process, no sockets involved.
+ * <p>
+ * Usage: java IndexStressBenchmark [bulkFiles] [lookupThreads]
+ */
+public class IndexStressBenchmark {
+
+    private static final int PRELOAD_PEERS = 4;
+    private static final int PRELOAD_FILES = 10000;
+    private static final long IDLE_PHASE_MILLIS = 3000;
+    private static final int MAX_SAMPLES_PER_THREAD = 2000000;
+
+    public static void main(String[] args) throws Exception {
+        int bulkFiles = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int lookupThreads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+        // Keep per-request logging out of the measurement
+        Logger rootLogger = Logger.getLogger("");
+        rootLogger.setLevel(Level.WARNING);
+        for (Handler handler : rootLogger.getHandlers()) {
+            handler.setLevel(Level.WARNING);
+        }
+
+        IndexServer indexServer = new IndexServer();
+        for (int peer = 1; peer <= PRELOAD_PEERS; peer++) {
+            indexServer.handleRequest(registerRequest("preload-" + peer, "/preload/" + peer + "/", 1, PRELOAD_FILES), "10.0.0." + peer);
+        }
+
+        System.out.println("lookup threads: " + lookupThreads + ", bulk register: " + bulkFiles + " files");
+        report("idle", runLookups(indexServer, lookupThreads, () -> sleep(IDLE_PHASE_MILLIS)));
+
+        IndexRequest bulkRegister = registerRequest("bulk", "/bulk/", PRELOAD_FILES / 2, bulkFiles);
+        long[] registerMillis = new long[1];
+        report("during bulk register", runLookups(indexServer, lookupThreads, () -> {
+            long start = System.nanoTime();
+            IndexResponse response = indexServer.handleRequest(bulkRegister, "10.0.0.100");
+            registerMillis[0] = (System.nanoTime() - start) / 1000000;
+            if (!response.isSuc()) {
+                System.err.println("bulk register failed: " + response.getMessage());
+            }
+        }));
+        System.out.println("bulk register took " + registerMillis[0] + " ms");
+        System.exit(0);
+    }
+
+    /**
+     * Run lookup threads until the foreground task returns, then collect their latency samples in nanoseconds.
+     */
+    private static long[] runLookups(IndexServer indexServer, int lookupThreads, Runnable foreground) throws InterruptedException {
+        AtomicBoolean running = new AtomicBoolean(true);
+        CountDownLatch started = new CountDownLatch(lookupThreads);
+        List<long[]> samples = new ArrayList<>();
+        int[] counts = new int[lookupThreads];
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < lookupThreads; t++) {
+            long[] threadSamples = new long[MAX_SAMPLES_PER_THREAD];
+            samples.add(threadSamples);
+            final int threadIndex = t;
+            Thread thread = new Thread(() -> {
+                started.countDown();
+                int n = 0;
+                while (running.get() && n < threadSamples.length) {
+                    IndexRequest lookup = new IndexRequest();
+                    lookup.setRequestType(RequestTypeEnum.LOOKUP.getCode());
+                    lookup.setIndexSearch(new IndexRequest.IndexSearch());
+                    lookup.getIndexSearch().setFileName(String.format("text_kb_%d.txt", 1 + (n % PRELOAD_FILES)));
+                    long start = System.nanoTime();
+                    indexServer.handleRequest(lookup, "127.0.0.1");
+                    threadSamples[n++] = System.nanoTime() - start;
+                }
+                counts[threadIndex] = n;
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        started.await();
+        foreground.run();
+        running.set(false);
+        int total = 0;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int count : counts) {
+            total += count;
+        }
+        long[] all = new long[total];
+        int offset = 0;
+        for (int t = 0; t < lookupThreads; t++) {
+            System.arraycopy(samples.get(t), 0, all, offset, counts[t]);
+            offset += counts[t];
+        }
+        Arrays.sort(all);
+        return all;
+    }
+
+    private static void report(String phase, long[] sortedNanos) {
+        if (sortedNanos.length == 0) {
+            System.out.println(phase + ": no lookups completed");
+            return;
+        }
+        System.out.printf("%-22s lookups=%-9d p50=%8.1fus p99=%8.1fus p99.9=%9.1fus max=%10.1fus%n",
+                phase, sortedNanos.length,
+                percentile(sortedNanos, 0.50) / 1000.0, percentile(sortedNanos, 0.99) / 1000.0,
+                percentile(sortedNanos, 0.999) / 1000.0, sortedNanos[sortedNanos.length - 1] / 1000.0);
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+    }
+
+    private static IndexRequest registerRequest(String peerId, String path, int first, int count) {
+        ArrayList<String> files = new ArrayList<>(count);
+        for (int i = first; i < first + count; i++) {
+            files.add(String.format("text_kb_%d.txt", i));
+        }
+        IndexRequest request = new IndexRequest();
+        request.setRequestType(RequestTypeEnum.REGISTER.getCode());
+        request.setIndexRegister(new IndexRequest.IndexRegister());
+        request.getIndexRegister().setPeerId(peerId);
+        request.getIndexRegister().setFilePath(path);
+        request.getIndexRegister().setFiles(files);
+        return request;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+import java.io.*;
+import java.net.Socket;
+
+/**
+ * One end of a connection between a peer and the index server.
+ * Two wire formats are supported: the compact binary codec (IndexCodec)
+ * and plain java serialization, kept as a fallback for older peers.
+ * Writes may come from several threads when requests are pipelined; reads from one.
+ */
+public abstract class IndexTransport implements Closeable {
+
+    protected final Socket socket;
+
+    protected IndexTransport(Socket socket) {
+        this.socket = socket;
+    }
+
+    public abstract IndexRequest readRequest() throws IOException, ClassNotFoundException;
+
+    public abstract void writeRequest(IndexRequest request) throws IOException;
+
+    public abstract IndexResponse readResponse() throws IOException, ClassNotFoundException;
+
+    public abstract void writeResponse(IndexResponse response) throws IOException;
+
+    public abstract boolean isBinary();
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    /**
+     * Client side: open the transport on an already connected socket.
+     * A binary client announces itself with IndexCodec.MAGIC, a serialization
+     * client with the ObjectOutputStream stream header.
+     */
+    public static IndexTransport connect(Socket socket, boolean binary) throws IOException {
+        socket.setTcpNoDelay(true);
+        if (binary) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeInt(IndexCodec.MAGIC);
+            out.writeByte(IndexCodec.VERSION);
+            out.flush();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            return new BinaryTransport(socket, in, out);
+        }
+        ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        out.flush();
+        ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+        return new ObjectTransport(socket, in, out);
+    }
+
+    /**
+     * Server side: look at the first bytes sent by the peer and pick the matching wire format.
+     */
+    public static IndexTransport accept(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        BufferedInputStream bufferedIn = new BufferedInputStream(socket.getInputStream());
+        bufferedIn.mark(8);
+        DataInputStream in = new DataInputStream(bufferedIn);
+        int head = in.readInt();
+        if (head == IndexCodec.MAGIC) {
+            byte version = in.readByte();
+            if (version != IndexCodec.VERSION) {
+                throw new IOException("Unsupported codec version: " + version);
+            }
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            return new BinaryTransport(socket, in, out);
+        }
+        bufferedIn.reset();
+        ObjectInputStream objectIn = new ObjectInputStream(bufferedIn);
+        ObjectOutputStream objectOut = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        objectOut.flush();
+        return new ObjectTransport(socket, objectIn, objectOut);
+    }
+
+    public static class BinaryTransport extends IndexTransport {
+        private final DataInputStream in;
+        private final DataOutputStream out;
+
+        BinaryTransport(Socket socket, DataInputStream in, DataOutputStream out) {
+            super(socket);
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public IndexRequest readRequest() throws IOException {
+            return IndexCodec.decodeRequest(IndexCodec.readFrame(in));
+        }
+
+        @Override
+        public synchronized void writeRequest(IndexRequest request) throws IOException {
+            IndexCodec.writeFrame(out, IndexCodec.encodeRequest(request));
+        }
+
+        @Override
+        public IndexResponse readResponse() throws IOException {
+            return IndexCodec.decodeResponse(IndexCodec.readFrame(in));
+        }
+
+        @Override
+        public synchronized void writeResponse(IndexResponse response) throws IOException {
+            IndexCodec.writeFrame(out, IndexCodec.encodeResponse(response));
+        }
+
+        @Override
+        public boolean isBinary() {
+            return true;
+        }
+    }
+
+    public static class ObjectTransport extends IndexTransport {
+        private final ObjectInputStream in;
+        private final ObjectOutputStream out;
+
+        ObjectTransport(Socket socket, ObjectInputStream in, ObjectOutputStream out) {
+            super(socket);
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public IndexRequest readRequest() throws IOException, ClassNotFoundException {
+            return (IndexRequest) in.readObject();
+        }
+
+        @Override
+        public void writeRequest(IndexRequest request) throws IOException {
+            writeObject(request);
+        }
+
+        @Override
+        public IndexResponse readResponse() throws IOException, ClassNotFoundException {
+            return (IndexResponse) in.readObject();
+        }
+
+        @Override
+        public void writeResponse(IndexResponse response) throws IOException {
+            writeObject(response);
+        }
+
+        private synchronized void writeObject(Object object) throws IOException {
+            out.writeObject(object);
+            // Drop the handle table so a long-lived connection does not keep every written object alive,
+            // then send object and reset marker as one segment
+            out.reset();
+            out.flush();
+        }
+
+        @Override
+        public boolean isBinary() {
+            return false;
+        }
+    }
+}
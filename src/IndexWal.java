@@ -0,0 +1,471 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Durable state of the index server: an append-only log of register / unregister
+ * mutations plus a periodic snapshot of the whole index. On startup the last snapshot
+ * is loaded and the log written after it is replayed, so peers do not have to register again.
+ * <p>
+ * Every mutation gets a sequence number. The log is split into segments named after the
+ * first sequence they may hold (wal-&lt;seq&gt;.log). A snapshot first rotates the log, then
+ * dumps the index while writes go on; replaying the new segment on top of it is safe
+ * because a register only adds names and an unregister drops the whole peer.
+ * <p>
+ * Records and snapshot entries share one frame: int length, int CRC32, payload.
+ */
+public class IndexWal implements Closeable {
+
+    private static Logger LOGGER = Logger.getLogger(IndexWal.class.getName());
+
+    /** "PA1S" **/
+    private static final int SNAPSHOT_MAGIC = 0x50413153;
+    private static final byte SNAPSHOT_VERSION = 1;
+    private static final String SNAPSHOT_FILE = "index.snapshot";
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    public static final byte REGISTER = 1;
+    public static final byte UNREGISTER = 2;
+    /** files of one (peer, path) handed over to another shard **/
+    public static final byte REMOVE_FILES = 3;
+
+    /**
+     * When appended records are forced to disk.
+     */
+    public enum SyncPolicy {
+        /** fsync inside every append **/
+        ALWAYS,
+        /** the caller waits for its record to be durable; concurrent callers share one fsync **/
+        GROUP,
+        /** fsync on a timer, callers never wait; a crash loses at most the last interval **/
+        INTERVAL;
+
+        public static SyncPolicy fromConfig(String value) {
+            for (SyncPolicy policy : values()) {
+                if (policy.name().equalsIgnoreCase(value)) {
+                    return policy;
+                }
+            }
+            return GROUP;
+        }
+    }
+
+    /**
+     * One logged mutation, or one (peer, path) entry of a snapshot.
+     */
+    public static class Record {
+        private final byte type;
+        private final long sequence;
+        private final String peerId;
+        private final String peerAddress;
+        private final String filePath;
+        private final List<String> files;
+
+        public Record(byte type, long sequence, String peerId, String peerAddress, String filePath, List<String> files) {
+            this.type = type;
+            this.sequence = sequence;
+            this.peerId = peerId;
+            this.peerAddress = peerAddress;
+            this.filePath = filePath;
+            this.files = files;
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public String getPeerId() {
+            return peerId;
+        }
+
+        public String getPeerAddress() {
+            return peerAddress;
+        }
+
+        public String getFilePath() {
+            return filePath;
+        }
+
+        public List<String> getFiles() {
+            return files;
+        }
+    }
+
+    public interface RecordSink {
+        void accept(Record record) throws IOException;
+    }
+
+    /**
+     * Writes the current index, one REGISTER record per (peer, path), for a snapshot.
+     */
+    public interface StateDump {
+        void writeTo(RecordSink sink) throws IOException;
+    }
+
+    private final Path directory;
+    private final SyncPolicy syncPolicy;
+    /** two threads, so a long snapshot does not hold up the interval fsync **/
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "index-wal");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** guards durableSequence and every fsync; taken before the append lock (this) **/
+    private final Object syncLock = new Object();
+    private long durableSequence;
+    private long syncCount;
+
+    // guarded by this
+    private long lastSequence;
+    private long snapshotSequence;
+    private FileOutputStream segmentOut;
+    private DataOutputStream out;
+
+    public IndexWal(String directory, SyncPolicy syncPolicy) {
+        this.directory = Paths.get(directory);
+        this.syncPolicy = syncPolicy;
+    }
+
+    /**
+     * Feed the snapshot and then the logged mutations after it to the consumer, and open a
+     * fresh segment for new records. A torn record at the end of the last segment, left by a
+     * crash in the middle of an append, is cut off.
+     */
+    public void recover(RecordSink apply) throws IOException {
+        recover(apply, -1);
+    }
+
+    /**
+     * Like recover(RecordSink), for an index that already holds the log up to fromSequence:
+     * the snapshot is skipped and only later records are replayed.
+     * @param fromSequence -1 to replay everything, otherwise at least getStoredSnapshotSequence()
+     */
+    public synchronized void recover(RecordSink apply, long fromSequence) throws IOException {
+        Files.createDirectories(directory);
+        Path snapshot = directory.resolve(SNAPSHOT_FILE);
+        if (fromSequence >= 0) {
+            snapshotSequence = getStoredSnapshotSequence();
+            if (fromSequence < snapshotSequence) {
+                throw new IOException("The log has no records between sequence " + fromSequence + " and its snapshot at " + snapshotSequence);
+            }
+        } else if (Files.exists(snapshot)) {
+            snapshotSequence = readSnapshot(snapshot, apply);
+        }
+        // an index ahead of the log (a wiped log directory) keeps its numbering going
+        lastSequence = Math.max(snapshotSequence, fromSequence);
+
+        TreeMap<Long, Path> segments = listSegments();
+        int replayed = 0;
+        for (Path segment : segments.values()) {
+            boolean lastSegment = segment.equals(segments.lastEntry().getValue());
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment)))) {
+                long validLength = 0;
+                byte[] payload;
+                while ((payload = readFrame(in, segment, lastSegment)) != null) {
+                    validLength += 8 + payload.length;
+                    Record record = decodeRecord(payload);
+                    if (record.getSequence() > lastSequence) {
+                        apply.accept(record);
+                        lastSequence = record.getSequence();
+                        replayed++;
+                    }
+                }
+                if (lastSegment && validLength < Files.size(segment)) {
+                    LOGGER.warning("Cutting a torn record off " + segment + " at offset " + validLength);
+                    try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                        channel.truncate(validLength);
+                    }
+                }
+            }
+        }
+        durableSequence = lastSequence;
+        LOGGER.info("Index recovered from " + directory + ": snapshot up to sequence " + snapshotSequence
+                + ", " + replayed + " logged mutations replayed");
+        openSegment(lastSequence + 1);
+    }
+
+    /**
+     * Start the timers: the interval fsync, and a snapshot every snapshotIntervalSeconds when the log has grown.
+     */
+    public void start(StateDump stateDump, long syncIntervalMillis, long snapshotIntervalSeconds) {
+        if (syncPolicy == SyncPolicy.INTERVAL) {
+            scheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    sync(Long.MAX_VALUE);
+                } catch (IOException e) {
+                    LOGGER.severe("index wal sync error,msg:" + e.getMessage());
+                }
+            }, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                if (getLastSequence() > getSnapshotSequence()) {
+                    snapshot(stateDump);
+                }
+            } catch (IOException | RuntimeException e) {
+                LOGGER.severe("index snapshot error,msg:" + e.getMessage());
+            }
+        }, snapshotIntervalSeconds, snapshotIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Append one mutation, REGISTER, UNREGISTER (no path or files) or REMOVE_FILES. Callers hold the
+     * lock of the peer they changed, so the log keeps the order in which each peer's mutations were applied.
+     * @return its sequence number, to pass to awaitDurable
+     */
+    public synchronized long append(byte type, String peerId, String peerAddress, String filePath, List<String> files) throws IOException {
+        long sequence = lastSequence + 1;
+        writeRecord(out, new Record(type, sequence, peerId, peerAddress, filePath, files));
+        lastSequence = sequence;
+        if (syncPolicy == SyncPolicy.ALWAYS) {
+            out.flush();
+            segmentOut.getChannel().force(false);
+            syncCount++;
+        }
+        return sequence;
+    }
+
+    /**
+     * Block until the record is on disk, as far as the sync policy promises that.
+     * Called after the peer lock is released, so a slow disk does not hold up other writers.
+     */
+    public void awaitDurable(long sequence) throws IOException {
+        if (syncPolicy == SyncPolicy.GROUP) {
+            sync(sequence);
+        }
+    }
+
+    /**
+     * Force the log up to at least the given sequence. Whoever gets the sync lock first
+     * forces everything appended so far, the callers queued behind it usually find their
+     * record already covered.
+     */
+    private void sync(long sequence) throws IOException {
+        synchronized (syncLock) {
+            if (durableSequence >= sequence) {
+                return;
+            }
+            long target;
+            FileChannel channel;
+            synchronized (this) {
+                out.flush();
+                target = lastSequence;
+                channel = segmentOut.getChannel();
+            }
+            if (target > durableSequence) {
+                channel.force(false);
+                durableSequence = target;
+                syncCount++;
+            }
+        }
+    }
+
+    /**
+     * Write a snapshot of the index and drop the log segments it covers.
+     */
+    public void snapshot(StateDump stateDump) throws IOException {
+        long sequence = rotate();
+        Path tmp = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        int entries = 0;
+        try (FileOutputStream fileOut = new FileOutputStream(tmp.toFile())) {
+            DataOutputStream snapshotOut = new DataOutputStream(new BufferedOutputStream(fileOut, WRITE_BUFFER_SIZE));
+            snapshotOut.writeInt(SNAPSHOT_MAGIC);
+            snapshotOut.writeByte(SNAPSHOT_VERSION);
+            snapshotOut.writeLong(sequence);
+            int[] count = new int[1];
+            stateDump.writeTo(record -> {
+                writeRecord(snapshotOut, record);
+                count[0]++;
+            });
+            // an empty frame marks a complete snapshot
+            snapshotOut.writeInt(0);
+            snapshotOut.flush();
+            fileOut.getChannel().force(true);
+            entries = count[0];
+        }
+        Files.move(tmp, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        synchronized (this) {
+            snapshotSequence = sequence;
+        }
+        for (Path segment : listSegments().headMap(sequence, true).values()) {
+            Files.deleteIfExists(segment);
+        }
+        LOGGER.info("Index snapshot written up to sequence " + sequence + ", " + entries + " entries");
+    }
+
+    /**
+     * Force and close the current segment and start a new one.
+     * @return the last sequence of the closed segment
+     */
+    private long rotate() throws IOException {
+        synchronized (syncLock) {
+            synchronized (this) {
+                out.flush();
+                segmentOut.getChannel().force(false);
+                segmentOut.close();
+                durableSequence = lastSequence;
+                openSegment(lastSequence + 1);
+                return lastSequence;
+            }
+        }
+    }
+
+    private void openSegment(long firstSequence) throws IOException {
+        segmentOut = new FileOutputStream(directory.resolve(SEGMENT_PREFIX + firstSequence + SEGMENT_SUFFIX).toFile(), true);
+        out = new DataOutputStream(new BufferedOutputStream(segmentOut, WRITE_BUFFER_SIZE));
+    }
+
+    /**
+     * @return the sequence the snapshot on disk covers, 0 when there is none
+     */
+    public long getStoredSnapshotSequence() throws IOException {
+        Path snapshot = directory.resolve(SNAPSHOT_FILE);
+        if (!Files.exists(snapshot)) {
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(snapshot))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readByte() != SNAPSHOT_VERSION) {
+                throw new IOException("Not an index snapshot: " + snapshot);
+            }
+            return in.readLong();
+        }
+    }
+
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * @return how many times the log has been forced to disk
+     */
+    public long getSyncCount() {
+        synchronized (syncLock) {
+            synchronized (this) {
+                return syncCount;
+            }
+        }
+    }
+
+    public synchronized long getSnapshotSequence() {
+        return snapshotSequence;
+    }
+
+    @Override
+    public void close() throws IOException {
+        scheduler.shutdownNow();
+        sync(Long.MAX_VALUE);
+        synchronized (this) {
+            segmentOut.close();
+        }
+    }
+
+    private TreeMap<Long, Path> listSegments() throws IOException {
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path segment : stream) {
+                String name = segment.getFileName().toString();
+                segments.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())), segment);
+            }
+        }
+        return segments;
+    }
+
+    private long readSnapshot(Path snapshot, RecordSink apply) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot), WRITE_BUFFER_SIZE))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readByte() != SNAPSHOT_VERSION) {
+                throw new IOException("Not an index snapshot: " + snapshot);
+            }
+            long sequence = in.readLong();
+            byte[] payload;
+            while ((payload = readFrame(in, snapshot, false)) != null) {
+                apply.accept(decodeRecord(payload));
+            }
+            return sequence;
+        }
+    }
+
+    public static void writeRecord(DataOutputStream out, Record record) throws IOException {
+        byte[] payload = encodeRecord(record);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        out.writeInt(payload.length);
+        out.writeInt((int) crc.getValue());
+        out.write(payload);
+    }
+
+    /**
+     * @param tolerateTornTail true for the last log segment, where a crash may have left half a record
+     * @return the payload of the next frame, null at the end of the stream or at the end marker of a snapshot
+     */
+    private static byte[] readFrame(DataInputStream in, Path file, boolean tolerateTornTail) throws IOException {
+        try {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                if (file.getFileName().toString().equals(SNAPSHOT_FILE)) {
+                    throw new IOException("Index snapshot is incomplete: " + file);
+                }
+                return null;
+            }
+            if (length == 0) {
+                return null;
+            }
+            if (length < 0 || length > IndexCodec.MAX_FRAME_SIZE) {
+                throw new IOException("Invalid record length " + length + " in " + file);
+            }
+            int checksum = in.readInt();
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum) {
+                throw new IOException("Checksum mismatch in " + file);
+            }
+            return payload;
+        } catch (IOException e) {
+            if (tolerateTornTail) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    public static byte[] encodeRecord(Record record) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(record.getFiles() == null ? 64 : 32 * record.getFiles().size() + 64);
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeByte(record.getType());
+        out.writeLong(record.getSequence());
+        IndexCodec.writeString(out, record.getPeerId());
+        IndexCodec.writeString(out, record.getPeerAddress());
+        IndexCodec.writeString(out, record.getFilePath());
+        IndexCodec.writeStringList(out, record.getFiles());
+        out.flush();
+        return buffer.toByteArray();
+    }
+
+    public static Record decodeRecord(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        long sequence = in.readLong();
+        String peerId = IndexCodec.readString(in);
+        String peerAddress = IndexCodec.readString(in);
+        String filePath = IndexCodec.readString(in);
+        List<String> files = IndexCodec.readStringList(in);
+        return new Record(type, sequence, peerId, peerAddress, filePath, files);
+    }
+}
@@ -0,0 +1,114 @@
+import java.util.function.IntConsumer;
+
+/**
+ * Set of non-negative ints in one open addressing int array, without boxing.
+ * Not thread safe; FilesStoreEntity only touches it under the entity lock.
+ */
+public final class IntHashSet {
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    /** value + 1, 0 marks an empty slot; kept at most three quarters full **/
+    private int[] slots = new int[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * @return true when the value was not in the set yet
+     */
+    public boolean add(int value) {
+        int mask = slots.length - 1;
+        int i = hash(value) & mask;
+        while (slots[i] != 0) {
+            if (slots[i] == value + 1) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        slots[i] = value + 1;
+        size++;
+        if (size * 4 > slots.length * 3) {
+            rehash(slots.length * 2);
+        }
+        return true;
+    }
+
+    /**
+     * @return true when the value was in the set
+     */
+    public boolean remove(int value) {
+        int mask = slots.length - 1;
+        int i = hash(value) & mask;
+        while (slots[i] != value + 1) {
+            if (slots[i] == 0) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        // shift later members of the probe run back, so no lookup stops early at the hole
+        int hole = i;
+        for (int j = (i + 1) & mask; slots[j] != 0; j = (j + 1) & mask) {
+            int home = hash(slots[j] - 1) & mask;
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                slots[hole] = slots[j];
+                hole = j;
+            }
+        }
+        slots[hole] = 0;
+        size--;
+        return true;
+    }
+
+    public boolean contains(int value) {
+        int mask = slots.length - 1;
+        for (int i = hash(value) & mask; slots[i] != 0; i = (i + 1) & mask) {
+            if (slots[i] == value + 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int[] toArray() {
+        int[] values = new int[size];
+        int n = 0;
+        for (int slot : slots) {
+            if (slot != 0) {
+                values[n++] = slot - 1;
+            }
+        }
+        return values;
+    }
+
+    public void forEach(IntConsumer action) {
+        for (int slot : slots) {
+            if (slot != 0) {
+                action.accept(slot - 1);
+            }
+        }
+    }
+
+    private void rehash(int capacity) {
+        int[] old = slots;
+        slots = new int[capacity];
+        int mask = capacity - 1;
+        for (int slot : old) {
+            if (slot != 0) {
+                int i = hash(slot - 1) & mask;
+                while (slots[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                slots[i] = slot;
+            }
+        }
+    }
+
+    private static int hash(int value) {
+        // ids are dense, scramble them so neighbours do not form long probe runs
+        int h = value * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,112 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * Hashed timer wheel for leases. An item sits in the bucket of the tick its lease ends in,
+ * so a sweep only looks at the items that may have lapsed since the last one, never at all of them.
+ * <p>
+ * Renewing a lease does not touch the wheel: it only moves the item's deadline. When the old
+ * bucket comes due the sweep sees the later deadline and files the item again, so a peer that
+ * keeps renewing costs one reschedule per lease period, not one per heartbeat.
+ */
+public class LeaseWheel<T> {
+
+    private final long tickMillis;
+    private final long startTime;
+    private final List<Entry<T>>[] buckets;
+    /** deadline of an item, -1 once it is gone and can be dropped from the wheel **/
+    private final ToLongFunction<T> deadline;
+    /** expire an item whose deadline passed; false when it was renewed meanwhile and must stay **/
+    private final Predicate<T> expire;
+
+    // guarded by this
+    private long sweptTick;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public LeaseWheel(int wheelSize, long tickMillis, ToLongFunction<T> deadline, Predicate<T> expire) {
+        this.tickMillis = tickMillis;
+        this.startTime = System.currentTimeMillis();
+        this.buckets = (List<Entry<T>>[]) new List[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            buckets[i] = new ArrayList<>();
+        }
+        this.deadline = deadline;
+        this.expire = expire;
+    }
+
+    /**
+     * File the item under the tick its lease ends in.
+     */
+    public synchronized void schedule(T item, long deadlineMillis) {
+        // a deadline in a tick already swept is picked up by the next sweep
+        long tick = Math.max(sweptTick + 1, (deadlineMillis - startTime + tickMillis - 1) / tickMillis);
+        buckets[(int) (tick % buckets.length)].add(new Entry<>(item, tick));
+    }
+
+    /**
+     * Expire the items whose lease lapsed up to now.
+     * The wheel lock is only held to take the due items out of their buckets.
+     * @return the number of expired items
+     */
+    public int sweep(long now) {
+        List<T> due = new ArrayList<>();
+        synchronized (this) {
+            long nowTick = (now - startTime) / tickMillis;
+            // a bucket holds items of later rounds too, a full turn visits every bucket once
+            for (long tick = sweptTick + 1; tick <= nowTick && tick <= sweptTick + buckets.length; tick++) {
+                List<Entry<T>> bucket = buckets[(int) (tick % buckets.length)];
+                if (bucket.isEmpty()) {
+                    continue;
+                }
+                List<Entry<T>> later = new ArrayList<>();
+                for (Entry<T> entry : bucket) {
+                    if (entry.tick <= nowTick) {
+                        due.add(entry.item);
+                    } else {
+                        later.add(entry);
+                    }
+                }
+                buckets[(int) (tick % buckets.length)] = later;
+            }
+            sweptTick = Math.max(sweptTick, nowTick);
+        }
+
+        int expired = 0;
+        for (T item : due) {
+            long itemDeadline = deadline.applyAsLong(item);
+            if (itemDeadline < 0) {
+                continue;
+            }
+            if (itemDeadline <= now) {
+                if (expire.test(item)) {
+                    expired++;
+                    continue;
+                }
+                // renewed between the deadline check and the expiry
+                itemDeadline = deadline.applyAsLong(item);
+            }
+            schedule(item, itemDeadline);
+        }
+        return expired;
+    }
+
+    public synchronized int size() {
+        int size = 0;
+        for (List<Entry<T>> bucket : buckets) {
+            size += bucket.size();
+        }
+        return size;
+    }
+
+    private static final class Entry<T> {
+        private final T item;
+        private final long tick;
+
+        Entry(T item, long tick) {
+            this.item = item;
+            this.tick = tick;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of LOOKUP responses by file name, so a popular file is answered without
+ * building its holder list and encoding it again.
+ * <p>
+ * Entries are split over segments, each an access ordered LinkedHashMap under its own lock
+ * that drops its least recently used entry when full.
+ * <p>
+ * Every name hashes to a version counter. A writer bumps the counter after it changed the
+ * name's postings; a reader takes the counter before it reads the postings and stores its result
+ * with that version. An entry is only served while its version is current, so a result computed
+ * from postings that changed meanwhile can never be served, even if it lands after the invalidation.
+ */
+public class LookupCache {
+
+    private static final int SEGMENTS = 16;
+    private static final int VERSION_STRIPES = 4096;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param capacity the most entries kept, 0 disables the cache
+     */
+    public LookupCache(int capacity) {
+        int segmentCapacity = capacity <= 0 ? 0 : Math.max(1, capacity / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(segmentCapacity);
+        }
+    }
+
+    /**
+     * Take before reading the postings of the name, and pass to put with the result.
+     */
+    public long version(String fileName) {
+        return versions.get(stripe(fileName));
+    }
+
+    /**
+     * @return the cached response, or null when there is none for the current version
+     */
+    public IndexResponse get(String fileName) {
+        Entry entry = segment(fileName).get(fileName);
+        if (entry == null || entry.version != versions.get(stripe(fileName))) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.response;
+    }
+
+    /**
+     * Keep a response; the cache encodes it once, callers must not change it afterwards.
+     */
+    public void put(String fileName, long version, IndexResponse response) throws IOException {
+        Segment segment = segment(fileName);
+        if (segment.capacity == 0) {
+            return;
+        }
+        response.setEncodedBody(IndexCodec.encodeResponseBody(response));
+        segment.put(fileName, new Entry(version, response));
+    }
+
+    /**
+     * Called after the postings of the name changed.
+     */
+    public void invalidate(String fileName) {
+        versions.incrementAndGet(stripe(fileName));
+        segment(fileName).remove(fileName);
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    private Segment segment(String fileName) {
+        return segments[(spread(fileName) >>> 16) & (SEGMENTS - 1)];
+    }
+
+    private static int stripe(String fileName) {
+        return spread(fileName) & (VERSION_STRIPES - 1);
+    }
+
+    private static int spread(String fileName) {
+        int h = fileName.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Entry {
+        private final long version;
+        private final IndexResponse response;
+
+        Entry(long version, IndexResponse response) {
+            this.version = version;
+            this.response = response;
+        }
+    }
+
+    private static final class Segment {
+        private final int capacity;
+        private final LinkedHashMap<String, Entry> entries;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+            this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > Segment.this.capacity;
+                }
+            };
+        }
+
+        synchronized Entry get(String fileName) {
+            return entries.get(fileName);
+        }
+
+        synchronized void put(String fileName, Entry entry) {
+            entries.put(fileName, entry);
+        }
+
+        synchronized void remove(String fileName) {
+            entries.remove(fileName);
+        }
+    }
+}
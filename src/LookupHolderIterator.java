@@ -0,0 +1,105 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * The holders of one file, fetched a LOOKUP page at a time as they are consumed. The next page is
+ * asked for as soon as the current one arrives, so a caller walking every holder rarely waits, and
+ * a caller that stops after the first few never makes the server build the rest.
+ */
+public class LookupHolderIterator implements Iterator<IndexResponse.LookupItem> {
+
+    private final IndexService indexService;
+    private final String fileName;
+    private final int pageSize;
+    private final int holderCount;
+    private Iterator<IndexResponse.LookupItem> page;
+    private CompletableFuture<IndexResponse> nextPage;
+    private IndexRequest nextPageRequest;
+
+    /**
+     * Fetches the first page.
+     * @throws IOException when the lookup fails, also when no peer holds the file
+     */
+    LookupHolderIterator(IndexService indexService, String fileName, int pageSize) throws IOException {
+        this.indexService = indexService;
+        this.fileName = fileName;
+        this.pageSize = pageSize;
+        // A cursor from the first page on asks for all holders in posting order rather than the best few
+        IndexResponse indexResponse = indexService.call(pageRequest("0"));
+        if (!indexResponse.isSuc()) {
+            throw new IOException("Lookup of " + fileName + " failed, message:" + indexResponse.getMessage());
+        }
+        Integer count = indexResponse.getData().getHolderCount();
+        this.holderCount = count == null ? indexResponse.getData().getPeerAndIpMapping().size() : count;
+        accept(indexResponse);
+    }
+
+    /**
+     * @return how many holders the file had when the first page was read
+     */
+    public int getHolderCount() {
+        return holderCount;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!page.hasNext()) {
+            if (nextPage == null) {
+                return false;
+            }
+            try {
+                IndexResponse indexResponse = nextPage.join();
+                if (indexResponse.getRetryAfterMillis() != null) {
+                    indexResponse = indexService.call(nextPageRequest);
+                }
+                if (!indexResponse.isSuc()) {
+                    throw new IOException("Lookup of " + fileName + " failed, message:" + indexResponse.getMessage());
+                }
+                accept(indexResponse);
+            } catch (IOException e) {
+                nextPage = null;
+                throw new UncheckedIOException(e);
+            } catch (CompletionException e) {
+                nextPage = null;
+                throw new UncheckedIOException(new IOException("Lookup of " + fileName + " failed", e.getCause()));
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public IndexResponse.LookupItem next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.next();
+    }
+
+    private void accept(IndexResponse indexResponse) {
+        IndexResponse.ResultData resultData = indexResponse.getData();
+        // Keyed by position in the server's order
+        page = new TreeMap<>(resultData.getPeerAndIpMapping()).values().iterator();
+        if (resultData.getNextCursor() == null) {
+            nextPage = null;
+            nextPageRequest = null;
+        } else {
+            nextPageRequest = pageRequest(resultData.getNextCursor());
+            nextPage = indexService.sendAsync(nextPageRequest);
+        }
+    }
+
+    private IndexRequest pageRequest(String cursor) {
+        IndexRequest indexRequest = new IndexRequest();
+        indexRequest.setRequestType(RequestTypeEnum.LOOKUP.getCode());
+        indexRequest.setIndexSearch(new IndexRequest.IndexSearch());
+        indexRequest.getIndexSearch().setFileName(fileName);
+        indexRequest.getIndexSearch().setLimit(pageSize);
+        indexRequest.getIndexSearch().setCursor(cursor);
+        return indexRequest;
+    }
+}
@@ -0,0 +1,329 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+import java.util.logging.Logger;
+
+/**
+ * The index kept in memory-mapped files, so it can grow past the heap and is back as soon as
+ * the files are mapped again after a restart. The dictionaries are MappedSymbolTables; the postings are:
+ * <ul>
+ *     <li>postings.idx: one long slot per name id. 0 when no peer holds the name, the posting itself
+ *     with the sign bit set when one peer does, otherwise the offset of a block in postings.dat</li>
+ *     <li>postings.dat: immutable blocks of [int count][int unused][long posting]*, appended and never
+ *     across a region. A block replaced by an update is not reclaimed.</li>
+ * </ul>
+ * Updates build a new block and compare-and-set the slot, like the PostingTable does with its arrays.
+ * <p>
+ * store.meta tells whether the files were checkpointed by a clean shutdown. It is marked dirty as soon as
+ * the store opens; files left dirty by a crash are thrown away and the write-ahead log rebuilds them.
+ */
+public class MappedIndexStore implements IndexStore {
+
+    private static final Logger LOGGER = Logger.getLogger(MappedIndexStore.class.getName());
+
+    private static final int META_MAGIC = 0x5041314D; // "PA1M"
+    private static final byte META_VERSION = 1;
+    private static final String META_FILE = "store.meta";
+    private static final String[] TABLES = {"names", "paths", "peers"};
+    private static final String POSTINGS_PREFIX = "postings";
+
+    private static final int POSTING_SLOT_REGION_BITS = 23;
+    private static final int POSTING_BLOCK_REGION_BITS = 26;
+    /** the first block starts after this, so a slot of 0 never points at a block **/
+    private static final long FIRST_BLOCK = 8;
+
+    private final Path directory;
+    private MappedSymbolTable fileNames;
+    private MappedSymbolTable filePaths;
+    private MappedSymbolTable peerKeys;
+    private MappedRegions postingSlots;
+    private MappedRegions postingBlocks;
+    private final AtomicLong postingsEnd = new AtomicLong();
+
+    private long checkpointSequence = -1;
+    private volatile boolean closed;
+
+    public MappedIndexStore(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        long start = System.currentTimeMillis();
+        if (!open()) {
+            deleteFiles();
+            openEmpty();
+        }
+        writeMeta(false, -1);
+        LOGGER.info("Index store opened in " + directory + " (" + fileNames.size() + " names, checkpoint sequence "
+                + checkpointSequence + ") in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Map the files of a clean checkpoint.
+     * @return false when there is none
+     */
+    private boolean open() throws IOException {
+        Path meta = directory.resolve(META_FILE);
+        if (!Files.exists(meta)) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(meta))) {
+            if (in.readInt() != META_MAGIC || in.readByte() != META_VERSION) {
+                LOGGER.warning("Not an index store meta file, starting empty: " + meta);
+                return false;
+            }
+            if (!in.readBoolean()) {
+                LOGGER.warning("The index store in " + directory + " was not shut down cleanly, starting empty");
+                return false;
+            }
+            long sequence = in.readLong();
+            MappedSymbolTable[] tables = new MappedSymbolTable[TABLES.length];
+            for (int i = 0; i < TABLES.length; i++) {
+                tables[i] = new MappedSymbolTable(directory, TABLES[i], in.readInt(), in.readLong(), in.readInt());
+            }
+            fileNames = tables[0];
+            filePaths = tables[1];
+            peerKeys = tables[2];
+            openPostings(in.readLong());
+            checkpointSequence = sequence;
+            return true;
+        }
+    }
+
+    private void openEmpty() throws IOException {
+        fileNames = new MappedSymbolTable(directory, TABLES[0], 0, 0, MappedSymbolTable.INITIAL_CAPACITY);
+        filePaths = new MappedSymbolTable(directory, TABLES[1], 0, 0, MappedSymbolTable.INITIAL_CAPACITY);
+        peerKeys = new MappedSymbolTable(directory, TABLES[2], 0, 0, MappedSymbolTable.INITIAL_CAPACITY);
+        openPostings(FIRST_BLOCK);
+        checkpointSequence = -1;
+    }
+
+    private void openPostings(long end) throws IOException {
+        postingSlots = new MappedRegions(directory.resolve(POSTINGS_PREFIX + ".idx"), POSTING_SLOT_REGION_BITS);
+        postingBlocks = new MappedRegions(directory.resolve(POSTINGS_PREFIX + ".dat"), POSTING_BLOCK_REGION_BITS);
+        postingSlots.ensureCapacity((long) fileNames.size() * 8);
+        postingBlocks.ensureCapacity(end);
+        postingsEnd.set(end);
+    }
+
+    @Override
+    public int internName(String name) throws IOException {
+        checkOpen();
+        return fileNames.intern(name);
+    }
+
+    @Override
+    public int findName(String name) {
+        return fileNames.find(name);
+    }
+
+    @Override
+    public String getName(int nameId) {
+        return fileNames.symbol(nameId);
+    }
+
+    @Override
+    public int nameCount() {
+        return fileNames.size();
+    }
+
+    @Override
+    public int internPath(String path) throws IOException {
+        checkOpen();
+        return filePaths.intern(path);
+    }
+
+    @Override
+    public String getPath(int pathId) {
+        return filePaths.symbol(pathId);
+    }
+
+    @Override
+    public int internPeer(String peerId, String peerAddress) throws IOException {
+        checkOpen();
+        return peerKeys.intern(IndexStore.peerKey(peerId, peerAddress));
+    }
+
+    @Override
+    public int findPeer(String peerId, String peerAddress) {
+        return peerKeys.find(IndexStore.peerKey(peerId, peerAddress));
+    }
+
+    @Override
+    public String getPeerId(int peerKeyId) {
+        return IndexStore.peerIdOf(peerKeys.symbol(peerKeyId));
+    }
+
+    @Override
+    public String getPeerAddress(int peerKeyId) {
+        return IndexStore.peerAddressOf(peerKeys.symbol(peerKeyId));
+    }
+
+    @Override
+    public PostingList getPostings(int nameId) {
+        long slotPosition = (long) nameId * 8;
+        if (!postingSlots.isMapped(slotPosition)) {
+            return null;
+        }
+        return decode(postingSlots.getLongVolatile(slotPosition));
+    }
+
+    @Override
+    public PostingList computePostings(int nameId, UnaryOperator<PostingList> remapping) throws IOException {
+        checkOpen();
+        long slotPosition = (long) nameId * 8;
+        postingSlots.ensureCapacity(slotPosition + 8);
+        while (true) {
+            long slot = postingSlots.getLongVolatile(slotPosition);
+            PostingList current = decode(slot);
+            PostingList next = remapping.apply(current);
+            if (next == current || postingSlots.compareAndSetLong(slotPosition, slot, encode(next))) {
+                return next;
+            }
+        }
+    }
+
+    private PostingList decode(long slot) {
+        if (slot == 0) {
+            return null;
+        }
+        if (slot < 0) {
+            return PostingList.of(new long[]{slot & Long.MAX_VALUE});
+        }
+        long[] postings = new long[postingBlocks.getInt(slot)];
+        for (int i = 0; i < postings.length; i++) {
+            postings[i] = postingBlocks.getLong(slot + 8 + (long) i * 8);
+        }
+        return PostingList.of(postings);
+    }
+
+    /**
+     * @return the slot value of the postings, writing a block for two or more
+     */
+    private long encode(PostingList postingList) throws IOException {
+        if (postingList == null || postingList.isEmpty()) {
+            return 0;
+        }
+        if (postingList.size() == 1) {
+            return postingList.getPosting(0) | Long.MIN_VALUE;
+        }
+        long length = 8 + (long) postingList.size() * 8;
+        long regionSize = postingBlocks.regionSize();
+        if (length > regionSize) {
+            throw new IOException("A posting list of " + postingList.size() + " holders does not fit into the index store");
+        }
+        long position;
+        long end;
+        do {
+            end = postingsEnd.get();
+            position = end;
+            if ((position & (regionSize - 1)) + length > regionSize) {
+                position = (position | (regionSize - 1)) + 1;
+            }
+        } while (!postingsEnd.compareAndSet(end, position + length));
+        postingBlocks.ensureCapacity(position + length);
+        postingBlocks.putInt(position, postingList.size());
+        for (int i = 0; i < postingList.size(); i++) {
+            postingBlocks.putLong(position + 8 + (long) i * 8, postingList.getPosting(i));
+        }
+        return position;
+    }
+
+    @Override
+    public long getCheckpointSequence() {
+        return checkpointSequence;
+    }
+
+    /**
+     * Write the mapped files back and mark them clean. The store takes no more writes afterwards.
+     */
+    @Override
+    public synchronized void checkpoint(long walSequence) throws IOException {
+        closed = true;
+        force();
+        writeMeta(true, walSequence);
+        LOGGER.info("Index store checkpointed at sequence " + walSequence + ", " + fileNames.size() + " names");
+    }
+
+    @Override
+    public synchronized void clear() throws IOException {
+        closeFiles();
+        deleteFiles();
+        openEmpty();
+        writeMeta(false, -1);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        closeFiles();
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("The index store is closed");
+        }
+    }
+
+    private void force() {
+        fileNames.force();
+        filePaths.force();
+        peerKeys.force();
+        postingSlots.force();
+        postingBlocks.force();
+    }
+
+    private void closeFiles() throws IOException {
+        fileNames.close();
+        filePaths.close();
+        peerKeys.close();
+        postingSlots.close();
+        postingBlocks.close();
+    }
+
+    private void deleteFiles() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                if (name.startsWith(POSTINGS_PREFIX + ".") || name.startsWith(TABLES[0] + ".")
+                        || name.startsWith(TABLES[1] + ".") || name.startsWith(TABLES[2] + ".")) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replace store.meta with the current sizes and force it, before the caller goes on.
+     */
+    private void writeMeta(boolean clean, long walSequence) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(META_MAGIC);
+        out.writeByte(META_VERSION);
+        out.writeBoolean(clean);
+        out.writeLong(walSequence);
+        for (MappedSymbolTable table : new MappedSymbolTable[]{fileNames, filePaths, peerKeys}) {
+            out.writeInt(table.size());
+            out.writeLong(table.getDataEnd());
+            out.writeInt(table.getCapacity());
+        }
+        out.writeLong(postingsEnd.get());
+        out.flush();
+
+        Path tmp = directory.resolve(META_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap(bytes.toByteArray()));
+            channel.force(true);
+        }
+        Files.move(tmp, directory.resolve(META_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,128 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A file mapped into memory in fixed size regions, more regions are mapped as it grows.
+ * Positions are absolute file offsets; a value never straddles two regions as long as
+ * callers keep longs 8 byte aligned and allocate byte runs inside one region.
+ * <p>
+ * Values are in native byte order, so the files are not portable between machines.
+ */
+final class MappedRegions implements Closeable {
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final FileChannel channel;
+    private final int regionBits;
+    private final long regionSize;
+    private volatile MappedByteBuffer[] regions = new MappedByteBuffer[0];
+
+    MappedRegions(Path file, int regionBits) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.regionBits = regionBits;
+        this.regionSize = 1L << regionBits;
+    }
+
+    long regionSize() {
+        return regionSize;
+    }
+
+    /**
+     * Map regions until [0, size) is covered; the file grows with them.
+     */
+    void ensureCapacity(long size) throws IOException {
+        if (((long) regions.length << regionBits) >= size) {
+            return;
+        }
+        synchronized (this) {
+            MappedByteBuffer[] current = regions;
+            int needed = (int) ((size + regionSize - 1) >>> regionBits);
+            if (current.length >= needed) {
+                return;
+            }
+            MappedByteBuffer[] grown = Arrays.copyOf(current, needed);
+            for (int i = current.length; i < needed; i++) {
+                grown[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i << regionBits, regionSize);
+                grown[i].order(ByteOrder.nativeOrder());
+            }
+            regions = grown;
+        }
+    }
+
+    /**
+     * @return true when the position lies in a mapped region
+     */
+    boolean isMapped(long position) {
+        return (position >>> regionBits) < regions.length;
+    }
+
+    private MappedByteBuffer region(long position) {
+        return regions[(int) (position >>> regionBits)];
+    }
+
+    private int offset(long position) {
+        return (int) (position & (regionSize - 1));
+    }
+
+    long getLong(long position) {
+        return region(position).getLong(offset(position));
+    }
+
+    void putLong(long position, long value) {
+        region(position).putLong(offset(position), value);
+    }
+
+    long getLongVolatile(long position) {
+        return (long) LONGS.getVolatile(region(position), offset(position));
+    }
+
+    boolean compareAndSetLong(long position, long expected, long value) {
+        return LONGS.compareAndSet(region(position), offset(position), expected, value);
+    }
+
+    int getInt(long position) {
+        return region(position).getInt(offset(position));
+    }
+
+    void putInt(long position, int value) {
+        region(position).putInt(offset(position), value);
+    }
+
+    byte get(long position) {
+        return region(position).get(offset(position));
+    }
+
+    void get(long position, byte[] bytes) {
+        region(position).get(offset(position), bytes);
+    }
+
+    void put(long position, byte[] bytes) {
+        region(position).put(offset(position), bytes);
+    }
+
+    /**
+     * Write every region back to the file.
+     */
+    void force() {
+        for (MappedByteBuffer region : regions) {
+            region.force();
+        }
+    }
+
+    /**
+     * The mapped regions stay valid until they are garbage collected, closing only releases the channel.
+     */
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+}
@@ -0,0 +1,218 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * SymbolTable kept in memory-mapped files instead of the heap. Three files per table:
+ * <ul>
+ *     <li>prefix.dat: the strings, appended as [int length][utf-8 bytes], never across a region</li>
+ *     <li>prefix.ids: id -> offset of its string in prefix.dat, one long per id</li>
+ *     <li>prefix.hash.capacity: open addressing table of (hash << 32 | id + 1), 0 marks an empty slot</li>
+ * </ul>
+ * The hash table is kept at most half full; growing writes a table of twice the capacity into a new file.
+ * <p>
+ * find and symbol do not lock. A slot is published with a compare-and-set after its string and
+ * offset are written, so a reader that sees the id also sees the string.
+ */
+final class MappedSymbolTable {
+
+    private static final int DATA_REGION_BITS = 26;
+    private static final int IDS_REGION_BITS = 23;
+    private static final int MAX_HASH_REGION_BITS = 26;
+    static final int INITIAL_CAPACITY = 1 << 12;
+
+    private final Path directory;
+    private final String prefix;
+    private final MappedRegions data;
+    private final MappedRegions ids;
+    private volatile HashTable table;
+
+    // written under this
+    private long dataEnd;
+    private volatile int size;
+
+    /**
+     * Open the table files of a clean store, or create them with size 0 and dataEnd 0.
+     */
+    MappedSymbolTable(Path directory, String prefix, int size, long dataEnd, int capacity) throws IOException {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.data = new MappedRegions(directory.resolve(prefix + ".dat"), DATA_REGION_BITS);
+        this.ids = new MappedRegions(directory.resolve(prefix + ".ids"), IDS_REGION_BITS);
+        this.size = size;
+        this.dataEnd = dataEnd;
+        data.ensureCapacity(dataEnd);
+        ids.ensureCapacity((long) size * 8);
+        this.table = new HashTable(hashFile(capacity), capacity);
+    }
+
+    /**
+     * @return the id of the string, or -1 when it was never interned
+     */
+    int find(String symbol) {
+        int hash = hash(symbol);
+        byte[] bytes = null;
+        HashTable current = table;
+        while (true) {
+            int mask = current.capacity - 1;
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                long slot = current.slots.getLongVolatile((long) i * 8);
+                if (slot == 0) {
+                    break;
+                }
+                if ((int) (slot >>> 32) == hash) {
+                    if (bytes == null) {
+                        bytes = symbol.getBytes(StandardCharsets.UTF_8);
+                    }
+                    int id = (int) slot - 1;
+                    if (equalsAt(id, bytes)) {
+                        return id;
+                    }
+                }
+            }
+            if (current == table) {
+                return -1;
+            }
+            // The table grew while we were probing, the string may only be in the new one
+            current = table;
+        }
+    }
+
+    /**
+     * @return the id of the string, handing out the next id on first use
+     */
+    int intern(String symbol) throws IOException {
+        int id = find(symbol);
+        if (id >= 0) {
+            return id;
+        }
+        synchronized (this) {
+            id = find(symbol);
+            if (id >= 0) {
+                return id;
+            }
+            byte[] bytes = symbol.getBytes(StandardCharsets.UTF_8);
+            long position = allocate(4 + bytes.length);
+            data.putInt(position, bytes.length);
+            data.put(position + 4, bytes);
+            id = size;
+            ids.ensureCapacity((long) (id + 1) * 8);
+            ids.putLong((long) id * 8, position);
+            if ((id + 1) * 2L > table.capacity) {
+                grow(table.capacity * 2);
+            }
+            insertSlot(table, hash(symbol), id);
+            size = id + 1;
+            return id;
+        }
+    }
+
+    String symbol(int id) {
+        long position = ids.getLong((long) id * 8);
+        byte[] bytes = new byte[data.getInt(position)];
+        data.get(position + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    int size() {
+        return size;
+    }
+
+    synchronized long getDataEnd() {
+        return dataEnd;
+    }
+
+    int getCapacity() {
+        return table.capacity;
+    }
+
+    void force() {
+        data.force();
+        ids.force();
+        table.slots.force();
+    }
+
+    void close() throws IOException {
+        data.close();
+        ids.close();
+        table.slots.close();
+    }
+
+    /**
+     * Reserve a run of bytes in the data file that does not cross a region.
+     */
+    private long allocate(int length) throws IOException {
+        long regionSize = data.regionSize();
+        if (length > regionSize) {
+            throw new IOException("A symbol of " + length + " bytes does not fit into the index store");
+        }
+        long position = dataEnd;
+        if ((position & (regionSize - 1)) + length > regionSize) {
+            position = (position | (regionSize - 1)) + 1;
+        }
+        data.ensureCapacity(position + length);
+        dataEnd = position + length;
+        return position;
+    }
+
+    private boolean equalsAt(int id, byte[] bytes) {
+        long position = ids.getLong((long) id * 8);
+        if (data.getInt(position) != bytes.length) {
+            return false;
+        }
+        position += 4;
+        for (int i = 0; i < bytes.length; i++) {
+            if (data.get(position + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void grow(int capacity) throws IOException {
+        HashTable old = table;
+        Files.deleteIfExists(hashFile(capacity));
+        HashTable grown = new HashTable(hashFile(capacity), capacity);
+        for (long i = 0; i < old.capacity; i++) {
+            long slot = old.slots.getLong(i * 8);
+            if (slot != 0) {
+                insertSlot(grown, (int) (slot >>> 32), (int) slot - 1);
+            }
+        }
+        table = grown;
+        old.slots.close();
+        Files.deleteIfExists(hashFile(old.capacity));
+    }
+
+    private static void insertSlot(HashTable table, int hash, int id) {
+        int mask = table.capacity - 1;
+        int i = hash & mask;
+        while (table.slots.getLong((long) i * 8) != 0) {
+            i = (i + 1) & mask;
+        }
+        table.slots.compareAndSetLong((long) i * 8, 0, ((long) hash << 32) | (id + 1));
+    }
+
+    private Path hashFile(int capacity) {
+        return directory.resolve(prefix + ".hash." + capacity);
+    }
+
+    private static int hash(String symbol) {
+        // String.hashCode is fixed by the language spec, so the stored hashes stay valid across restarts
+        int h = symbol.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static final class HashTable {
+        private final MappedRegions slots;
+        private final int capacity;
+
+        HashTable(Path file, int capacity) throws IOException {
+            long bytes = (long) capacity * 8;
+            this.slots = new MappedRegions(file, Math.min(MAX_HASH_REGION_BITS, Long.numberOfTrailingZeros(bytes)));
+            this.capacity = capacity;
+            slots.ensureCapacity(bytes);
+        }
+    }
+}
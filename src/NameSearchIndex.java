@@ -0,0 +1,290 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntPredicate;
+import java.util.regex.Pattern;
+
+/**
+ * Trigram index over the file name dictionary for pattern search.
+ * Names are indexed with two start markers and one end marker, so the trigrams of
+ * a prefix ("text_mb_*"), a suffix ("*.bin") and a plain substring ("*report*") are
+ * all in the same index. A glob query walks the id list of its rarest trigram and
+ * checks each candidate against the full pattern; nothing scans the whole key set.
+ * <p>
+ * Id lists are delta encoded varints, a byte or two per entry for common trigrams.
+ * Names are appended in symbol id order by indexNewNames and never removed,
+ * like the dictionary itself; the caller filters out names no peer holds any more.
+ * <p>
+ * Registers only signal the indexer thread with indexNewNamesLater, they never wait for the indexing of
+ * their own names or anyone else's. SEARCH may therefore briefly miss names that were just registered.
+ */
+public class NameSearchIndex {
+
+    private static final int TRIGRAM = 3;
+    private static final char MARKER = '\0';
+
+    private final IndexStore fileNames;
+    private final ConcurrentMap<Long, IdList> trigramPostings = new ConcurrentHashMap<>();
+    /** names [0, indexedCount) of the dictionary are indexed, guarded by this **/
+    private int indexedCount;
+    /** one pass of the indexer thread is queued and has not started yet **/
+    private final AtomicBoolean passQueued = new AtomicBoolean();
+    private final ExecutorService indexer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "name-search-index");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public NameSearchIndex(IndexStore fileNames) {
+        this.fileNames = fileNames;
+    }
+
+    /**
+     * Have the indexer thread index the names interned so far, without waiting for it. Signals that come
+     * while a pass is queued share that pass; one that comes while a pass runs queues the next.
+     */
+    public void indexNewNamesLater() {
+        if (passQueued.compareAndSet(false, true)) {
+            indexer.execute(() -> {
+                passQueued.set(false);
+                indexNewNames();
+            });
+        }
+    }
+
+    /**
+     * Index the names interned since the last call, on the calling thread.
+     */
+    public synchronized void indexNewNames() {
+        int size = fileNames.nameCount();
+        for (int id = indexedCount; id < size; id++) {
+            String padded = MARKER + "" + MARKER + fileNames.getName(id) + MARKER;
+            for (int i = 0; i + TRIGRAM <= padded.length(); i++) {
+                trigramPostings.computeIfAbsent(trigram(padded, i), key -> new IdList()).add(id);
+            }
+        }
+        indexedCount = size;
+    }
+
+    /**
+     * One page of names matching the glob, '*' for any run of characters and '?' for one character.
+     * Names come in registration order. At most maxScanned candidates are examined, so a page
+     * may come back short with a cursor to go on from.
+     * @param cursor nextCursor of the previous page, null for the first page
+     * @param live tells whether a name id is still held by some peer
+     * @throws IllegalArgumentException when the glob has no three literal characters in a row, counting the name boundaries
+     */
+    public Page search(String glob, String cursor, int limit, int maxScanned, IntPredicate live) {
+        Pattern pattern = compile(glob);
+        String[] literals = (glob + " ").split("[*?]");
+        // the trailing blank keeps a trailing empty run in the split, it is not part of the name
+        literals[literals.length - 1] = literals[literals.length - 1].substring(0, literals[literals.length - 1].length() - 1);
+        literals[0] = MARKER + "" + MARKER + literals[0];
+        literals[literals.length - 1] = literals[literals.length - 1] + MARKER;
+
+        IdList rarest = null;
+        boolean anyTrigram = false;
+        for (String literal : literals) {
+            for (int i = 0; i + TRIGRAM <= literal.length(); i++) {
+                anyTrigram = true;
+                IdList ids = trigramPostings.get(trigram(literal, i));
+                if (ids == null) {
+                    // no name contains this part of the pattern
+                    return new Page();
+                }
+                if (rarest == null || ids.count() < rarest.count()) {
+                    rarest = ids;
+                }
+            }
+        }
+        if (!anyTrigram) {
+            throw new IllegalArgumentException("The search pattern is too broad, it needs a literal prefix, suffix or " + TRIGRAM + " literal characters in a row");
+        }
+
+        Page page = new Page();
+        IdList.Reader reader = rarest.reader(cursor == null ? -1 : Integer.parseInt(cursor));
+        int scanned = 0;
+        int lastScanned = -1;
+        int id;
+        while ((id = reader.next()) >= 0) {
+            if (page.names.size() == limit || scanned == maxScanned) {
+                page.nextCursor = Integer.toString(lastScanned);
+                return page;
+            }
+            scanned++;
+            lastScanned = id;
+            String name = fileNames.getName(id);
+            if (pattern.matcher(name).matches() && live.test(id)) {
+                page.names.add(name);
+            }
+        }
+        return page;
+    }
+
+    private static Pattern compile(String glob) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (char c : glob.toCharArray()) {
+            if (c == '*' || c == '?') {
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                regex.append(c == '*' ? ".*" : ".");
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    private static long trigram(String s, int i) {
+        return ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+    }
+
+    /**
+     * One page of search results.
+     */
+    public static class Page {
+        private final List<String> names = new ArrayList<>();
+        private String nextCursor;
+
+        public List<String> getNames() {
+            return names;
+        }
+
+        /**
+         * @return null when there is nothing after this page
+         */
+        public String getNextCursor() {
+            return nextCursor;
+        }
+    }
+
+    /**
+     * Ascending name ids of one trigram as varint deltas, with a skip entry every SKIP_INTERVAL ids
+     * so a cursor does not decode the list from the start. Appended by the single indexing thread;
+     * readers see a prefix of it through the volatile length, without locking.
+     */
+    private static final class IdList {
+        private static final int SKIP_INTERVAL = 128;
+
+        private volatile byte[] bytes = new byte[8];
+        private volatile int length;
+        private volatile int count;
+        /** byte offset of entry k * SKIP_INTERVAL and the id before it, the base of its delta **/
+        private volatile int[] skipOffsets = new int[1];
+        private volatile int[] skipBaseIds = {-1};
+        private int lastId = -1;
+
+        void add(int id) {
+            if (id == lastId) {
+                // the trigram occurs twice in one name
+                return;
+            }
+            int n = count;
+            if (n > 0 && n % SKIP_INTERVAL == 0) {
+                int k = n / SKIP_INTERVAL;
+                int[] offsets = skipOffsets;
+                int[] baseIds = skipBaseIds;
+                if (k == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, k * 2);
+                    baseIds = Arrays.copyOf(baseIds, k * 2);
+                }
+                offsets[k] = length;
+                baseIds[k] = lastId;
+                skipOffsets = offsets;
+                skipBaseIds = baseIds;
+            }
+            int end = length;
+            byte[] array = bytes;
+            if (end + 5 > array.length) {
+                array = Arrays.copyOf(array, array.length + (array.length >> 1) + 5);
+                bytes = array;
+            }
+            for (int delta = id - lastId; ; delta >>>= 7) {
+                if ((delta & ~0x7F) == 0) {
+                    array[end++] = (byte) delta;
+                    break;
+                }
+                array[end++] = (byte) ((delta & 0x7F) | 0x80);
+            }
+            lastId = id;
+            count = n + 1;
+            length = end;
+        }
+
+        int count() {
+            return count;
+        }
+
+        /**
+         * @return a reader positioned before the first id greater than afterId
+         */
+        Reader reader(int afterId) {
+            // count first: every skip entry it covers is visible, and length covers at least as many entries
+            int entries = count;
+            int end = length;
+            byte[] array = bytes;
+            int[] offsets = skipOffsets;
+            int[] baseIds = skipBaseIds;
+            int skips = (entries + SKIP_INTERVAL - 1) / SKIP_INTERVAL;
+            int k = 0;
+            for (int low = 1, high = skips - 1; low <= high; ) {
+                int mid = (low + high) >>> 1;
+                if (baseIds[mid] <= afterId) {
+                    k = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return new Reader(array, offsets[k], end, baseIds[k], afterId);
+        }
+
+        static final class Reader {
+            private final byte[] bytes;
+            private final int end;
+            private final int afterId;
+            private int offset;
+            private int id;
+
+            Reader(byte[] bytes, int offset, int end, int baseId, int afterId) {
+                this.bytes = bytes;
+                this.offset = offset;
+                this.end = end;
+                this.id = baseId;
+                this.afterId = afterId;
+            }
+
+            /**
+             * @return the next id, -1 at the end of the list
+             */
+            int next() {
+                while (offset < end) {
+                    int delta = 0;
+                    for (int shift = 0; ; shift += 7) {
+                        byte b = bytes[offset++];
+                        delta |= (b & 0x7F) << shift;
+                        if (b >= 0) {
+                            break;
+                        }
+                    }
+                    id += delta;
+                    if (id > afterId) {
+                        return id;
+                    }
+                }
+                return -1;
+            }
+        }
+    }
+}
@@ -0,0 +1,329 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Event-loop front end for the index server.
+ * A few selector threads own all sockets and only move bytes; decoded requests
+ * run on a separate compute pool, so idle peers cost a channel and a small buffer
+ * instead of a blocked thread. Only the binary codec (IndexCodec) is spoken here.
+ */
+public class NioIndexServer {
+
+    private static Logger LOGGER = Logger.getLogger(NioIndexServer.class.getName());
+
+    private static final int INITIAL_READ_BUFFER_SIZE = 512;
+
+    private final IndexServer indexServer;
+    private final IoLoop[] ioLoops;
+    private final ExecutorService computeThreadPool;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    public NioIndexServer(IndexServer indexServer, int ioThreads, int computeThreads) throws IOException {
+        this.indexServer = indexServer;
+        this.computeThreadPool = indexServer.newBoundedPool(computeThreads);
+        this.ioLoops = new IoLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            ioLoops[i] = new IoLoop();
+            Thread thread = new Thread(ioLoops[i], "index-io-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public void startServer(int port) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+
+        LOGGER.info("The index service (nio, io threads: " + ioLoops.length + ") is started successfully. port: " + port);
+        while (true) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                ioLoops[Math.floorMod(nextLoop.getAndIncrement(), ioLoops.length)].register(channel);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private class IoLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+
+        IoLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            pendingChannels.add(channel);
+            selector.wakeup();
+        }
+
+        void requestWrite(Connection connection) {
+            pendingWrites.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    registerPendingChannels();
+                    enablePendingWrites();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            connection.close();
+                        } catch (RuntimeException | Error e) {
+                            // Only this connection is given up, the loop goes on serving the others
+                            LOGGER.warning("Closed the connection of " + connection.clientIp + " after an error: " + e);
+                            connection.close();
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.info("index io loop error,msg:" + e.getMessage());
+                }
+            }
+        }
+
+        private void registerPendingChannels() {
+            SocketChannel channel;
+            while ((channel = pendingChannels.poll()) != null) {
+                try {
+                    Connection connection = new Connection(this, channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (IOException e) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        private void enablePendingWrites() {
+            Connection connection;
+            while ((connection = pendingWrites.poll()) != null) {
+                if (connection.key != null && connection.key.isValid()) {
+                    connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_WRITE);
+                }
+            }
+        }
+    }
+
+    private class Connection {
+        private final IoLoop loop;
+        private final SocketChannel channel;
+        private final String clientIp;
+        private final Queue<ByteBuffer> writeQueue = new ArrayDeque<>();
+        private SelectionKey key;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private boolean handshakeDone;
+        private volatile boolean closeAfterWrite;
+
+        Connection(IoLoop loop, SocketChannel channel) throws IOException {
+            this.loop = loop;
+            this.channel = channel;
+            this.clientIp = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+        }
+
+        void onReadable() throws IOException {
+            if (closeAfterWrite) {
+                // Nothing sent after DISCONNECT is run
+                return;
+            }
+            if (channel.read(readBuffer) < 0) {
+                close();
+                return;
+            }
+            readBuffer.flip();
+            while (processOne()) {
+                // keep draining complete frames
+            }
+            readBuffer.compact();
+        }
+
+        /**
+         * Consume one handshake or request frame from the read buffer.
+         * @return false when more bytes are needed, or after DISCONNECT
+         */
+        private boolean processOne() throws IOException {
+            if (!handshakeDone) {
+                if (readBuffer.remaining() < 5) {
+                    return false;
+                }
+                int magic = readBuffer.getInt();
+                byte version = readBuffer.get();
+                if (magic != IndexCodec.MAGIC || version != IndexCodec.VERSION) {
+                    LOGGER.info("Rejected a non-binary client from " + clientIp + ", nio mode only speaks the binary codec");
+                    throw new IOException("Unsupported handshake");
+                }
+                handshakeDone = true;
+                send(IndexCodec.encodeResponse(IndexResponse.sucResp("Connection established successfully")));
+                return true;
+            }
+
+            if (readBuffer.remaining() < 4) {
+                return false;
+            }
+            int length = readBuffer.getInt(readBuffer.position());
+            if (length < 0 || length > IndexCodec.MAX_FRAME_SIZE) {
+                throw new IOException("Invalid frame length: " + length);
+            }
+            if (readBuffer.remaining() < 4 + length) {
+                ensureCapacity(4 + length);
+                return false;
+            }
+            readBuffer.getInt();
+            byte[] payload = new byte[length];
+            readBuffer.get(payload);
+
+            IndexRequest request;
+            try {
+                request = IndexCodec.decodeRequest(payload);
+            } catch (RuntimeException | OutOfMemoryError e) {
+                // A malformed frame must not take the selector thread down with it
+                throw new IOException("Undecodable request from " + clientIp + ": " + e, e);
+            }
+            if (request.getRequestType() != null
+                    && RequestTypeEnum.getEnumByCode(request.getRequestType()) == RequestTypeEnum.DISCONNECT) {
+                LOGGER.info("The client has requested that the connection be closed");
+                closeAfterWrite = true;
+                // Stop reading, the frames behind DISCONNECT are dropped; write out what is in flight, then close
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                loop.requestWrite(this);
+                return false;
+            }
+            // Turned away requests are answered right here, they never take a compute thread
+            IndexResponse rejected = indexServer.admit(request, clientIp);
+            if (rejected != null) {
+                send(IndexCodec.encodeResponse(rejected));
+                return true;
+            }
+            // Requests of one connection run concurrently; responses carry the request id and may go out of order
+            inFlight.incrementAndGet();
+            long queuedAt = System.nanoTime();
+            try {
+                computeThreadPool.execute(() -> {
+                    try {
+                        IndexResponse response = indexServer.handleRequest(request, clientIp, queuedAt);
+                        long encodeStart = System.nanoTime();
+                        byte[] encoded = IndexCodec.encodeResponse(response);
+                        indexServer.getMetrics().recordSerialization(request.getRequestType(), System.nanoTime() - encodeStart);
+                        send(encoded);
+                    } catch (IOException e) {
+                        LOGGER.info("encode response error,msg:" + e.getMessage());
+                        close();
+                    } catch (RuntimeException e) {
+                        LOGGER.warning("encode response error,msg:" + e);
+                        sendFailed(request, e);
+                    } finally {
+                        indexServer.release(request);
+                        // The last answer after DISCONNECT may have been written before this decrement, so wake
+                        // the I/O thread once more to see the count at 0 and close
+                        if (inFlight.decrementAndGet() == 0 && closeAfterWrite) {
+                            loop.requestWrite(this);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                inFlight.decrementAndGet();
+                send(IndexCodec.encodeResponse(indexServer.queueFull(request)));
+            }
+            return true;
+        }
+
+        /**
+         * Grow the read buffer so a frame larger than it can be assembled; called with the buffer in read mode.
+         */
+        private void ensureCapacity(int frameSize) {
+            if (readBuffer.capacity() >= frameSize) {
+                return;
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(frameSize);
+            bigger.put(readBuffer);
+            bigger.flip();
+            readBuffer = bigger;
+        }
+
+        /**
+         * Queue one frame; may be called from any thread.
+         */
+        void send(byte[] payload) {
+            ByteBuffer frame = ByteBuffer.allocate(4 + payload.length);
+            frame.putInt(payload.length).put(payload).flip();
+            synchronized (this) {
+                writeQueue.add(frame);
+            }
+            loop.requestWrite(this);
+        }
+
+        /**
+         * Answer a request whose response could not be built, so the client is not left waiting for it.
+         */
+        private void sendFailed(IndexRequest request, RuntimeException e) {
+            try {
+                send(IndexCodec.encodeResponse(indexServer.failedResponse(request, e)));
+            } catch (IOException | RuntimeException encodeError) {
+                LOGGER.info("encode response error,msg:" + encodeError.getMessage());
+                close();
+            }
+        }
+
+        void onWritable() throws IOException {
+            synchronized (this) {
+                ByteBuffer buffer;
+                while ((buffer = writeQueue.peek()) != null) {
+                    channel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        return;
+                    }
+                    writeQueue.poll();
+                }
+                key.interestOps(closeAfterWrite ? 0 : SelectionKey.OP_READ);
+            }
+            if (closeAfterWrite && inFlight.get() == 0) {
+                close();
+            } else if (readBuffer.position() == 0 && readBuffer.capacity() > INITIAL_READ_BUFFER_SIZE) {
+                // Give back the memory of an oversized frame once it is handled
+                readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+            }
+        }
+
+        void close() {
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.info("Couldn't close a socket.");
+            }
+        }
+    }
+}
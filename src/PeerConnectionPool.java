@@ -0,0 +1,263 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keep-alive TCP connections to the file servers of other peers, at most maxPerPeer per host:port.
+ * A download borrows one, sends its GET and gives it back once the whole answer was read, so the
+ * next download from that peer is one request and response on an open socket. A borrower finding
+ * every connection of the peer in use waits for one.
+ * <p>
+ * Idle connections are reused most recent first, closed once idle for idleMillis, well before the
+ * file server gives up on them, and checked for having been closed by the peer before every reuse.
+ */
+public class PeerConnectionPool implements Closeable {
+
+    private final int maxPerPeer;
+    private final long idleMillis;
+    private final ConcurrentHashMap<String, Peer> peers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor;
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private volatile boolean closed;
+
+    public PeerConnectionPool() {
+        this(ConstantUtils.PEER_CONNECTIONS_PER_PEER, ConstantUtils.PEER_CONNECTION_IDLE_MILLIS);
+    }
+
+    public PeerConnectionPool(int maxPerPeer, long idleMillis) {
+        this.maxPerPeer = maxPerPeer;
+        this.idleMillis = idleMillis;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "peer-connection-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, idleMillis / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A healthy idle connection to the peer, or a new one.
+     * @throws java.net.ConnectException when the peer refuses the connection
+     */
+    public Connection borrow(String host, int port) throws IOException {
+        if (closed) {
+            throw new IOException("The peer connection pool is closed");
+        }
+        String key = host + ":" + port;
+        Peer peer = peers.computeIfAbsent(key, k -> new Peer(maxPerPeer));
+        try {
+            if (!peer.permits.tryAcquire(ConstantUtils.FILE_REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                throw new IOException("All " + maxPerPeer + " connections to " + key + " stayed busy");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a connection to " + key);
+        }
+        try {
+            long now = System.currentTimeMillis();
+            Connection connection;
+            while ((connection = peer.pollIdle()) != null) {
+                if (now - connection.idleSince <= idleMillis && connection.isHealthy()) {
+                    connection.reused = true;
+                    reused.incrementAndGet();
+                    return connection;
+                }
+                connection.close();
+            }
+            connection = Connection.open(host, port);
+            opened.incrementAndGet();
+            return connection;
+        } catch (IOException | RuntimeException e) {
+            peer.permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Give a borrowed connection back.
+     * @param reusable whether the last answer was read to its end, anything else closes the connection
+     */
+    public void release(Connection connection, boolean reusable) {
+        Peer peer = peers.get(connection.key);
+        if (reusable && !closed && peer != null) {
+            connection.idleSince = System.currentTimeMillis();
+            peer.offerIdle(connection);
+            if (closed) {
+                // Raced with close, which may have emptied this peer already
+                peer.closeIdle();
+            }
+        } else {
+            connection.close();
+        }
+        if (peer != null) {
+            peer.permits.release();
+        }
+    }
+
+    public long getOpened() {
+        return opened.get();
+    }
+
+    public long getReused() {
+        return reused.get();
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (Peer peer : peers.values()) {
+            for (Connection connection : peer.removeIdle(now - idleMillis)) {
+                connection.close();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        evictor.shutdownNow();
+        for (Peer peer : peers.values()) {
+            peer.closeIdle();
+        }
+    }
+
+    private static final class Peer {
+        /** one per borrowed connection; idle connections hold none, and there are never more than were borrowed at once **/
+        final Semaphore permits;
+        /** most recently returned first, guarded by itself **/
+        private final Deque<Connection> idle = new ArrayDeque<>();
+
+        Peer(int maxPerPeer) {
+            this.permits = new Semaphore(maxPerPeer);
+        }
+
+        Connection pollIdle() {
+            synchronized (idle) {
+                return idle.pollFirst();
+            }
+        }
+
+        void offerIdle(Connection connection) {
+            synchronized (idle) {
+                idle.offerFirst(connection);
+            }
+        }
+
+        /**
+         * Take out the connections idle since before the cutoff or closed by the peer.
+         */
+        List<Connection> removeIdle(long idleBefore) {
+            List<Connection> removed = new ArrayList<>();
+            synchronized (idle) {
+                Iterator<Connection> iterator = idle.iterator();
+                while (iterator.hasNext()) {
+                    Connection connection = iterator.next();
+                    if (connection.idleSince < idleBefore || !connection.isHealthy()) {
+                        iterator.remove();
+                        removed.add(connection);
+                    }
+                }
+            }
+            return removed;
+        }
+
+        void closeIdle() {
+            Connection connection;
+            while ((connection = pollIdle()) != null) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * One connection to a file server, with the streams a download reads and writes through.
+     */
+    public static final class Connection implements Closeable {
+        private final String key;
+        private final SocketChannel channel;
+        private final InputStream inputStream;
+        private final OutputStream outputStream;
+        private long idleSince;
+        private boolean reused;
+
+        private Connection(String key, SocketChannel channel) throws IOException {
+            this.key = key;
+            this.channel = channel;
+            this.inputStream = new BufferedInputStream(channel.socket().getInputStream(), ConstantUtils.FILE_BUFFER_SIZE);
+            this.outputStream = channel.socket().getOutputStream();
+        }
+
+        /**
+         * A connection of its own, for a download that does not go through a pool.
+         */
+        public static Connection open(String host, int port) throws IOException {
+            SocketChannel channel = SocketChannel.open();
+            try {
+                channel.socket().connect(new InetSocketAddress(host, port), ConstantUtils.FILE_REQUEST_TIMEOUT_MILLIS);
+                channel.socket().setTcpNoDelay(true);
+                channel.socket().setSoTimeout(ConstantUtils.FILE_REQUEST_TIMEOUT_MILLIS);
+                return new Connection(host + ":" + port, channel);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        public InputStream getInputStream() {
+            return inputStream;
+        }
+
+        public OutputStream getOutputStream() {
+            return outputStream;
+        }
+
+        /**
+         * @return whether the connection had been used for an earlier download
+         */
+        public boolean isReused() {
+            return reused;
+        }
+
+        /**
+         * An idle connection has nothing to read: end of stream means the peer closed it, bytes mean
+         * the last answer was not read to its end. Checked with a non-blocking read, so it never waits.
+         */
+        boolean isHealthy() {
+            try {
+                if (inputStream.available() > 0) {
+                    return false;
+                }
+                channel.configureBlocking(false);
+                try {
+                    return channel.read(ByteBuffer.allocate(1)) == 0;
+                } finally {
+                    channel.configureBlocking(true);
+                }
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing left to do with it
+            }
+        }
+    }
+}
@@ -1,6 +1,8 @@
 import java.io.*;
-import java.net.Socket;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.FileHandler;
 import java.util.logging.Logger;
@@ -9,12 +11,25 @@ import java.util.logging.SimpleFormatter;
 public class PeerServer {
 
 //    private static Logger LOGGER = Logger.getLogger("peer_client");
-    private static void configureLogging() {
+
+    /**
+     * index.log.async and the queue, rate and sampling settings are read as the index server reads them.
+     */
+    private static void configureLogging(ConfigReader config) {
         try {
             // Set the log output format
             System.setProperty("java.util.logging.SimpleFormatter.format",
                     "[%1$tF %1$tT] [%4$-7s] %5$s %n");
 
+            if (config.getBooleanProperty("index.log.async", true)) {
+                // Queue the records for a writer thread, so transfers don't wait on the log file and the console
+                AsyncLogHandler.install("peer_server", "peer_server.log",
+                        config.getIntProperty("index.log.queue.size", ConstantUtils.LOG_QUEUE_SIZE),
+                        config.getIntProperty("index.log.rate.per.second", ConstantUtils.LOG_RATE_PER_SECOND),
+                        config.getIntProperty("index.log.sample.every", ConstantUtils.LOG_SAMPLE_EVERY));
+                return;
+            }
+
             // Create a log handler and output logs to a specified file
             FileHandler fileHandler = new FileHandler("peer_server.log");
 
@@ -22,10 +37,8 @@ public class PeerServer {
             SimpleFormatter formatter = new SimpleFormatter();
             fileHandler.setFormatter(formatter);
 
-            // Obtain the root Logger and add a file handler
-            Logger rootLogger = Logger.getLogger("peer_server");
-            rootLogger.addHandler(fileHandler);
-
+            Logger peerLogger = Logger.getLogger("peer_server");
+            peerLogger.addHandler(fileHandler);
 
 //            FileHandler clientFileHandler = new FileHandler("peer_client.log");
 //            clientFileHandler.setFormatter(formatter);
@@ -36,28 +49,40 @@ public class PeerServer {
         }
     }
     public static void main(String[] args) throws IOException {
-        configureLogging();
+        configureLogging(new ConfigReader(ConstantUtils.SERVER_CONFIG_FILE));
         String peerId = UUID.randomUUID().toString();
-        Thread peerClientThread = new Thread(new PeerClient(peerId));
-        peerClientThread.start();
-
         //File Server
         FileServer fileServer = new FileServer(ConstantUtils.FILE_SERVER_DEFAULT_PORT);
+
+        Thread peerClientThread = new Thread(new PeerClient(peerId, fileServer));
+        peerClientThread.start();
+
         fileServer.startFileServer();
 
     }
 
     public static class PeerClient implements Runnable{
+        private static final int SEARCH_PAGE_SIZE = 50;
         private final String peerId;
+        /** this peer's file server, its upload count goes with every heartbeat; null when there is none **/
+        private final FileServer fileServer;
+        /** keep-alive connections to the file servers this peer downloads from **/
+        private final PeerConnectionPool connectionPool = new PeerConnectionPool();
+        /** directories registered so far, registered again when the index server dropped this peer **/
+        private final List<String> registeredDirectories = new CopyOnWriteArrayList<>();
+        /** renews the lease once the server announced one, null until then **/
+        private ScheduledExecutorService heartbeatScheduler;
         public PeerClient(String peerId){
+            this(peerId, null);
+        }
+        public PeerClient(String peerId, FileServer fileServer){
             this.peerId=peerId;
+            this.fileServer=fileServer;
         }
         @Override
         public void run() {
-            Socket peerClientSocket = null;
+            IndexService indexClient = null;
             BufferedReader input = null;
-            ObjectInputStream in = null;
-            ObjectOutputStream out = null;
             IndexRequest indexRequest;
             IndexResponse indexServerResponse;
 
@@ -65,39 +90,55 @@ public class PeerServer {
                 TimeUnit.SECONDS.sleep(1);
                 System.out.println("peer initiates the registration of the server. peerId:"+peerId);
                 input = new BufferedReader(new InputStreamReader(System.in));
-                System.out.print("Enter Server IP Address (The default address is 127.0.0.1):");
+                System.out.print("Enter Server IP Address (The default address is 127.0.0.1, a shard list such as 127.0.0.1:8080,127.0.0.1:8081,"
+                        + " or a primary and its replicas such as 127.0.0.1:8080;127.0.0.1:8081,127.0.0.1:8082):");
                 String serverAddress = input.readLine();
 
                 if(serverAddress.trim().length() == 0 || "\n".equals(serverAddress)) {
                     serverAddress = ConstantUtils.DEFAULT_INDEX_SERVER_HOST;
                 }
 
-                if(!IPAddressValidator.isValidIP(serverAddress)) {
-                    System.out.println("Invalid Server IP Address.");
-                    System.exit(0);
-                }
-
-                System.out.print("Enter Server PORT (The default PORT is 8080):");
-                String serverPort = input.readLine();
-                if(serverPort.trim().length() == 0 || "\n".equals(serverPort)) {
-                    serverPort = String.valueOf(ConstantUtils.INDEX_SERVER_PORT);
-                }
-
-                peerClientSocket = new Socket(serverAddress, Integer.parseInt(serverPort));
+                if (serverAddress.contains(";")) {
+                    // Writes go to the primary, lookups to the replicas; this peer always sees its own registrations
+                    String[] primaryAndReplicas = serverAddress.trim().split(";", 2);
+                    try {
+                        indexClient = new ReplicatedIndexClient(primaryAndReplicas[0], primaryAndReplicas[1], true, true);
+                    } catch (IOException | RuntimeException e) {
+                        System.out.println("Connection failure.Servers: "+serverAddress);
+                        System.exit(0);
+                    }
+                    System.out.println("The PEER has established a connection with the primary "+primaryAndReplicas[0]+" and replicas "+primaryAndReplicas[1]+" .");
+                } else if (serverAddress.contains(",")) {
+                    // A sharded index: every peer has to be given the same shard list
+                    try {
+                        indexClient = new ShardedIndexClient(serverAddress.trim(), true);
+                    } catch (IOException | RuntimeException e) {
+                        System.out.println("Connection failure.Shards: "+serverAddress);
+                        System.exit(0);
+                    }
+                    System.out.println("The PEER has established a connection with the index shards "+serverAddress.trim()+" .");
+                } else {
+                    if(!IPAddressValidator.isValidIP(serverAddress)) {
+                        System.out.println("Invalid Server IP Address.");
+                        System.exit(0);
+                    }
 
-                out = new ObjectOutputStream(peerClientSocket.getOutputStream());
-                out.flush();
+                    System.out.print("Enter Server PORT (The default PORT is 8080):");
+                    String serverPort = input.readLine();
+                    if(serverPort.trim().length() == 0 || "\n".equals(serverPort)) {
+                        serverPort = String.valueOf(ConstantUtils.INDEX_SERVER_PORT);
+                    }
 
-                in = new ObjectInputStream(peerClientSocket.getInputStream());
-                indexServerResponse = (IndexResponse) in.readObject();
+                    try {
+                        indexClient = new IndexClient(serverAddress, Integer.parseInt(serverPort));
+                    } catch (IOException e) {
+                        System.out.println("Connection failure.Address: "+serverAddress+",Port:"+serverPort);
+                        System.exit(0);
+                    }
 
-                if(!indexServerResponse.isSuc()){
-                    System.out.println("Connection failure.Address: "+serverAddress+",Port:"+serverPort);
-                    System.exit(0);
+                    System.out.println("The PEER has established a connection with server "+serverAddress+":"+serverPort+" .");
                 }
 
-                System.out.println("The PEER has established a connection with server "+serverAddress+":"+serverPort+" .");
-
                 while (true) {
                     //Show the user different choices
                     System.out.println("\nPlease follow the prompts below to make your selection and enter the number!");
@@ -105,6 +146,8 @@ public class PeerServer {
                     System.out.println("2.Search the index and return all the matching.");
                     System.out.println("3.Unregister all files for this peer from the index server.");
                     System.out.println("4.Exit.");
+                    System.out.println("5.Search the index for several files at once.");
+                    System.out.println("6.Search file names by pattern, such as text_mb_*, *report* or *.bin.");
                     System.out.print("Only accepts numeric input:");
                     int option;
                     try {
@@ -128,18 +171,16 @@ public class PeerServer {
 
                             if (directoryEntity!=null && directoryEntity.getFileNames()!=null && directoryEntity.getFileNames().size()>0) {
 
-                                indexRequest = new IndexRequest();
-                                indexRequest.setRequestType(RequestTypeEnum.REGISTER.getCode());
-                                indexRequest.setIndexRegister(new IndexRequest.IndexRegister());
-                                indexRequest.getIndexRegister().setPeerId(this.peerId);
-                                indexRequest.getIndexRegister().setFiles((ArrayList<String>) directoryEntity.getFileNames());
-                                indexRequest.getIndexRegister().setFilePath(directoryEntity.getFileDirectory());
-                                out.writeObject(indexRequest);
-
-                                indexServerResponse = (IndexResponse) in.readObject();
+                                indexServerResponse = registerDirectory(indexClient, directoryEntity);
 
                                 if (indexServerResponse.isSuc()) {
-                                    System.out.println(directoryEntity.getFileNames().size() + " files registered with indexing server. ");
+                                    System.out.println(directoryEntity.getFileNames().size() + " files registered with indexing server ("
+                                            + indexServerResponse.getData().getRegisteredCount() + " new, "
+                                            + indexServerResponse.getData().getDuplicateCount() + " already registered). ");
+                                    if (!registeredDirectories.contains(filePath)) {
+                                        registeredDirectories.add(filePath);
+                                    }
+                                    startHeartbeat(indexClient, indexServerResponse.getData().getLeaseMillis());
                                 } else {
                                     System.err.println("Unable to register files with server. Please try again later.");
                                 }
@@ -159,9 +200,9 @@ public class PeerServer {
                             indexRequest.setRequestType(RequestTypeEnum.LOOKUP.getCode());
                             indexRequest.setIndexSearch(new IndexRequest.IndexSearch());
                             indexRequest.getIndexSearch().setFileName(fileName);
+                            indexRequest.getIndexSearch().setLimit(ConstantUtils.LOOKUP_PAGE_SIZE);
 
-                            out.writeObject(indexRequest);
-                            indexServerResponse = (IndexResponse) in.readObject();
+                            indexServerResponse = indexClient.call(indexRequest);
 
                             String downloadFileLocation =null;
                             if (indexServerResponse.isSuc()) {
@@ -179,6 +220,10 @@ public class PeerServer {
                                             firstItem = entry.getValue();
                                         }
                                     }
+                                    Integer holderCount = indexServerResponse.getData().getHolderCount();
+                                    if(holderCount!=null && holderCount>lookupMap.size()){
+                                        System.out.println("\n"+holderCount+" peers hold the file, the first "+lookupMap.size()+" are listed.");
+                                    }
                                 }else{
                                     System.err.println("File retrieval failed, failure message: The host list is empty" );
                                     break;
@@ -212,9 +257,9 @@ public class PeerServer {
 
                                     if (download.equalsIgnoreCase("D")) {
                                         System.out.println("The download file you select will be downloaded to the 'downloads' folder.");
-                                        downloadFileLocation=downloadFile(fileHostAddress, fileHostPort, serverFilePath+fileName,fileName);
+                                        downloadFileLocation=downloadFile(indexClient, firstItem, fileHostAddress, fileHostPort, serverFilePath+fileName,fileName);
                                     } else if (download.equalsIgnoreCase("P")) {
-                                        downloadFileLocation =downloadFile(fileHostAddress, fileHostPort, serverFilePath+fileName,fileName);
+                                        downloadFileLocation =downloadFile(indexClient, firstItem, fileHostAddress, fileHostPort, serverFilePath+fileName,fileName);
                                         FileUtils.readAndOutputFile(downloadFileLocation);
                                     }
                                 } else {
@@ -240,7 +285,7 @@ public class PeerServer {
                                             break;
                                         }
 
-                                        downloadFileLocation = downloadFile(fileHostAddress, fileHostPort, serverFilePath+fileName, fileName);
+                                        downloadFileLocation = downloadFile(indexClient, firstItem, fileHostAddress, fileHostPort, serverFilePath+fileName, fileName);
                                     }
                                 }
                                 System.out.println("All operations completed, download file location: "+downloadFileLocation);
@@ -262,10 +307,10 @@ public class PeerServer {
                                 indexRequest.setRequestType(RequestTypeEnum.UNREGISTER.getCode());
                                 indexRequest.setIndexRegister(new IndexRequest.IndexRegister());
                                 indexRequest.getIndexRegister().setPeerId(this.peerId);
-                                out.writeObject(indexRequest);
                                 //Read result
-                                indexServerResponse = (IndexResponse) in.readObject();
+                                indexServerResponse = indexClient.call(indexRequest);
                                 if(indexServerResponse.isSuc()){
+                                    registeredDirectories.clear();
                                     System.out.println("unregister successful...");
                                 }else{
                                     System.out.println("unregister failure. message: "+indexServerResponse.getMessage());
@@ -276,11 +321,93 @@ public class PeerServer {
 
                         // Process exit logic
                         case 4:
-                            indexRequest = new IndexRequest();
-                            indexRequest.setRequestType(RequestTypeEnum.DISCONNECT.getCode());
-                            out.writeObject(indexRequest);
+                            if (heartbeatScheduler != null) {
+                                heartbeatScheduler.shutdownNow();
+                            }
+                            indexClient.close();
+                            indexClient = null;
                             System.out.println("System exit complete.");
                             return ;
+                        // Query several files in one round trip
+                        case 5:
+                            System.out.println("\nEnter the file names separated by ',' or a pattern and range such as text_kb_%d.txt 1 100:");
+                            String names = input.readLine().trim();
+                            indexRequest = new IndexRequest();
+                            indexRequest.setRequestType(RequestTypeEnum.MULTI_LOOKUP.getCode());
+                            indexRequest.setIndexSearch(new IndexRequest.IndexSearch());
+                            String[] patternAndRange = names.split("\\s+");
+                            if (patternAndRange.length == 3 && patternAndRange[0].contains("%d")) {
+                                try {
+                                    indexRequest.getIndexSearch().setNamePattern(patternAndRange[0]);
+                                    indexRequest.getIndexSearch().setRangeStart(Integer.parseInt(patternAndRange[1]));
+                                    indexRequest.getIndexSearch().setRangeEnd(Integer.parseInt(patternAndRange[2]));
+                                } catch (NumberFormatException e) {
+                                    System.out.println("Invalid range, please try again.");
+                                    break;
+                                }
+                            } else {
+                                ArrayList<String> fileNames = new ArrayList<>();
+                                for (String name : names.split(",")) {
+                                    if (name.trim().length() > 0) {
+                                        fileNames.add(name.trim());
+                                    }
+                                }
+                                indexRequest.getIndexSearch().setFileNames(fileNames);
+                            }
+                            indexRequest.getIndexSearch().setLimit(ConstantUtils.LOOKUP_PAGE_SIZE);
+
+                            indexServerResponse = indexClient.call(indexRequest);
+                            if (indexServerResponse.isSuc()) {
+                                HashMap<String, HashMap<Integer, IndexResponse.LookupItem>> multiLookupMap = indexServerResponse.getData().getMultiLookupMapping();
+                                for (Map.Entry<String, HashMap<Integer, IndexResponse.LookupItem>> fileEntry : multiLookupMap.entrySet()) {
+                                    System.out.println("\nFile: " + fileEntry.getKey());
+                                    for (Map.Entry<Integer, IndexResponse.LookupItem> entry : fileEntry.getValue().entrySet()) {
+                                        IndexResponse.LookupItem lookupItem = entry.getValue();
+                                        System.out.println("Number: "+entry.getKey()+" , Peer ID:" + lookupItem.getPeerId() + ", Host Address:" + lookupItem.getFileServerAddress()+":"+lookupItem.getFileServerPort());
+                                    }
+                                }
+                                System.out.println("\n" + multiLookupMap.size() + " files found.");
+                                if (!multiLookupMap.isEmpty()) {
+                                    System.out.print("\nDo you want to download them all?(Y/N):");
+                                    if (input.readLine().trim().equalsIgnoreCase("Y")) {
+                                        System.out.println("The files will be downloaded to the 'downloads' folder.");
+                                        downloadFiles(indexClient, multiLookupMap);
+                                    }
+                                }
+                            } else {
+                                System.out.println("File retrieval failed, failure message:" + indexServerResponse.getMessage());
+                            }
+                            break;
+                        // Pattern search, one page at a time
+                        case 6:
+                            System.out.println("\nEnter the pattern, '*' matches any characters and '?' a single one:");
+                            String query = input.readLine().trim();
+                            String cursor = null;
+                            int found = 0;
+                            do {
+                                indexRequest = new IndexRequest();
+                                indexRequest.setRequestType(RequestTypeEnum.SEARCH.getCode());
+                                indexRequest.setIndexSearch(new IndexRequest.IndexSearch());
+                                indexRequest.getIndexSearch().setQuery(query);
+                                indexRequest.getIndexSearch().setCursor(cursor);
+                                indexRequest.getIndexSearch().setLimit(SEARCH_PAGE_SIZE);
+                                indexServerResponse = indexClient.call(indexRequest);
+                                if (!indexServerResponse.isSuc()) {
+                                    System.out.println("File search failed, failure message:" + indexServerResponse.getMessage());
+                                    break;
+                                }
+                                for (String matchedName : indexServerResponse.getData().getFiles()) {
+                                    HashMap<Integer, IndexResponse.LookupItem> holders = indexServerResponse.getData().getMultiLookupMapping().get(matchedName);
+                                    System.out.println("File: " + matchedName + " , held by " + holders.size() + " peer(s)");
+                                }
+                                found += indexServerResponse.getData().getFiles().size();
+                                cursor = indexServerResponse.getData().getNextCursor();
+                                if (cursor != null) {
+                                    System.out.print("More results available, show the next page? (y/n):");
+                                }
+                            } while (cursor != null && "y".equalsIgnoreCase(input.readLine().trim()));
+                            System.out.println("\n" + found + " files listed.");
+                            break;
                         default:
                             System.err.println("Incorrect selection, please try again!!!");
                             break;
@@ -290,14 +417,8 @@ public class PeerServer {
                 e.printStackTrace();
             } finally {
                 try {
-                    if (out != null){
-                        out.close();
-                    }
-                    if (in != null){
-                        in.close();
-                    }
-                    if (peerClientSocket != null){
-                        peerClientSocket.close();
+                    if (indexClient != null){
+                        indexClient.close();
                     }
                     if (input != null){
                         input.close();
@@ -309,10 +430,104 @@ public class PeerServer {
             }
         }
 
-        private String downloadFile(String fileHostAddress, Integer fileHostPort,String fileFullName,String fileName) throws Exception {
+        private IndexResponse registerDirectory(IndexService indexClient, FileUtils.DirectoryEntity directoryEntity) throws IOException {
+            if (directoryEntity.getFileNames().size() > ConstantUtils.REGISTER_CHUNK_SIZE) {
+                // Large directories are streamed in bounded chunks instead of one huge request
+                return indexClient.registerInChunks(this.peerId, directoryEntity.getFileDirectory(), directoryEntity.getFileNames());
+            }
+            IndexRequest indexRequest = new IndexRequest();
+            indexRequest.setRequestType(RequestTypeEnum.REGISTER.getCode());
+            indexRequest.setIndexRegister(new IndexRequest.IndexRegister());
+            indexRequest.getIndexRegister().setPeerId(this.peerId);
+            indexRequest.getIndexRegister().setFiles((ArrayList<String>) directoryEntity.getFileNames());
+            indexRequest.getIndexRegister().setFilePath(directoryEntity.getFileDirectory());
+            return indexClient.call(indexRequest);
+        }
 
-            FileReceiver fileReceiver = new FileReceiver();
-            return fileReceiver.receiveFile(fileFullName,fileName,fileHostAddress,fileHostPort,null);
+        /**
+         * Heartbeat three times per lease. A heartbeat the server rejects means the lease lapsed
+         * (or the server lost this peer), so the directories are registered again.
+         */
+        private synchronized void startHeartbeat(IndexService indexClient, Long leaseMillis) {
+            if (leaseMillis == null || heartbeatScheduler != null) {
+                return;
+            }
+            heartbeatScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "peer-heartbeat");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long interval = Math.max(1, leaseMillis / 3);
+            heartbeatScheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    if (registeredDirectories.isEmpty() || indexClient.heartbeat(this.peerId, fileServer==null ? null : fileServer.getActiveUploads()).isSuc()) {
+                        return;
+                    }
+                    for (String directory : registeredDirectories) {
+                        FileUtils.DirectoryEntity directoryEntity = FileUtils.listFilesInDirectoryOrFile(directory);
+                        if (directoryEntity != null && directoryEntity.getFileNames() != null && directoryEntity.getFileNames().size() > 0) {
+                            registerDirectory(indexClient, directoryEntity);
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("Heartbeat to the index server failed: " + e.getMessage());
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Download the files from the first holder listed for each, one batch GET per holder, and
+         * tell the index how each batch went.
+         */
+        private void downloadFiles(IndexService indexClient, Map<String, HashMap<Integer, IndexResponse.LookupItem>> multiLookupMap) {
+            Map<String, List<IndexResponse.LookupItem>> holders = new LinkedHashMap<>();
+            for (HashMap<Integer, IndexResponse.LookupItem> lookupMap : multiLookupMap.values()) {
+                if (lookupMap.isEmpty()) {
+                    continue;
+                }
+                IndexResponse.LookupItem firstItem = new TreeMap<>(lookupMap).firstEntry().getValue();
+                holders.computeIfAbsent(firstItem.getFileServerAddress() + ":" + firstItem.getFileServerPort(), k -> new ArrayList<>())
+                        .add(firstItem);
+            }
+            int downloaded = 0;
+            for (List<IndexResponse.LookupItem> lookupItems : holders.values()) {
+                IndexResponse.LookupItem holder = lookupItems.get(0);
+                List<String> fileFullNames = new ArrayList<>();
+                for (IndexResponse.LookupItem lookupItem : lookupItems) {
+                    fileFullNames.add(lookupItem.getFileLocalPath() + lookupItem.getFileLocalFileName());
+                }
+                try {
+                    long startTime = System.currentTimeMillis();
+                    FileReceiver.BatchResult batchResult = new FileReceiver(ConstantUtils.FILE_TRANSFER_TCP, connectionPool)
+                            .receiveFiles(fileFullNames, holder.getFileServerAddress(), holder.getFileServerPort(), null);
+                    indexClient.reportTransfer(holder, batchResult.getBytes(), System.currentTimeMillis() - startTime);
+                    downloaded += batchResult.getDownloaded().size();
+                    for (String fileFullName : batchResult.getMissing()) {
+                        System.err.println("The peer " + holder.getPeerId() + " no longer has " + fileFullName);
+                    }
+                    for (String fileFullName : batchResult.getFailed()) {
+                        System.err.println("Downloading " + fileFullName + " from the peer " + holder.getPeerId() + " failed");
+                    }
+                } catch (IOException e) {
+                    System.err.println("Downloading from the peer " + holder.getPeerId() + " failed: " + e.getMessage());
+                }
+            }
+            System.out.println(downloaded + " of " + multiLookupMap.size() + " files downloaded from " + holders.size() + " peers.");
+        }
+
+        /**
+         * Download the file from the holder and tell the index how it went.
+         */
+        private String downloadFile(IndexService indexClient, IndexResponse.LookupItem holder, String fileHostAddress, Integer fileHostPort,
+                                    String fileFullName, String fileName) throws Exception {
+
+            FileReceiver fileReceiver = new FileReceiver(ConstantUtils.FILE_TRANSFER_TCP, connectionPool);
+            long startTime = System.currentTimeMillis();
+            String downloadFileLocation = fileReceiver.receiveFile(fileFullName,fileName,fileHostAddress,fileHostPort,null);
+            if (downloadFileLocation != null) {
+                indexClient.reportTransfer(holder, new File(downloadFileLocation).length(), System.currentTimeMillis() - startTime);
+            }
+            return downloadFileLocation;
         }
 
     }
@@ -0,0 +1,105 @@
+import java.util.Arrays;
+
+/**
+ * Holders of one file name: (peer id, path id) postings packed into one long each.
+ * Both ids come from the index server's symbol tables, so lookup never has to scan
+ * the file lists of a peer to find where the file lives.
+ * <p>
+ * Instances are immutable. Writers build a new list and swap it into the index store,
+ * so a reader that fetched a list always sees a complete snapshot without locking.
+ */
+public final class PostingList {
+
+    public static final PostingList EMPTY = new PostingList(new long[0]);
+
+    /** peer id in the high, path id in the low 32 bits **/
+    private final long[] postings;
+
+    private PostingList(long[] postings) {
+        this.postings = postings;
+    }
+
+    /**
+     * Wrap postings read back from a store; the array must not be changed afterwards.
+     */
+    static PostingList of(long[] postings) {
+        return postings.length == 0 ? EMPTY : new PostingList(postings);
+    }
+
+    /**
+     * @return a list that also holds (peer, path), or this list if it already does
+     */
+    public PostingList with(int peerId, int pathId) {
+        long posting = ((long) peerId << 32) | (pathId & 0xFFFFFFFFL);
+        int size = postings.length;
+        for (int i = 0; i < size; i++) {
+            if (postings[i] == posting) {
+                return this;
+            }
+        }
+        long[] newPostings = Arrays.copyOf(postings, size + 1);
+        newPostings[size] = posting;
+        return new PostingList(newPostings);
+    }
+
+    /**
+     * @return a list without any posting of the peer, EMPTY when nothing is left
+     */
+    public PostingList withoutPeer(int peerId) {
+        int size = postings.length;
+        long[] newPostings = new long[size];
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (getPeerId(i) != peerId) {
+                newPostings[kept++] = postings[i];
+            }
+        }
+        if (kept == size) {
+            return this;
+        }
+        if (kept == 0) {
+            return EMPTY;
+        }
+        return new PostingList(Arrays.copyOf(newPostings, kept));
+    }
+
+    /**
+     * @return a list without (peer, path), EMPTY when nothing is left
+     */
+    public PostingList without(int peerId, int pathId) {
+        long posting = ((long) peerId << 32) | (pathId & 0xFFFFFFFFL);
+        int size = postings.length;
+        for (int i = 0; i < size; i++) {
+            if (postings[i] == posting) {
+                if (size == 1) {
+                    return EMPTY;
+                }
+                long[] newPostings = new long[size - 1];
+                System.arraycopy(postings, 0, newPostings, 0, i);
+                System.arraycopy(postings, i + 1, newPostings, i, size - i - 1);
+                return new PostingList(newPostings);
+            }
+        }
+        return this;
+    }
+
+    public int size() {
+        return postings.length;
+    }
+
+    public boolean isEmpty() {
+        return postings.length == 0;
+    }
+
+    long getPosting(int index) {
+        return postings[index];
+    }
+
+    public int getPeerId(int index) {
+        return (int) (postings[index] >>> 32);
+    }
+
+    public int getPathId(int index) {
+        return (int) postings[index];
+    }
+}
@@ -0,0 +1,71 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.UnaryOperator;
+
+/**
+ * Inverted index by name id: slot i holds the PostingList of the file name with symbol id i.
+ * Slots live in fixed size chunks that are added as ids are handed out, so growing never copies
+ * a posting. Every update is a compare-and-set on one slot: writers of different names never
+ * contend and readers never lock.
+ */
+public final class PostingTable {
+
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    private volatile AtomicReferenceArray<PostingList>[] chunks = newDirectory(16);
+
+    /**
+     * @return the postings of the name, or null when no peer holds it
+     */
+    public PostingList get(int nameId) {
+        AtomicReferenceArray<PostingList>[] directory = chunks;
+        int chunkIndex = nameId >>> CHUNK_BITS;
+        if (chunkIndex >= directory.length || directory[chunkIndex] == null) {
+            return null;
+        }
+        return directory[chunkIndex].get(nameId & (CHUNK_SIZE - 1));
+    }
+
+    /**
+     * Replace the postings of the name with the function's result, like ConcurrentMap.compute.
+     * The function gets null for an absent name and returns null to clear the slot; it may run more than once.
+     * @return the new postings
+     */
+    public PostingList compute(int nameId, UnaryOperator<PostingList> remapping) {
+        AtomicReferenceArray<PostingList> chunk = chunk(nameId >>> CHUNK_BITS);
+        int index = nameId & (CHUNK_SIZE - 1);
+        while (true) {
+            PostingList current = chunk.get(index);
+            PostingList next = remapping.apply(current);
+            if (next == current || chunk.compareAndSet(index, current, next)) {
+                return next;
+            }
+        }
+    }
+
+    private AtomicReferenceArray<PostingList> chunk(int chunkIndex) {
+        AtomicReferenceArray<PostingList>[] directory = chunks;
+        if (chunkIndex < directory.length && directory[chunkIndex] != null) {
+            return directory[chunkIndex];
+        }
+        synchronized (this) {
+            directory = chunks;
+            if (chunkIndex >= directory.length) {
+                directory = Arrays.copyOf(directory, Math.max(chunkIndex + 1, directory.length * 2));
+            } else if (directory[chunkIndex] != null) {
+                return directory[chunkIndex];
+            } else {
+                directory = directory.clone();
+            }
+            directory[chunkIndex] = new AtomicReferenceArray<>(CHUNK_SIZE);
+            chunks = directory;
+            return directory[chunkIndex];
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static AtomicReferenceArray<PostingList>[] newDirectory(int length) {
+        return (AtomicReferenceArray<PostingList>[]) new AtomicReferenceArray[length];
+    }
+}
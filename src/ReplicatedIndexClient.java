@@ -0,0 +1,134 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client of a primary index server and its read-only replicas. Writes go to the primary;
+ * LOOKUP, MULTI_LOOKUP and SEARCH go round robin to the replicas, and back to the primary
+ * when a replica refuses them (too far behind) or cannot be reached.
+ * <p>
+ * With read-your-writes every read carries the primary sequence of this client's last write,
+ * so a replica only answers once it holds that write.
+ */
+public class ReplicatedIndexClient implements IndexService {
+
+    private final IndexClient primary;
+    private final List<IndexClient> replicas = new ArrayList<>();
+    private final boolean readYourWrites;
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    /** primary sequence covering the last write of this client, 0 before the first **/
+    private final AtomicLong lastWriteSequence = new AtomicLong();
+
+    /**
+     * @param primary "host:port" of the primary
+     * @param replicaList "host:port,host:port,..." of its replicas
+     */
+    public ReplicatedIndexClient(String primary, String replicaList, boolean binary, boolean readYourWrites) throws IOException {
+        this.readYourWrites = readYourWrites;
+        this.primary = new IndexClient(HashRing.hostOf(primary.trim()), HashRing.portOf(primary.trim()), binary);
+        try {
+            for (String replica : replicaList.split(",")) {
+                if (!replica.trim().isEmpty()) {
+                    replicas.add(new IndexClient(HashRing.hostOf(replica.trim()), HashRing.portOf(replica.trim()), binary));
+                }
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public CompletableFuture<IndexResponse> sendAsync(IndexRequest request) {
+        switch (RequestTypeEnum.getEnumByCode(request.getRequestType())) {
+            case LOOKUP:
+            case MULTI_LOOKUP:
+            case SEARCH:
+                return read(request);
+            default:
+                return primary.sendAsync(request).thenApply(this::trackWrite);
+        }
+    }
+
+    @Override
+    public IndexResponse call(IndexRequest request) throws IOException {
+        return await(sendAsync(request));
+    }
+
+    @Override
+    public IndexResponse heartbeat(String peerId, Integer activeUploads) throws IOException {
+        return primary.heartbeat(peerId, activeUploads);
+    }
+
+    @Override
+    public IndexResponse registerInChunks(String peerId, String filePath, List<String> files) throws IOException {
+        return trackWrite(primary.registerInChunks(peerId, filePath, files));
+    }
+
+    private CompletableFuture<IndexResponse> read(IndexRequest request) {
+        if (replicas.isEmpty() || request.getIndexSearch() == null) {
+            return primary.sendAsync(request);
+        }
+        long minSequence = lastWriteSequence.get();
+        if (readYourWrites && minSequence > 0) {
+            request.getIndexSearch().setMinSequence(minSequence);
+        }
+        IndexClient replica = replicas.get(Math.floorMod(nextReplica.getAndIncrement(), replicas.size()));
+        return replica.sendAsync(request).handle((indexResponse, e) -> {
+            if (e == null && (indexResponse.isSuc() || indexResponse.getMessage() == null
+                    || !indexResponse.getMessage().startsWith(ConstantUtils.REPLICA_UNAVAILABLE))) {
+                return CompletableFuture.completedFuture(indexResponse);
+            }
+            // the primary is never behind, it answers without waiting
+            request.getIndexSearch().setMinSequence(null);
+            return primary.sendAsync(request);
+        }).thenCompose(future -> future);
+    }
+
+    private IndexResponse trackWrite(IndexResponse indexResponse) {
+        if (indexResponse.isSuc() && indexResponse.getData() != null && indexResponse.getData().getSequence() != null) {
+            lastWriteSequence.accumulateAndGet(indexResponse.getData().getSequence(), Math::max);
+        }
+        return indexResponse;
+    }
+
+    private static IndexResponse await(CompletableFuture<IndexResponse> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the index servers");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        List<IndexClient> clients = new ArrayList<>(replicas);
+        if (primary != null) {
+            clients.add(primary);
+        }
+        for (IndexClient indexClient : clients) {
+            try {
+                indexClient.close();
+            } catch (IOException e) {
+                failure = failure == null ? e : failure;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Replica side of replication: applies the primary's mutation stream to the local index on one
+ * thread, reconnecting and resuming from the last applied sequence when the connection drops.
+ * <p>
+ * Staleness is measured from the POSITION records: once one is applied the replica held everything
+ * the primary had when it sent it, so the replica is at most (now - that moment) behind.
+ * Reads are refused beyond maxLagMillis, and while a dump is being applied.
+ */
+public class ReplicationFollower {
+
+    private static final Logger LOGGER = Logger.getLogger(ReplicationFollower.class.getName());
+
+    /**
+     * The index the stream is applied to.
+     */
+    public interface Target {
+        /** drop the whole index, a dump of the primary's follows **/
+        void reset() throws IOException;
+
+        void apply(IndexWal.Record record) throws IOException;
+
+        /** a batch is applied up to a POSITION record **/
+        void caughtUp();
+    }
+
+    private final String primaryHost;
+    private final int primaryPort;
+    private final long maxLagMillis;
+    private final Target target;
+
+    // guarded by this
+    private long epoch;
+    private long appliedSequence = -1;
+    private long caughtUpTime;
+    private boolean resyncing = true;
+
+    public ReplicationFollower(String primaryHost, int primaryPort, long maxLagMillis, Target target) {
+        this.primaryHost = primaryHost;
+        this.primaryPort = primaryPort;
+        this.maxLagMillis = maxLagMillis;
+        this.target = target;
+    }
+
+    public void start() {
+        Thread thread = new Thread(() -> {
+            while (true) {
+                try {
+                    follow();
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.warning("Replication from " + primaryHost + ":" + primaryPort + " interrupted,msg:" + e.getMessage());
+                }
+                try {
+                    TimeUnit.MILLISECONDS.sleep(ConstantUtils.REPLICA_RECONNECT_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "replication-follower");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void follow() throws IOException {
+        try (Socket socket = new Socket(primaryHost, primaryPort)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            if (in.readInt() != ReplicationSource.MAGIC) {
+                throw new IOException("Not a replication port: " + primaryHost + ":" + primaryPort);
+            }
+            long primaryEpoch = in.readLong();
+            synchronized (this) {
+                // sequences of another primary run say nothing about what this replica holds
+                out.writeLong(primaryEpoch == epoch ? appliedSequence : -1);
+            }
+            out.flush();
+            LOGGER.info("Replicating from " + primaryHost + ":" + primaryPort);
+
+            while (true) {
+                IndexWal.Record record = IndexWal.decodeRecord(IndexCodec.readFrame(in));
+                if (record.getType() == ReplicationSource.RESET) {
+                    synchronized (this) {
+                        resyncing = true;
+                        epoch = primaryEpoch;
+                        appliedSequence = -1;
+                    }
+                    LOGGER.info("Replica reset, applying the primary's index up to sequence " + record.getSequence());
+                    target.reset();
+                } else if (record.getType() == ReplicationSource.POSITION) {
+                    target.caughtUp();
+                    synchronized (this) {
+                        resyncing = false;
+                        appliedSequence = Math.max(appliedSequence, record.getSequence());
+                        caughtUpTime = System.currentTimeMillis();
+                        notifyAll();
+                    }
+                } else {
+                    target.apply(record);
+                    if (record.getSequence() > 0) {
+                        synchronized (this) {
+                            appliedSequence = Math.max(appliedSequence, record.getSequence());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    public synchronized long getAppliedSequence() {
+        return appliedSequence;
+    }
+
+    /**
+     * @return how far behind the primary the replica may be, -1 while it holds no complete copy
+     */
+    public synchronized long getLagMillis() {
+        if (resyncing || caughtUpTime == 0) {
+            return -1;
+        }
+        return System.currentTimeMillis() - caughtUpTime;
+    }
+
+    /**
+     * Whether a read may be answered: the replica is within its lag bound and, for read-your-writes,
+     * has applied minSequence, waiting up to waitMillis for it.
+     */
+    public synchronized boolean awaitReadable(Long minSequence, long waitMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + waitMillis;
+        while (minSequence != null && appliedSequence < minSequence) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        long lag = getLagMillis();
+        return lag >= 0 && lag <= maxLagMillis;
+    }
+}
@@ -0,0 +1,190 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Primary side of replication: numbers every mutation, keeps the latest ones in a ring
+ * and streams them to the replicas connected on the replication port.
+ * <p>
+ * The stream is made of IndexWal records. A replica names the last sequence it applied; when that
+ * is still in the ring it gets the records after it, otherwise (a new replica, a primary restart,
+ * a replica that fell too far behind) it gets RESET, a dump of the whole index and then the
+ * records after the dump. After each batch the primary sends POSITION, its last sequence at the
+ * time the batch was taken, so the replica knows how current it is even when nothing changes.
+ */
+public class ReplicationSource {
+
+    private static final Logger LOGGER = Logger.getLogger(ReplicationSource.class.getName());
+
+    /** "PA1R", first thing the primary sends on a replication connection **/
+    public static final int MAGIC = 0x50413152;
+    /** control records of the stream, next to the mutation types of IndexWal **/
+    public static final byte RESET = 100;
+    public static final byte POSITION = 101;
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    /** tells replicas whether their sequence numbers still refer to this primary's history **/
+    private final long epoch = System.nanoTime() ^ System.currentTimeMillis() << 20;
+    private final IndexWal.StateDump stateDump;
+    private final IndexWal.Record[] backlog;
+    /** first sequence of this run, earlier ones are only known from a dump **/
+    private final long firstSequence;
+
+    // guarded by this
+    private long lastSequence;
+    private int replicaCount;
+
+    /**
+     * @param lastSequence the sequence the index is at, the write-ahead log's when there is one
+     * @param backlogSize mutations kept for replicas to catch up from
+     */
+    public ReplicationSource(IndexWal.StateDump stateDump, long lastSequence, int backlogSize) {
+        this.stateDump = stateDump;
+        this.backlog = new IndexWal.Record[backlogSize];
+        this.lastSequence = lastSequence;
+        this.firstSequence = lastSequence + 1;
+    }
+
+    /**
+     * Number and log one mutation, then hand it to the replicas. Callers hold the lock of the peer
+     * they changed, like for IndexWal, so the stream keeps each peer's order of mutations.
+     * @param indexWal also appended to, under the same lock, so both agree on the sequence; may be null
+     * @return the sequence of the mutation
+     */
+    public synchronized long publish(byte type, String peerId, String peerAddress, String filePath, List<String> files,
+                                     IndexWal indexWal) throws IOException {
+        long sequence = indexWal != null ? indexWal.append(type, peerId, peerAddress, filePath, files) : lastSequence + 1;
+        backlog[(int) (sequence % backlog.length)] = new IndexWal.Record(type, sequence, peerId, peerAddress, filePath, files);
+        lastSequence = sequence;
+        notifyAll();
+        return sequence;
+    }
+
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    public synchronized int getReplicaCount() {
+        return replicaCount;
+    }
+
+    /**
+     * Accept replicas on a daemon thread, each one served by a sender thread of its own.
+     */
+    public void start(int port) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port);
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    Thread sender = new Thread(() -> serve(socket), "replication-sender");
+                    sender.setDaemon(true);
+                    sender.start();
+                } catch (IOException e) {
+                    LOGGER.severe("replication accept error,msg:" + e.getMessage());
+                }
+            }
+        }, "replication-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        LOGGER.info("Replication started, replicas connect on port " + port);
+    }
+
+    private void serve(Socket socket) {
+        String replica = socket.getRemoteSocketAddress().toString();
+        synchronized (this) {
+            replicaCount++;
+        }
+        try {
+            socket.setTcpNoDelay(true);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_SIZE));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out.writeInt(MAGIC);
+            out.writeLong(epoch);
+            out.flush();
+            long applied = in.readLong();
+
+            long next;
+            synchronized (this) {
+                // the replica may resume when every record after its sequence is still in the ring
+                next = applied >= 0 && applied <= lastSequence && applied + 1 >= oldestInBacklog() ? applied + 1 : -1;
+            }
+            LOGGER.info("Replica " + replica + " connected at sequence " + applied + (next < 0 ? ", sending the whole index" : ", resuming")
+                    + ", " + getReplicaCount() + " replicas");
+            List<IndexWal.Record> batch = new ArrayList<>();
+            while (true) {
+                if (next < 0) {
+                    next = sendState(out) + 1;
+                }
+                long position;
+                synchronized (this) {
+                    if (lastSequence < next) {
+                        wait(ConstantUtils.REPLICATION_POSITION_INTERVAL_MILLIS);
+                    }
+                    if (next <= lastSequence && next < oldestInBacklog()) {
+                        LOGGER.warning("Replica " + replica + " fell more than " + backlog.length + " mutations behind, sending the whole index");
+                        next = -1;
+                        continue;
+                    }
+                    for (long sequence = next; sequence <= lastSequence; sequence++) {
+                        batch.add(backlog[(int) (sequence % backlog.length)]);
+                    }
+                    position = lastSequence;
+                }
+                for (IndexWal.Record record : batch) {
+                    writeRecord(out, record);
+                }
+                batch.clear();
+                writeRecord(out, new IndexWal.Record(POSITION, position, null, null, null, null));
+                out.flush();
+                next = position + 1;
+            }
+        } catch (IOException e) {
+            LOGGER.info("Replica " + replica + " disconnected,msg:" + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (this) {
+                replicaCount--;
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOGGER.info("Couldn't close a replication socket.");
+            }
+        }
+    }
+
+    /**
+     * Send RESET, the whole index and the position the dump covers. Mutations made while the
+     * dump is written may be in it already; replaying them afterwards changes nothing.
+     * @return the sequence the dump covers
+     */
+    private long sendState(DataOutputStream out) throws IOException {
+        long sequence = getLastSequence();
+        writeRecord(out, new IndexWal.Record(RESET, sequence, null, null, null, null));
+        stateDump.writeTo(record -> writeRecord(out, record));
+        writeRecord(out, new IndexWal.Record(POSITION, sequence, null, null, null, null));
+        out.flush();
+        return sequence;
+    }
+
+    // guarded by this
+    private long oldestInBacklog() {
+        return Math.max(firstSequence, lastSequence - backlog.length + 1);
+    }
+
+    static void writeRecord(DataOutputStream out, IndexWal.Record record) throws IOException {
+        byte[] payload = IndexWal.encodeRecord(record);
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+}
@@ -3,6 +3,18 @@ public enum RequestTypeEnum {
     UNREGISTER(2),
     LOOKUP(3),
     DISCONNECT(4),
+    MULTI_LOOKUP(5),
+    REGISTER_BEGIN(6),
+    REGISTER_CHUNK(7),
+    REGISTER_COMMIT(8),
+    SEARCH(9),
+    HEARTBEAT(10),
+    SHARD_EXPORT(11),
+    SHARD_IMPORT(12),
+    SHARD_REMOVE(13),
+    REPLICATION_STATUS(14),
+    STATS(15),
+    TRANSFER_REPORT(16),
     ;
 
     private final int code;
@@ -0,0 +1,136 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Moves index entries between shards after the shard list changed, e.g. when a shard was added.
+ * Every current shard is read page by page with SHARD_EXPORT; the names the new ring assigns to
+ * another shard are registered there with SHARD_IMPORT, on behalf of the peers holding them.
+ * <p>
+ * Adding a shard takes three steps, so lookups keep finding every file:
+ * <ol>
+ *     <li>start the new shard and run "copy": the new owners learn their names, the old ones keep them</li>
+ *     <li>give the peers the new shard list, lookups now go to the new owners</li>
+ *     <li>run "move": whatever was registered meanwhile is copied too, then the old owners drop the names</li>
+ * </ol>
+ * Imported peers get a fresh lease on their new shard; peers renew it once they heartbeat with the new list.
+ * Every shard refuses the imports and removes unless it runs with index.shard.admin.enabled=true and lists
+ * the rebalancer's address in index.shard.admin.addresses.
+ * <p>
+ * Usage: java ShardRebalancer &lt;current shards&gt; &lt;new shards&gt; [copy|move]
+ * with shard lists such as 127.0.0.1:8080,127.0.0.1:8081
+ */
+public class ShardRebalancer {
+
+    private static final int EXPORT_PAGE_SIZE = 1000;
+
+    private final HashRing newRing;
+    private final boolean move;
+    private final Map<String, IndexClient> clients = new HashMap<>();
+
+    public ShardRebalancer(HashRing newRing, boolean move) {
+        this.newRing = newRing;
+        this.move = move;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: java ShardRebalancer <current shards> <new shards> [copy|move]");
+            return;
+        }
+        HashRing currentRing = HashRing.parse(args[0]);
+        boolean move = args.length > 2 && "move".equalsIgnoreCase(args[2]);
+        ShardRebalancer rebalancer = new ShardRebalancer(HashRing.parse(args[1]), move);
+        long start = System.currentTimeMillis();
+        try {
+            for (String shard : currentRing.getShards()) {
+                rebalancer.rebalance(shard);
+            }
+        } finally {
+            rebalancer.close();
+        }
+        System.out.println("Rebalance (" + (move ? "move" : "copy") + ") done in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Copy the names of one shard that the new ring assigns elsewhere, and in move mode drop them from it.
+     */
+    public void rebalance(String shard) throws IOException {
+        int scanned = 0;
+        int moved = 0;
+        String cursor = null;
+        do {
+            IndexRequest indexRequest = new IndexRequest();
+            indexRequest.setRequestType(RequestTypeEnum.SHARD_EXPORT.getCode());
+            indexRequest.setIndexSearch(new IndexRequest.IndexSearch());
+            indexRequest.getIndexSearch().setLimit(EXPORT_PAGE_SIZE);
+            indexRequest.getIndexSearch().setCursor(cursor);
+            IndexResponse page = check(client(shard).call(indexRequest), "export from " + shard);
+
+            // new owner -> (peer id, peer address, path) -> names
+            Map<String, Map<List<String>, ArrayList<String>>> imports = new LinkedHashMap<>();
+            ArrayList<String> movedNames = new ArrayList<>();
+            for (String fileName : page.getData().getFiles()) {
+                scanned++;
+                String owner = newRing.shardFor(fileName);
+                if (owner.equals(shard)) {
+                    continue;
+                }
+                movedNames.add(fileName);
+                for (IndexResponse.LookupItem holder : page.getData().getMultiLookupMapping().get(fileName).values()) {
+                    List<String> key = List.of(holder.getPeerId(), holder.getFileServerAddress(), holder.getFileLocalPath());
+                    imports.computeIfAbsent(owner, k -> new LinkedHashMap<>()).computeIfAbsent(key, k -> new ArrayList<>()).add(fileName);
+                }
+            }
+            for (Map.Entry<String, Map<List<String>, ArrayList<String>>> owner : imports.entrySet()) {
+                for (Map.Entry<List<String>, ArrayList<String>> files : owner.getValue().entrySet()) {
+                    indexRequest = new IndexRequest();
+                    indexRequest.setRequestType(RequestTypeEnum.SHARD_IMPORT.getCode());
+                    indexRequest.setIndexRegister(new IndexRequest.IndexRegister());
+                    indexRequest.getIndexRegister().setPeerId(files.getKey().get(0));
+                    indexRequest.getIndexRegister().setPeerAddress(files.getKey().get(1));
+                    indexRequest.getIndexRegister().setFilePath(files.getKey().get(2));
+                    indexRequest.getIndexRegister().setFiles(files.getValue());
+                    check(client(owner.getKey()).call(indexRequest), "import into " + owner.getKey());
+                }
+            }
+            if (move && !movedNames.isEmpty()) {
+                // only once the new owners have them, a lookup never finds a name on neither shard
+                indexRequest = new IndexRequest();
+                indexRequest.setRequestType(RequestTypeEnum.SHARD_REMOVE.getCode());
+                indexRequest.setIndexSearch(new IndexRequest.IndexSearch());
+                indexRequest.getIndexSearch().setFileNames(movedNames);
+                check(client(shard).call(indexRequest), "remove from " + shard);
+            }
+            moved += movedNames.size();
+            cursor = page.getData().getNextCursor();
+        } while (cursor != null);
+        System.out.println("Shard " + shard + ": " + scanned + " names, " + moved + " belong to another shard"
+                + (move ? " and were moved" : " and were copied"));
+    }
+
+    private IndexClient client(String shard) throws IOException {
+        IndexClient indexClient = clients.get(shard);
+        if (indexClient == null) {
+            indexClient = new IndexClient(HashRing.hostOf(shard), HashRing.portOf(shard));
+            clients.put(shard, indexClient);
+        }
+        return indexClient;
+    }
+
+    private static IndexResponse check(IndexResponse indexResponse, String step) throws IOException {
+        if (!indexResponse.isSuc()) {
+            throw new IOException("Shard " + step + " failed, message:" + indexResponse.getMessage());
+        }
+        return indexResponse;
+    }
+
+    public void close() throws IOException {
+        for (IndexClient indexClient : clients.values()) {
+            indexClient.close();
+        }
+    }
+}
@@ -0,0 +1,329 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Client of an index whose namespace is partitioned over several IndexServer processes.
+ * Every file name belongs to the shard the HashRing maps it to: registrations are split by
+ * owner, a lookup goes straight to its owner and a multi lookup fans out to the owners of its names.
+ * Unregister, heartbeat and transfer reports concern the peer rather than a name, so they go to every shard.
+ * <p>
+ * Each shard keeps its own connection; requests to different shards are in flight at the same time.
+ */
+public class ShardedIndexClient implements IndexService {
+
+    private final HashRing ring;
+    /** one connection per shard, in the order of the shard list **/
+    private final Map<String, IndexClient> shardClients = new LinkedHashMap<>();
+    /** shards this client registered files with, the ones whose heartbeat rejection means registering again **/
+    private final Set<String> registeredShards = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param shardList "host:port,host:port,...", the same list on every peer
+     */
+    public ShardedIndexClient(String shardList, boolean binary) throws IOException {
+        this.ring = HashRing.parse(shardList);
+        try {
+            for (String shard : ring.getShards()) {
+                shardClients.put(shard, new IndexClient(HashRing.hostOf(shard), HashRing.portOf(shard), binary));
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public HashRing getRing() {
+        return ring;
+    }
+
+    @Override
+    public CompletableFuture<IndexResponse> sendAsync(IndexRequest request) {
+        switch (RequestTypeEnum.getEnumByCode(request.getRequestType())) {
+            case LOOKUP:
+                if (request.getIndexSearch() == null || request.getIndexSearch().getFileName() == null) {
+                    return CompletableFuture.completedFuture(IndexResponse.failedResp("The request IndexSearch is invalid"));
+                }
+                return shardClients.get(ring.shardFor(request.getIndexSearch().getFileName())).sendAsync(request);
+            case MULTI_LOOKUP:
+                return multiLookup(request);
+            case SEARCH:
+                return search(request);
+            case REGISTER:
+                return register(request);
+            case UNREGISTER:
+            case HEARTBEAT:
+            case TRANSFER_REPORT:
+                return broadcast(request);
+            default:
+                return CompletableFuture.completedFuture(IndexResponse.failedResp(
+                        "Request type " + request.getRequestType() + " is not supported on a sharded index"));
+        }
+    }
+
+    @Override
+    public IndexResponse call(IndexRequest request) throws IOException {
+        return await(sendAsync(request));
+    }
+
+    @Override
+    public IndexResponse heartbeat(String peerId, Integer activeUploads) throws IOException {
+        IndexRequest indexRequest = new IndexRequest();
+        indexRequest.setRequestType(RequestTypeEnum.HEARTBEAT.getCode());
+        indexRequest.setIndexRegister(new IndexRequest.IndexRegister());
+        indexRequest.getIndexRegister().setPeerId(peerId);
+        indexRequest.getIndexRegister().setActiveUploads(activeUploads);
+        return call(indexRequest);
+    }
+
+    /**
+     * Register the names of a directory with their owners, each shard's part in chunks of its own.
+     */
+    @Override
+    public IndexResponse registerInChunks(String peerId, String filePath, List<String> files) throws IOException {
+        List<IndexResponse> responses = new ArrayList<>();
+        for (Map.Entry<String, List<String>> part : splitByShard(files).entrySet()) {
+            IndexResponse indexResponse = shardClients.get(part.getKey()).registerInChunks(peerId, filePath, part.getValue());
+            if (indexResponse.isSuc()) {
+                registeredShards.add(part.getKey());
+            }
+            responses.add(indexResponse);
+        }
+        return mergeRegister(responses);
+    }
+
+    private CompletableFuture<IndexResponse> register(IndexRequest request) {
+        IndexRequest.IndexRegister indexRegister = request.getIndexRegister();
+        if (indexRegister == null || indexRegister.getFiles() == null) {
+            return CompletableFuture.completedFuture(IndexResponse.failedResp("The request IndexRegister is invalid"));
+        }
+        Map<String, CompletableFuture<IndexResponse>> futures = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> part : splitByShard(indexRegister.getFiles()).entrySet()) {
+            IndexRequest shardRequest = new IndexRequest();
+            shardRequest.setRequestType(RequestTypeEnum.REGISTER.getCode());
+            shardRequest.setIndexRegister(new IndexRequest.IndexRegister());
+            shardRequest.getIndexRegister().setPeerId(indexRegister.getPeerId());
+            shardRequest.getIndexRegister().setFilePath(indexRegister.getFilePath());
+            shardRequest.getIndexRegister().setFiles(new ArrayList<>(part.getValue()));
+            futures.put(part.getKey(), shardClients.get(part.getKey()).sendAsync(shardRequest));
+        }
+        return allOf(futures).thenApply(responses -> {
+            for (Map.Entry<String, IndexResponse> entry : responses.entrySet()) {
+                if (entry.getValue().isSuc()) {
+                    registeredShards.add(entry.getKey());
+                }
+            }
+            return mergeRegister(new ArrayList<>(responses.values()));
+        });
+    }
+
+    /**
+     * Send a peer level request to every shard. A shard this client never registered with may not know
+     * the peer, so only the rejections of the other shards fail a heartbeat.
+     */
+    private CompletableFuture<IndexResponse> broadcast(IndexRequest request) {
+        if (request.getIndexRegister() == null) {
+            return CompletableFuture.completedFuture(IndexResponse.failedResp("The request IndexRegister is invalid"));
+        }
+        boolean heartbeat = request.getRequestType() == RequestTypeEnum.HEARTBEAT.getCode();
+        Map<String, CompletableFuture<IndexResponse>> futures = new LinkedHashMap<>();
+        for (Map.Entry<String, IndexClient> shard : shardClients.entrySet()) {
+            IndexRequest shardRequest = new IndexRequest();
+            shardRequest.setRequestType(request.getRequestType());
+            // The whole register goes to every shard: the upload count of a heartbeat and the holder and figures of a
+            // transfer report rank that peer's postings on each of them. Sending only reads it, so the shards share it
+            shardRequest.setIndexRegister(request.getIndexRegister());
+            futures.put(shard.getKey(), shard.getValue().sendAsync(shardRequest));
+        }
+        return allOf(futures).thenApply(responses -> {
+            IndexResponse merged = null;
+            for (Map.Entry<String, IndexResponse> entry : responses.entrySet()) {
+                IndexResponse indexResponse = entry.getValue();
+                if (!indexResponse.isSuc() && (!heartbeat || registeredShards.contains(entry.getKey()))) {
+                    return indexResponse;
+                }
+                if (indexResponse.isSuc() && merged == null) {
+                    merged = indexResponse;
+                }
+            }
+            if (!heartbeat) {
+                registeredShards.clear();
+            }
+            return merged != null ? merged : responses.values().iterator().next();
+        });
+    }
+
+    /**
+     * Expand the requested names here, since a name pattern spans shards, and ask every owner for its names.
+     */
+    private CompletableFuture<IndexResponse> multiLookup(IndexRequest request) {
+        List<String> fileNames = request.getIndexSearch() == null ? null : expandFileNames(request.getIndexSearch());
+        if (fileNames == null) {
+            return CompletableFuture.completedFuture(IndexResponse.failedResp(
+                    "The request IndexSearch is invalid, it needs a name list or a name pattern with one bare %d over a range, at most "
+                            + ConstantUtils.MAX_MULTI_LOOKUP_SIZE + " names per multi lookup"));
+        }
+        Map<String, CompletableFuture<IndexResponse>> futures = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> part : splitByShard(fileNames).entrySet()) {
+            IndexRequest shardRequest = new IndexRequest();
+            shardRequest.setRequestType(RequestTypeEnum.MULTI_LOOKUP.getCode());
+            shardRequest.setIndexSearch(new IndexRequest.IndexSearch());
+            shardRequest.getIndexSearch().setFileNames(new ArrayList<>(part.getValue()));
+            shardRequest.getIndexSearch().setLimit(request.getIndexSearch().getLimit());
+            futures.put(part.getKey(), shardClients.get(part.getKey()).sendAsync(shardRequest));
+        }
+        return allOf(futures).thenApply(responses -> {
+            IndexResponse.ResultData resultData = new IndexResponse.ResultData();
+            resultData.setMultiLookupMapping(new HashMap<>(fileNames.size() * 2));
+            for (IndexResponse indexResponse : responses.values()) {
+                if (!indexResponse.isSuc()) {
+                    return indexResponse;
+                }
+                resultData.getMultiLookupMapping().putAll(indexResponse.getData().getMultiLookupMapping());
+            }
+            return IndexResponse.sucResp(resultData);
+        });
+    }
+
+    /**
+     * A pattern may match names on every shard, so the pages walk the shards one after the other.
+     * The cursor is "shard index:cursor on that shard".
+     */
+    private CompletableFuture<IndexResponse> search(IndexRequest request) {
+        IndexRequest.IndexSearch indexSearch = request.getIndexSearch();
+        if (indexSearch == null) {
+            return CompletableFuture.completedFuture(IndexResponse.failedResp("The request IndexSearch is invalid"));
+        }
+        int shardIndex = 0;
+        String shardCursor = null;
+        if (indexSearch.getCursor() != null) {
+            int separator = indexSearch.getCursor().indexOf(':');
+            try {
+                shardIndex = Integer.parseInt(indexSearch.getCursor().substring(0, Math.max(0, separator)));
+            } catch (NumberFormatException e) {
+                shardIndex = -1;
+            }
+            if (shardIndex < 0 || shardIndex >= ring.getShards().size()) {
+                return CompletableFuture.completedFuture(IndexResponse.failedResp("The request IndexSearch is invalid, unknown cursor"));
+            }
+            shardCursor = separator + 1 < indexSearch.getCursor().length() ? indexSearch.getCursor().substring(separator + 1) : null;
+        }
+        IndexRequest shardRequest = new IndexRequest();
+        shardRequest.setRequestType(RequestTypeEnum.SEARCH.getCode());
+        shardRequest.setIndexSearch(new IndexRequest.IndexSearch());
+        shardRequest.getIndexSearch().setQuery(indexSearch.getQuery());
+        shardRequest.getIndexSearch().setLimit(indexSearch.getLimit());
+        shardRequest.getIndexSearch().setCursor(shardCursor);
+        final int currentShard = shardIndex;
+        return shardClients.get(ring.getShards().get(currentShard)).sendAsync(shardRequest).thenApply(indexResponse -> {
+            if (indexResponse.isSuc()) {
+                String next = indexResponse.getData().getNextCursor();
+                if (next != null) {
+                    indexResponse.getData().setNextCursor(currentShard + ":" + next);
+                } else if (currentShard + 1 < ring.getShards().size()) {
+                    indexResponse.getData().setNextCursor((currentShard + 1) + ":");
+                }
+            }
+            return indexResponse;
+        });
+    }
+
+    private Map<String, List<String>> splitByShard(List<String> fileNames) {
+        Map<String, List<String>> parts = new LinkedHashMap<>();
+        for (String fileName : fileNames) {
+            parts.computeIfAbsent(ring.shardFor(fileName), key -> new ArrayList<>()).add(fileName);
+        }
+        return parts;
+    }
+
+    private static List<String> expandFileNames(IndexRequest.IndexSearch indexSearch) {
+        if (indexSearch.getFileNames() != null) {
+            return indexSearch.getFileNames().size() > ConstantUtils.MAX_MULTI_LOOKUP_SIZE ? null : indexSearch.getFileNames();
+        }
+        if (!FileUtils.isNamePattern(indexSearch.getNamePattern()) || indexSearch.getRangeStart() == null || indexSearch.getRangeEnd() == null) {
+            return null;
+        }
+        long size = (long) indexSearch.getRangeEnd() - indexSearch.getRangeStart() + 1;
+        if (size < 1 || size > ConstantUtils.MAX_MULTI_LOOKUP_SIZE) {
+            return null;
+        }
+        List<String> fileNames = new ArrayList<>((int) size);
+        for (int i = indexSearch.getRangeStart(); i <= indexSearch.getRangeEnd(); i++) {
+            fileNames.add(String.format(indexSearch.getNamePattern(), i));
+        }
+        return fileNames;
+    }
+
+    private static IndexResponse mergeRegister(List<IndexResponse> responses) {
+        IndexResponse.ResultData resultData = new IndexResponse.ResultData();
+        int registeredCount = 0;
+        int duplicateCount = 0;
+        for (IndexResponse indexResponse : responses) {
+            if (!indexResponse.isSuc()) {
+                return indexResponse;
+            }
+            IndexResponse.ResultData data = indexResponse.getData();
+            registeredCount += data.getRegisteredCount() == null ? 0 : data.getRegisteredCount();
+            duplicateCount += data.getDuplicateCount() == null ? 0 : data.getDuplicateCount();
+            resultData.setPeerId(data.getPeerId());
+            if (resultData.getLeaseMillis() == null) {
+                resultData.setLeaseMillis(data.getLeaseMillis());
+            }
+        }
+        resultData.setRegisteredCount(registeredCount);
+        resultData.setDuplicateCount(duplicateCount);
+        return IndexResponse.sucResp(resultData);
+    }
+
+    private static CompletableFuture<Map<String, IndexResponse>> allOf(Map<String, CompletableFuture<IndexResponse>> futures) {
+        return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            Map<String, IndexResponse> responses = new LinkedHashMap<>();
+            for (Map.Entry<String, CompletableFuture<IndexResponse>> entry : futures.entrySet()) {
+                responses.put(entry.getKey(), entry.getValue().join());
+            }
+            return responses;
+        });
+    }
+
+    private static IndexResponse await(CompletableFuture<IndexResponse> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the index servers");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    /**
+     * Disconnect from every shard.
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (IndexClient indexClient : shardClients.values()) {
+            try {
+                indexClient.close();
+            } catch (IOException e) {
+                failure = failure == null ? e : failure;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
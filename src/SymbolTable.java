@@ -0,0 +1,121 @@
+import java.util.Arrays;
+
+/**
+ * Dictionary from strings to dense int ids (0, 1, 2, ...), so the index can keep one copy
+ * of every file name, path and peer key and refer to it by id in primitive arrays.
+ * Ids are never reused: a string stays in the table once interned.
+ * <p>
+ * find and symbol do not lock. Writers only fill empty slots or publish bigger arrays
+ * through the volatile fields; a reader that catches an insert half way takes the lock.
+ */
+public final class SymbolTable {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** open addressing table of id + 1, 0 marks an empty slot; kept at most half full **/
+    private volatile int[] slots = new int[INITIAL_CAPACITY * 2];
+    /** id -> string **/
+    private volatile String[] symbols = new String[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * @return the id of the string, or -1 when it was never interned
+     */
+    public int find(String symbol) {
+        int[] table = slots;
+        String[] names = symbols;
+        int mask = table.length - 1;
+        for (int i = hash(symbol) & mask; ; i = (i + 1) & mask) {
+            int id = table[i] - 1;
+            if (id < 0) {
+                return -1;
+            }
+            if (id >= names.length || names[id] == null) {
+                // Raced with an insert, look again under the lock
+                synchronized (this) {
+                    return findLocked(symbol);
+                }
+            }
+            if (names[id].equals(symbol)) {
+                return id;
+            }
+        }
+    }
+
+    /**
+     * @return the id of the string, handing out the next id on first use
+     */
+    public int intern(String symbol) {
+        int id = find(symbol);
+        if (id >= 0) {
+            return id;
+        }
+        synchronized (this) {
+            id = findLocked(symbol);
+            if (id >= 0) {
+                return id;
+            }
+            id = size;
+            String[] names = symbols;
+            if (id == names.length) {
+                names = Arrays.copyOf(names, names.length + (names.length >> 1));
+                names[id] = symbol;
+                symbols = names;
+            } else {
+                names[id] = symbol;
+            }
+            size++;
+            if (size * 2 > slots.length) {
+                rehash(slots.length * 2);
+            } else {
+                insertSlot(slots, symbol, id);
+            }
+            return id;
+        }
+    }
+
+    public String symbol(int id) {
+        return symbols[id];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private int findLocked(String symbol) {
+        int[] table = slots;
+        int mask = table.length - 1;
+        for (int i = hash(symbol) & mask; ; i = (i + 1) & mask) {
+            int id = table[i] - 1;
+            if (id < 0) {
+                return -1;
+            }
+            if (symbols[id].equals(symbol)) {
+                return id;
+            }
+        }
+    }
+
+    private void rehash(int capacity) {
+        int[] table = new int[capacity];
+        String[] names = symbols;
+        for (int id = 0; id < size; id++) {
+            insertSlot(table, names[id], id);
+        }
+        slots = table;
+    }
+
+    private static void insertSlot(int[] table, String symbol, int id) {
+        int mask = table.length - 1;
+        int i = hash(symbol) & mask;
+        while (table[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        table[i] = id + 1;
+    }
+
+    private static int hash(String symbol) {
+        int h = symbol.hashCode();
+        return h ^ (h >>> 16);
+    }
+}